@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * checks that the native agent's thread allocates nothing while it
+ * handles young GCs of the serial or parallel collectors, the only ones
+ * the agent samples natively. G1, ZGC and Shenandoah GCs and all old GCs
+ * are still recorded from the GC info, which allocates. run it with the
+ * serial or parallel GC and the native agent e.g.
+ *
+ *   java -XX:+UseSerialGC -agentpath:target/libballoon.so=local
+ *        -cp target/classes AllocationTest [gcs]
+ *
+ * it finds the agent thread by name and churns garbage until gcs young
+ * GCs have happened then checks that the thread's allocated bytes did
+ * not move. checks in which an old GC happens are retried. leave the
+ * binary option off as the binary log maps a new segment every so many
+ * records. exits with status 1 if the check fails.
+ */
+public class AllocationTest
+{
+    final static String AGENT_THREAD_NAME = "Balloon Agent";
+    /**
+     * JVMTI agent threads are left out of the thread listings so the
+     * agent thread is found by trying ids up to this one
+     */
+    final static long MAX_THREAD_ID = 1000;
+    final static int WARMUP_GCS = 500;
+    final static int RETRIES = 5;
+
+    static Object sink;
+
+    static public void main(String[] args) throws Exception
+    {
+        int gcs = 200;
+        if (args.length > 0) {
+            gcs = Integer.valueOf(args[0]);
+            if (args.length > 1 || gcs < 1) {
+                System.out.println("usage : AllocationTest [gcs]");
+                System.out.println("        where gcs >= 1, default 200 (young GCs to check)");
+                System.exit(1);
+            }
+        }
+        GarbageCollectorMXBean young = null;
+        GarbageCollectorMXBean old = null;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String name = gc.getName();
+            if (name.equals("Copy") || name.equals("PS Scavenge")) {
+                young = gc;
+            } else if (name.equals("MarkSweepCompact") || name.equals("PS MarkSweep")) {
+                old = gc;
+            }
+        }
+        if (young == null || old == null) {
+            System.out.println("AllocationTest : only the serial and parallel GCs sample young GCs natively");
+            System.exit(1);
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean) ||
+                !((com.sun.management.ThreadMXBean)threads).isThreadAllocatedMemoryEnabled()) {
+            System.out.println("AllocationTest : the JVM does not count thread allocation");
+            System.exit(1);
+        }
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean)threads;
+
+        // give the agent time to start up then let it load what it needs
+        long agentId = -1;
+        for (int i = 0; i < 50 && agentId < 0; i++) {
+            Thread.sleep(100);
+            agentId = findThread(threads, AGENT_THREAD_NAME);
+        }
+        if (agentId < 0) {
+            System.out.println("AllocationTest : cannot find thread " + AGENT_THREAD_NAME + ", is the native agent loaded?");
+            System.exit(1);
+        }
+        churn(young, WARMUP_GCS);
+
+        for (int i = 0; i < RETRIES; i++) {
+            long oldCount = old.getCollectionCount();
+            long youngCount = young.getCollectionCount();
+            long before = allocatedBytes(allocation, agentId);
+            churn(young, gcs);
+            long after = allocatedBytes(allocation, agentId);
+            youngCount = young.getCollectionCount() - youngCount;
+            if (old.getCollectionCount() != oldCount) {
+                System.out.printf("AllocationTest : old GC during check, retrying\n");
+                continue;
+            }
+            if (after != before) {
+                System.out.printf("AllocationTest : FAILED agent thread allocated %d bytes over %d young GCs\n",
+                                  after - before, youngCount);
+                System.exit(1);
+            }
+            System.out.printf("AllocationTest : PASSED agent thread allocated nothing over %d %s young GCs\n",
+                              youngCount, young.getName());
+            System.exit(0);
+        }
+        System.out.printf("AllocationTest : FAILED old GCs interrupted %d checks\n", RETRIES);
+        System.exit(1);
+    }
+
+    /**
+     * allocate short lived arrays until count more young GCs have happened
+     */
+    private static void churn(GarbageCollectorMXBean young, int count)
+    {
+        long target = young.getCollectionCount() + count;
+        while (young.getCollectionCount() < target) {
+            for (int i = 0; i < 1000; i++) {
+                sink = new byte[1024];
+            }
+        }
+    }
+
+    /**
+     * @return the id of the live thread with the given name or -1
+     */
+    private static long findThread(ThreadMXBean threads, String name)
+    {
+        for (long id = 1; id <= MAX_THREAD_ID; id++) {
+            ThreadInfo info = threads.getThreadInfo(id);
+            if (info != null && info.getThreadName().equals(name)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * read the agent thread's allocated bytes once it has had time to
+     * finish handling the last GC
+     */
+    private static long allocatedBytes(com.sun.management.ThreadMXBean allocation, long id) throws Exception
+    {
+        Thread.sleep(200);
+        return allocation.getThreadAllocatedBytes(id);
+    }
+}
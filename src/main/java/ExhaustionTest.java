@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * checks that a ballooned JVM gives the balloons back rather than run
+ * out of heap when its live set grows. run it with the native agent,
+ * ballooning and a small headroom e.g.
+ *
+ *   java -XX:+UseShenandoahGC -Xmx256m
+ *        -agentpath:target/libballoon.so=local,balloon,headroom=10,reserve=8m
+ *        -cp target/classes ExhaustionTest [rate [churn]]
+ *
+ * it churns churn MBs of garbage a second with almost nothing live until
+ * the controller has filled most of the heap with balloons. it then
+ * keeps churning while retaining rate MBs a second until the retained
+ * data fills GROW_PERCENT of the heap. exits with status 1 if the heap
+ * runs out while the agent still holds balloons or if the controller
+ * has not inflated.
+ */
+public class ExhaustionTest
+{
+    final static String OBJECT_NAME = "com.redhat.openjdk.balloon:type=MemoryManager";
+    final static int MB = 1024 * 1024;
+    /**
+     * size of the retained arrays, small enough to pack regions tightly
+     * with the smallest G1 or Shenandoah regions
+     */
+    final static int CHUNK_SIZE = 16 * 1024;
+    final static int GARBAGE_SIZE = 1024;
+    /**
+     * wait this many msecs for the balloons to fill INFLATE_PERCENT
+     * of the heap
+     */
+    final static long INFLATE_MILLIS = 60 * 1000L;
+    final static int INFLATE_PERCENT = 50;
+    final static int GROW_PERCENT = 70;
+
+    static volatile boolean churning;
+    static volatile Object sink;
+    static volatile OutOfMemoryError exhausted;
+
+    static public void main(String[] args) throws Exception
+    {
+        int rate = 20;
+        int churn = 100;
+        if (args.length > 0) {
+            rate = Integer.valueOf(args[0]);
+            if (args.length > 1) {
+                churn = Integer.valueOf(args[1]);
+            }
+            if (args.length > 2 || rate < 1 || churn < 1) {
+                System.out.println("usage : ExhaustionTest [rate [churn]]");
+                System.out.println("        where rate  >= 1, default 20 (MBs retained per second)");
+                System.out.println("              churn >= 1, default 100 (MBs of garbage per second)");
+                System.exit(1);
+            }
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        for (int i = 0; i < 50 && !server.isRegistered(name); i++) {
+            Thread.sleep(100);
+        }
+        if (!server.isRegistered(name)) {
+            System.out.println("ExhaustionTest : cannot find " + OBJECT_NAME + ", is the native agent loaded?");
+            System.exit(1);
+        }
+        long max = Runtime.getRuntime().maxMemory();
+
+        Thread churner = churn(churn);
+        long balloons = 0;
+        long deadline = System.currentTimeMillis() + INFLATE_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(500);
+            balloons = (Long)server.getAttribute(name, "BalloonBytes");
+            if (balloons * 100 >= max * INFLATE_PERCENT) {
+                break;
+            }
+        }
+        if (balloons == 0) {
+            stop(churner);
+            System.out.printf("ExhaustionTest : FAILED no balloons after %d secs, is the balloon option set?\n",
+                              INFLATE_MILLIS / 1000);
+            System.exit(1);
+        }
+        System.out.printf("ExhaustionTest : balloons hold %dKB of %dKB, retaining %dMB a second\n",
+                          balloons / 1024, max / 1024, rate);
+
+        // retain a chunk at a time, pacing the chunks so that they add
+        // up to rate MBs a second
+        List<byte[]> retained = new ArrayList<byte[]>();
+        long target = max / 100 * GROW_PERCENT;
+        long start = System.nanoTime();
+        long held = 0;
+        try {
+            while (held < target && exhausted == null) {
+                retained.add(new byte[CHUNK_SIZE]);
+                held += CHUNK_SIZE;
+                pace(start, held, rate);
+            }
+        } catch (OutOfMemoryError e) {
+            exhausted = e;
+        }
+        if (exhausted != null) {
+            // the stats still give the balloons as the last GC left them
+            balloons = (Long)server.getAttribute(name, "BalloonBytes");
+            retained = null;
+            stop(churner);
+            System.out.printf("ExhaustionTest : %s after retaining %dKB\n", exhausted, held / 1024);
+            if (balloons > 0) {
+                System.out.printf("ExhaustionTest : FAILED heap ran out while balloons held %dKB\n", balloons / 1024);
+                System.exit(1);
+            }
+            System.out.printf("ExhaustionTest : PASSED heap only ran out once every balloon had gone\n");
+            System.exit(0);
+        }
+        stop(churner);
+        balloons = (Long)server.getAttribute(name, "BalloonBytes");
+        long emergencies = (Long)server.getAttribute(name, "BalloonEmergencyCount");
+        System.out.printf("ExhaustionTest : retained %dKB, balloons hold %dKB after %d emergency deflations\n",
+                          held / 1024, balloons / 1024, emergencies);
+        System.out.printf("ExhaustionTest : PASSED\n");
+        System.exit(0);
+    }
+
+    /**
+     * start a thread which churns short lived arrays at rate MBs a second
+     */
+    private static Thread churn(final int rate)
+    {
+        Thread churner = new Thread(new Runnable() {
+                public void run() {
+                    long start = System.nanoTime();
+                    long churned = 0;
+                    try {
+                        while (churning) {
+                            for (int i = 0; i < CHUNK_SIZE / GARBAGE_SIZE; i++) {
+                                sink = new byte[GARBAGE_SIZE];
+                            }
+                            churned += CHUNK_SIZE;
+                            pace(start, churned, rate);
+                        }
+                    } catch (OutOfMemoryError e) {
+                        exhausted = e;
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+        churning = true;
+        churner.setDaemon(true);
+        churner.start();
+        return churner;
+    }
+
+    private static void stop(Thread churner) throws InterruptedException
+    {
+        churning = false;
+        churner.join();
+    }
+
+    /**
+     * sleep until allocating bytes since start no longer exceeds rate
+     * MBs a second
+     */
+    private static void pace(long start, long bytes, int rate) throws InterruptedException
+    {
+        long wait = start + bytes * 1000000000L / ((long)rate * MB) - System.nanoTime();
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+        }
+    }
+}
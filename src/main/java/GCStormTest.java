@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * checks that the native agent accounts for every GC end event when GCs
+ * arrive faster than it can deliver them. run it with the serial or
+ * parallel GC, a small young generation and the native agent e.g.
+ *
+ *   java -XX:+UseSerialGC -Xmn2m -agentpath:target/libballoon.so=local
+ *        -cp target/classes GCStormTest [gcs [threads]]
+ *
+ * it churns garbage from several threads until gcs more GCs have
+ * happened, forcing a full GC every so often, then waits for the agent
+ * to catch up. the events the agent delivered plus those it coalesced
+ * must add up to the number of GC pauses the collectors report. exits
+ * with status 1 if they do not.
+ */
+public class GCStormTest
+{
+    final static String OBJECT_NAME = "com.redhat.openjdk.balloon:type=MemoryManager";
+    final static int FULL_GC_INTERVAL = 100;
+
+    static volatile boolean stormy;
+    static volatile Object sink;
+
+    static public void main(String[] args) throws Exception
+    {
+        int gcs = 5000;
+        int threads = 4;
+        if (args.length > 0) {
+            gcs = Integer.valueOf(args[0]);
+            if (args.length > 1) {
+                threads = Integer.valueOf(args[1]);
+            }
+            if (args.length > 2 || gcs < 1 || threads < 1) {
+                System.out.println("usage : GCStormTest [gcs [threads]]");
+                System.out.println("        where gcs     >= 1, default 5000 (GCs in the storm)");
+                System.out.println("              threads >= 1, default 4 (allocating threads)");
+                System.exit(1);
+            }
+        }
+        GarbageCollectorMXBean young = null;
+        GarbageCollectorMXBean old = null;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String name = gc.getName();
+            if (name.equals("Copy") || name.equals("PS Scavenge")) {
+                young = gc;
+            } else if (name.equals("MarkSweepCompact") || name.equals("PS MarkSweep")) {
+                old = gc;
+            }
+        }
+        if (young == null || old == null) {
+            System.out.println("GCStormTest : only the serial and parallel GCs report one event per collection");
+            System.exit(1);
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        for (int i = 0; i < 50 && !server.isRegistered(name); i++) {
+            Thread.sleep(100);
+        }
+        if (!server.isRegistered(name)) {
+            System.out.println("GCStormTest : cannot find " + OBJECT_NAME + ", is the native agent loaded?");
+            System.exit(1);
+        }
+
+        // the agent only sees GCs once the VM is up so count from here,
+        // once it has delivered every GC so far
+        long start;
+        long seenStart;
+        do {
+            start = young.getCollectionCount() + old.getCollectionCount();
+            Thread.sleep(200);
+            seenStart = (Long)server.getAttribute(name, "GCsSeen");
+        } while (start != young.getCollectionCount() + old.getCollectionCount());
+
+        // storm in rounds forcing a full GC after each. the parallel GC
+        // runs a scavenge ahead of the full GC in the same pause which
+        // the agent only sees as one GC end event. any other collection
+        // is a pause of its own
+        boolean parallel = young.getName().equals("PS Scavenge");
+        long merged = 0;
+        long count = start;
+        while (count - start < gcs) {
+            storm(young, old, threads, Math.min(FULL_GC_INTERVAL, gcs - (count - start)));
+            long youngCount = young.getCollectionCount();
+            System.gc();
+            if (parallel && young.getCollectionCount() > youngCount) {
+                merged++;
+            }
+            count = young.getCollectionCount() + old.getCollectionCount();
+        }
+
+        // wait for the agent to deliver the last GC
+        long total = young.getCollectionCount() + old.getCollectionCount() - merged - start + seenStart;
+        long seen = 0;
+        for (int i = 0; i < 50; i++) {
+            seen = (Long)server.getAttribute(name, "GCsSeen");
+            if (seen >= total) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        long delivered = (Long)server.getAttribute(name, "GCsDelivered");
+        long coalesced = (Long)server.getAttribute(name, "GCsCoalesced");
+        total = young.getCollectionCount() + old.getCollectionCount() - merged - start + seenStart;
+        System.out.printf("GCStormTest : %d GCs, agent saw %d, delivered %d, coalesced %d\n",
+                          total, seen, delivered, coalesced);
+        if (delivered + coalesced != total || seen != total) {
+            System.out.printf("GCStormTest : FAILED delivered plus coalesced events do not match the GC count\n");
+            System.exit(1);
+        }
+        if (coalesced == 0) {
+            System.out.printf("GCStormTest : PASSED but no events were coalesced, try a smaller young generation\n");
+        } else {
+            System.out.printf("GCStormTest : PASSED\n");
+        }
+        System.exit(0);
+    }
+
+    /**
+     * churn short lived arrays from that many threads until count more GCs
+     * have happened
+     */
+    private static void storm(GarbageCollectorMXBean young, GarbageCollectorMXBean old,
+                              int threads, long count) throws InterruptedException
+    {
+        long target = young.getCollectionCount() + old.getCollectionCount() + count;
+        Thread[] churners = new Thread[threads];
+        stormy = true;
+        for (int i = 0; i < threads; i++) {
+            churners[i] = new Thread(new Runnable() {
+                    public void run() {
+                        while (stormy) {
+                            sink = new byte[256];
+                        }
+                    }
+                });
+            churners[i].start();
+        }
+        while (young.getCollectionCount() + old.getCollectionCount() < target) {
+            Thread.yield();
+        }
+        stormy = false;
+        for (int i = 0; i < threads; i++) {
+            churners[i].join();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * parsed form of the comma separated option string supplied to the
+ * agent. each option is either a bare name or a name=value pair.
+ *
+ * sizes may be given with a k, m or g suffix and are returned in
+ * bytes. times may be given with an s, m or h suffix and are returned
+ * in msecs. an unsuffixed time is taken to be in msecs. a list of
+ * times is separated with '/' since ',' separates options.
+ */
+// package access only
+class AgentOptions
+{
+    /**
+     * map from option name to option value. bare options map to
+     * the empty string
+     */
+    private Map<String, String> options = new HashMap<String, String>();
+
+    /**
+     * suffixes accepted on times and the msecs they scale by
+     */
+    private final static String TIME_SUFFIXES = "smh";
+    private final static long[] TIME_SCALES = { 1000L, 60 * 1000L, 60 * 60 * 1000L };
+
+    public AgentOptions(String optionString)
+    {
+        if (optionString == null) {
+            return;
+        }
+        for (String option : optionString.split(",")) {
+            if (option.length() == 0) {
+                continue;
+            }
+            int idx = option.indexOf('=');
+            if (idx < 0) {
+                options.put(option, "");
+            } else {
+                options.put(option.substring(0, idx), option.substring(idx + 1));
+            }
+        }
+    }
+
+    /**
+     * @return true if the named option was supplied with or without a value
+     */
+    public boolean isSet(String name)
+    {
+        return options.containsKey(name);
+    }
+
+    /**
+     * @return the value supplied for the named option or dflt if it was
+     * not supplied or was supplied without a value
+     */
+    public String getString(String name, String dflt)
+    {
+        String value = options.get(name);
+        if (value == null || value.length() == 0) {
+            return dflt;
+        }
+        return value;
+    }
+
+    /**
+     * @return the integer value supplied for the named option or dflt if it
+     * was not supplied or is not a valid integer
+     */
+    public long getLong(String name, long dflt)
+    {
+        String value = getString(name, null);
+        if (value == null) {
+            return dflt;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.out.printf("AgentOptions : invalid value for %s : %s\n", name, value);
+            return dflt;
+        }
+    }
+
+    /**
+     * @return the size in bytes supplied for the named option or dflt if it
+     * was not supplied or is not a valid size
+     */
+    public long getSize(String name, long dflt)
+    {
+        return getScaled(name, dflt, "kmg", new long[] { 1024L, 1024L * 1024L, 1024L * 1024L * 1024L });
+    }
+
+    /**
+     * @return the time in msecs supplied for the named option or dflt if it
+     * was not supplied or is not a valid time
+     */
+    public long getTime(String name, long dflt)
+    {
+        return getScaled(name, dflt, TIME_SUFFIXES, TIME_SCALES);
+    }
+
+    /**
+     * @return the list of times in msecs supplied for the named option
+     * or dflt if it was not supplied or any of the times is not valid.
+     * zero times are not valid and at most max times are returned.
+     */
+    public long[] getTimes(String name, long[] dflt, int max)
+    {
+        String value = getString(name, null);
+        if (value == null) {
+            return dflt;
+        }
+        String[] values = value.split("/");
+        if (values.length > max) {
+            System.out.printf("AgentOptions : only using the first %d values for %s : %s\n", max, name, value);
+        }
+        long[] result = new long[Math.min(values.length, max)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = parseScaled(name, values[i], -1, TIME_SUFFIXES, TIME_SCALES);
+            if (result[i] == 0) {
+                System.out.printf("AgentOptions : invalid value for %s : %s\n", name, value);
+            }
+            if (result[i] <= 0) {
+                return dflt;
+            }
+        }
+        return result;
+    }
+
+    private long getScaled(String name, long dflt, String suffixes, long[] scales)
+    {
+        String value = getString(name, null);
+        if (value == null) {
+            return dflt;
+        }
+        return parseScaled(name, value, dflt, suffixes, scales);
+    }
+
+    private long parseScaled(String name, String value, long dflt, String suffixes, long[] scales)
+    {
+        String original = value;
+        if (value.length() == 0) {
+            System.out.printf("AgentOptions : invalid value for %s : %s\n", name, original);
+            return dflt;
+        }
+        long scale = 1;
+        int idx = suffixes.indexOf(Character.toLowerCase(value.charAt(value.length() - 1)));
+        if (idx >= 0) {
+            scale = scales[idx];
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            long result = Long.parseLong(value);
+            if (result < 0) {
+                System.out.printf("AgentOptions : invalid value for %s : %s\n", name, original);
+                return dflt;
+            }
+            return result * scale;
+        } catch (NumberFormatException e) {
+            System.out.printf("AgentOptions : invalid value for %s : %s\n", name, original);
+            return dflt;
+        }
+    }
+}
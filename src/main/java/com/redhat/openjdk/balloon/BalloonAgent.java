@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+import java.lang.instrument.Instrumentation;
+
+/**
+ * Java agent entry points used when the balloon jar is loaded with
+ * -javaagent or attached to a running JVM. the memory manager is driven
+ * by GC notifications so stats can be gathered without the native
+ * library. the native library is only loaded if the balloon option is
+ * supplied.
+ *
+ * the agent accepts the same options as the native agent plus
+ *
+ *   lib=path  location of libballoon.so, by default it is looked up
+ *             on java.library.path
+ */
+public class BalloonAgent
+{
+    public static void premain(String args, Instrumentation inst)
+    {
+        start(args);
+    }
+
+    public static void agentmain(String args, Instrumentation inst)
+    {
+        start(args);
+    }
+
+    private static void start(String args)
+    {
+        AgentOptions options = new AgentOptions(args);
+        int logPlacement = MemoryManager.LOG_LOCATION_APPROOT;
+        if (options.isSet("local")) {
+            logPlacement = MemoryManager.LOG_LOCATION_LOCAL;
+        } else if (options.isSet("sysout")) {
+            logPlacement = MemoryManager.LOG_LOCATION_SYSOUT;
+        }
+        if (!MemoryManager.initNotifications(logPlacement, options.isSet("all"), args)) {
+            System.out.printf("BalloonAgent : failed to start memory manager\n");
+        }
+    }
+}
@@ -0,0 +1,660 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+
+/**
+ * closed loop controller which inflates and deflates balloons after
+ * each GC so that the tenured space left available to the application
+ * tracks its recent live set plus a configurable headroom. any tenured
+ * space beyond that is filled with balloons, allowing the agent to hand
+ * the backing pages back to the OS.
+ *
+ * the controller is driven from MemoryManager.gcEnd on the agent thread
+ * and is configured using the following agent options
+ *
+ *   balloon -- enable the controller
+ *   headroom=N -- percentage of the application live set to leave free
+ *                 on top of the live set (default 25)
+ *   reserve=SIZE -- minimum amount of tenured space to leave free on top
+ *                   of the live set whatever the headroom (default 64m)
+ *   inflate=SIZE -- maximum amount to inflate by at any one GC (default 32m)
+ *   deflate=SIZE -- maximum amount to deflate by at any one GC (default 64m)
+ *   hysteresis=SIZE -- ignore differences between the current and target
+ *                      balloon size smaller than this (default 16m)
+ *   backoff=TIME -- how long to suspend inflation when inflating is seen
+ *                   to increase the young GC rate (default 60s)
+ *   verify -- check after each GC which balloon pages are resident
+ *   balloonsize=SIZE -- size of each balloon (default depends on the GC)
+ *   emergency=SIZE -- how much to deflate by at once when the heap is
+ *                     exhausted or tenured occupancy is critical, 0 to
+ *                     disable (default the deflate size)
+ *   critical=N -- percentage of the tenured max which, if still occupied
+ *                 after a GC or with a concurrent collector at any time,
+ *                 triggers an emergency deflation, 0 to disable
+ *                 (default 95)
+ *
+ * emergency deflations bypass the controller. the native agent does
+ * one when JVMTI reports the heap exhausted and a memory pool listener
+ * does one when the JDK reports the tenured pool over its collection
+ * usage threshold. the controller just accounts for them and backs off.
+ * JVMTI only reports the heap exhausted once the allocation has failed,
+ * too late to save it, and a concurrent collector's pool takes every
+ * allocation while a cycle runs, so with those collectors the listener
+ * also deflates as soon as the pool's usage crosses the critical
+ * occupancy, or leaves less free than a cycle allocates, rather than
+ * waiting for the cycle to end.
+ *
+ * a concurrent collector only frees space at the end of a cycle while
+ * the application keeps allocating, so the controller also leaves free
+ * twice what MemoryManager estimates is allocated during a cycle, from
+ * the allocation rate and the cycle length, allowing for cycles which
+ * start late or see a burst of allocation.
+ *
+ * if the psi option is set a PressureMonitor also calls the controller
+ * whenever the host or container reports memory pressure. while under
+ * pressure only the reserve is left free on top of the live set and the
+ * controller resizes straight away using the figures from the last GC
+ * rather than waiting for the next one. once pressure eases the normal
+ * headroom applies again, letting the balloons deflate.
+ */
+// package access only
+class BalloonController
+{
+    /**
+     * the stream to which controller decisions are logged
+     */
+    private PrintStream out;
+
+    /**
+     * percentage of the application live set to leave free
+     */
+    private long headroom;
+
+    /**
+     * minimum number of bytes to leave free on top of the application live set
+     */
+    private long reserve;
+
+    /**
+     * maximum number of bytes to inflate by at any one GC
+     */
+    private long inflateRate;
+
+    /**
+     * maximum number of bytes to deflate by at any one GC
+     */
+    private long deflateRate;
+
+    /**
+     * differences between the current and target balloon size smaller
+     * than this many bytes are ignored
+     */
+    private long hysteresis;
+
+    /**
+     * time in msecs for which inflation is suspended after a back off
+     */
+    private long backoffInterval;
+
+    /**
+     * bytes released by each emergency deflation
+     */
+    private long emergencyRelease;
+
+    /**
+     * percentage of the tenured max which triggers an emergency deflation
+     */
+    private long critical;
+
+    /**
+     * number of emergency deflations and the bytes they released as last
+     * seen by gcEnd
+     */
+    private long emergencyCount = 0;
+    private long emergencyBytes = 0;
+
+    /**
+     * the tenured pool of a concurrent collector whose usage is watched
+     * between GCs, its max size in bytes and its current usage threshold,
+     * or null if only its usage after a GC is watched
+     */
+    private MemoryPoolMXBean usagePool = null;
+    private long usagePoolMax = 0;
+    private long usageThreshold = 0;
+
+    /**
+     * buffer into which the emergency deflation counts are read
+     */
+    private long[] emergencyStats = new long[2];
+
+    /**
+     * true from when memory pressure is reported until it eases
+     */
+    private boolean underPressure = false;
+
+    /**
+     * number of times memory pressure has been reported
+     */
+    private long pressureEvents = 0;
+
+    /**
+     * bytes a concurrent collector sees allocated while a cycle runs as
+     * passed to the last gcEnd call, 0 for stop the world collectors
+     */
+    private long cycleBytes = 0;
+
+    /**
+     * the free space left for allocation during a cycle as last logged
+     */
+    private long loggedCycleFree = 0;
+
+    /**
+     * tenured live, running average live and max sizes in bytes passed
+     * to the last gcEnd call, all -1 until the first call
+     */
+    private long lastLive = -1;
+    private long lastLiveAverage = -1;
+    private long lastMax = -1;
+
+    /**
+     * tenured live size in bytes after the last old GC or -1 if none seen yet
+     */
+    private long oldLive = -1;
+
+    /**
+     * balloon bytes at the time of the last old GC
+     */
+    private long oldBalloonBytes = 0;
+
+    /**
+     * end time of the last young GC in msecs or -1 if none seen yet
+     */
+    private long lastYoungEnd = -1;
+
+    /**
+     * exponentially weighted moving average of the interval between
+     * young GCs in msecs
+     */
+    private double youngInterval = 0D;
+
+    /**
+     * the young GC interval before the current run of inflations began
+     */
+    private double youngIntervalAtInflate = 0D;
+
+    /**
+     * bytes added by the most recent inflation, reset to zero once
+     * inflation has been in place for backoffInterval msecs
+     */
+    private long lastInflateBytes = 0;
+
+    /**
+     * time in msecs of the most recent inflation
+     */
+    private long lastInflateTime = 0;
+
+    /**
+     * inflation is suspended until this time in msecs
+     */
+    private long backoffUntil = 0;
+
+    /**
+     * total bytes added by inflation since the controller started
+     */
+    private long inflatedBytes = 0;
+
+    /**
+     * total bytes released by deflation since the controller started
+     */
+    private long deflatedBytes = 0;
+
+    /**
+     * number of times inflation has been backed off
+     */
+    private long backoffCount = 0;
+
+    /**
+     * true if balloon residency is checked after each GC
+     */
+    private boolean verify;
+
+    /**
+     * buffer into which the native agent reports each balloon's mapped
+     * bytes, resident bytes and move count. grown as balloons are added
+     */
+    private long[] residency = new long[0];
+
+    /**
+     * bytes of whole balloon pages, how many of those were resident and
+     * how many moved balloons had resident pages at the last successful
+     * check. all -1 until the first check
+     */
+    private long mappedBytes = -1;
+    private long residentBytes = -1;
+    private long refaultedCount = -1;
+
+    /**
+     * the number of fields reported for each balloon by the native agent
+     */
+    private final static int VERIFY_FIELDS = 3;
+
+    /**
+     * the most partly resident balloons listed individually in the log
+     */
+    private final static int VERIFY_REPORTED = 8;
+
+    /**
+     * weight given to the latest sample when updating youngInterval
+     */
+    private final static double INTERVAL_WEIGHT = 0.2D;
+
+    /**
+     * multiple of the bytes allocated during a concurrent cycle which is
+     * left free
+     */
+    private final static long CYCLE_MARGIN = 2;
+
+    /**
+     * inflation is deemed to have caused extra young GCs if the young
+     * GC interval drops below this fraction of its value at inflation
+     */
+    private final static double BACKOFF_RATIO = 2D / 3D;
+
+    /**
+     * @param options the agent options
+     * @param out the stream to which decisions are logged
+     * @param tenuredPool the name of the tenured memory pool
+     * @param concurrent true if the collector runs concurrent cycles
+     */
+    public BalloonController(AgentOptions options, PrintStream out, String tenuredPool, boolean concurrent)
+    {
+        this.out = out;
+        headroom = options.getLong("headroom", 25);
+        reserve = options.getSize("reserve", 64L * BalloonManager.MBs);
+        inflateRate = options.getSize("inflate", 32L * BalloonManager.MBs);
+        deflateRate = options.getSize("deflate", 64L * BalloonManager.MBs);
+        hysteresis = options.getSize("hysteresis", 16L * BalloonManager.MBs);
+        backoffInterval = options.getTime("backoff", 60 * 1000L);
+        // inflation works a balloon at a time so always allow at least one
+        inflateRate = Math.max(inflateRate, BalloonManager.balloonSize());
+        verify = options.isSet("verify");
+        emergencyRelease = options.getSize("emergency", deflateRate);
+        critical = options.getLong("critical", 95);
+        if (critical < 0 || critical >= 100) {
+            out.printf("Balloon controller: critical occupancy must be under 100%%, ignoring %d%%\n", critical);
+            critical = 0;
+        }
+        BalloonManager.setEmergencyRelease(emergencyRelease);
+        if (emergencyRelease > 0 && critical > 0 && !watchOccupancy(tenuredPool, concurrent)) {
+            out.printf("Balloon controller: cannot watch occupancy of pool %s, only deflating on heap exhaustion\n", tenuredPool);
+        }
+        out.printf("Balloon controller: headroom %d%% reserve %dKB inflate %dKB deflate %dKB hysteresis %dKB backoff %d secs balloon %dKB emergency %dKB critical %d%%\n",
+                headroom, reserve / 1024, inflateRate / 1024, deflateRate / 1024, hysteresis / 1024, backoffInterval / 1000,
+                BalloonManager.balloonSize() / 1024, emergencyRelease / 1024, critical);
+    }
+
+    /**
+     * ask the JDK to notify us whenever the tenured pool is still above
+     * the critical occupancy after a GC and, for a concurrent collector,
+     * as soon as an allocation takes it over. the notification is
+     * delivered on the JMX notification thread so the deflation does not
+     * wait for the agent thread to process the GC.
+     *
+     * a stop the world collector's tenured usage includes whatever was
+     * promoted since the last old GC, most of which may be garbage, and
+     * a full GC always runs before the heap is exhausted so only the
+     * usage after a GC is watched.
+     *
+     * @return true if the pool supports a collection usage threshold
+     */
+    private boolean watchOccupancy(String tenuredPool, boolean concurrent)
+    {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals(tenuredPool) && pool.isCollectionUsageThresholdSupported()) {
+                long max = pool.getUsage().getMax();
+                if (max <= 0) {
+                    return false;
+                }
+                pool.setCollectionUsageThreshold(max / 100 * critical);
+                if (concurrent && pool.isUsageThresholdSupported()) {
+                    usagePool = pool;
+                    usagePoolMax = max;
+                    usageThreshold = max / 100 * critical;
+                    pool.setUsageThreshold(usageThreshold);
+                }
+                NotificationEmitter emitter = (NotificationEmitter)ManagementFactory.getMemoryMXBean();
+                emitter.addNotificationListener(new OccupancyListener(), null, tenuredPool);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * listener which deflates as soon as the tenured pool is reported
+     * over its collection usage or usage threshold
+     */
+    private static class OccupancyListener implements NotificationListener
+    {
+        public void handleNotification(Notification notification, Object handback)
+        {
+            String type = notification.getType();
+            if (!type.equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED) &&
+                    !type.equals(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED)) {
+                return;
+            }
+            MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData)notification.getUserData());
+            if (info.getPoolName().equals(handback)) {
+                BalloonManager.emergencyRelease();
+            }
+        }
+    }
+
+    /**
+     * called from MemoryManager.gcEnd once the GC statistics have been updated
+     *
+     * @param end the end time of the GC in msecs
+     * @param isYoungGC true if a young GC has happened since the last call
+     * @param isOldGC true if an old GC has happened since the last call
+     * @param live the tenured live size in bytes after the GC
+     * @param liveAverage the running average tenured live size in bytes
+     * @param max the maximum tenured size in bytes
+     * @param cycleBytes the bytes estimated to be allocated while a
+     * concurrent collector's cycle runs or 0 for other collectors
+     */
+    public void gcEnd(long end, boolean isYoungGC, boolean isOldGC, long live, long liveAverage, long max, long cycleBytes)
+    {
+        if (isYoungGC) {
+            if (lastYoungEnd >= 0) {
+                long interval = end - lastYoungEnd;
+                if (youngInterval == 0D) {
+                    youngInterval = interval;
+                } else {
+                    youngInterval += INTERVAL_WEIGHT * (interval - youngInterval);
+                }
+            }
+            lastYoungEnd = end;
+        }
+
+        BalloonManager.emergencyReleases(emergencyStats);
+        if (emergencyStats[0] != emergencyCount) {
+            // the heap ran short so hold off putting the balloons back
+            out.printf("Balloon controller: %d emergency deflations released %dKB, backing off\n",
+                    emergencyStats[0] - emergencyCount, (emergencyStats[1] - emergencyBytes) / 1024);
+            emergencyCount = emergencyStats[0];
+            emergencyBytes = emergencyStats[1];
+            lastInflateBytes = 0;
+            backoffUntil = end + backoffInterval;
+        }
+
+        if (lastInflateBytes > 0) {
+            if (youngIntervalAtInflate > 0D && youngInterval < youngIntervalAtInflate * BACKOFF_RATIO) {
+                // inflating has made the young gen collect more often so undo the last step
+                out.printf("Balloon controller: young GC interval fell from %.1f to %.1f msecs, backing off\n",
+                        youngIntervalAtInflate, youngInterval);
+                deflate(lastInflateBytes);
+                lastInflateBytes = 0;
+                backoffUntil = end + backoffInterval;
+                backoffCount++;
+                return;
+            }
+            if (end - lastInflateTime > backoffInterval) {
+                // the last inflation has bedded in
+                lastInflateBytes = 0;
+            }
+        }
+
+        long balloonBytes = BalloonManager.balloonBytes();
+
+        if (isOldGC) {
+            oldLive = live;
+            oldBalloonBytes = balloonBytes;
+        }
+
+        lastLive = live;
+        lastLiveAverage = liveAverage;
+        lastMax = max;
+        this.cycleBytes = cycleBytes;
+        if (Math.abs(cycleBytes * CYCLE_MARGIN - loggedCycleFree) >= hysteresis) {
+            loggedCycleFree = cycleBytes * CYCLE_MARGIN;
+            out.printf("Balloon controller: leaving %dKB free for allocation during a GC cycle\n", loggedCycleFree / 1024);
+        }
+        if (usagePool != null) {
+            // a cycle which starts once the pool is this full may run out
+            // before it frees anything. zero would disable the threshold
+            long threshold = Math.min(usagePoolMax / 100 * critical, usagePoolMax - cycleBytes);
+            if (threshold > 0 && threshold != usageThreshold) {
+                usageThreshold = threshold;
+                usagePool.setUsageThreshold(threshold);
+            }
+        }
+        resize(end, live, liveAverage, max);
+    }
+
+    /**
+     * called from MemoryManager.pressure when a PSI trigger fires
+     *
+     * @param now the current JVM uptime in msecs
+     */
+    public void pressure(long now)
+    {
+        pressureEvents++;
+        if (!underPressure) {
+            out.printf("Balloon controller: memory pressure reported, only leaving %dKB free\n", reserve / 1024);
+            underPressure = true;
+        }
+        if (lastMax >= 0) {
+            resize(now, lastLive, lastLiveAverage, lastMax);
+        }
+    }
+
+    /**
+     * called from MemoryManager.pressure when no PSI trigger has fired
+     * for a while
+     *
+     * @param now the current JVM uptime in msecs
+     */
+    public void pressureEased(long now)
+    {
+        if (!underPressure) {
+            return;
+        }
+        out.printf("Balloon controller: memory pressure eased, leaving %d%% headroom free\n", headroom);
+        underPressure = false;
+        if (lastMax >= 0) {
+            resize(now, lastLive, lastLiveAverage, lastMax);
+        }
+    }
+
+    /**
+     * inflate or deflate towards the target balloon size for the supplied
+     * tenured sizes
+     *
+     * @param now the current time in msecs
+     * @param live the tenured live size in bytes after the last GC
+     * @param liveAverage the running average tenured live size in bytes
+     * @param max the maximum tenured size in bytes
+     */
+    private void resize(long now, long live, long liveAverage, long max)
+    {
+        long balloonBytes = BalloonManager.balloonBytes();
+
+        // balloons show up as tenured live data once they have been promoted.
+        // if some of them are still in the young gen we cannot tell how much
+        // of the live set belongs to the application so hold off inflating
+        boolean balloonsTenured = (live >= balloonBytes);
+
+        // the tenured size after a young GC includes any garbage promoted since
+        // the last old GC so once we have seen an old GC use the size it left
+        // behind. until then fall back to the running average.
+        long appLive;
+        if (oldLive >= 0) {
+            appLive = oldLive - oldBalloonBytes;
+        } else {
+            appLive = Math.max(live, liveAverage) - balloonBytes;
+        }
+        if (appLive < 0) {
+            appLive = 0;
+        }
+        // whatever else is left free a concurrent cycle needs room for
+        // the allocation it sees before it frees anything
+        long cycleFree = cycleBytes * CYCLE_MARGIN;
+        long free = (underPressure ? reserve : Math.max(appLive * headroom / 100, reserve)) + cycleFree;
+        long target = max - (appLive + free);
+        if (critical > 0) {
+            // never inflate the tenured gen up to the critical occupancy
+            target = Math.min(target, max / 100 * critical - appLive - cycleFree - hysteresis);
+        }
+        if (target < 0) {
+            target = 0;
+        }
+        long delta = target - balloonBytes;
+
+        if (Math.abs(delta) < hysteresis) {
+            return;
+        }
+
+        if (delta > 0) {
+            if (!balloonsTenured || now < backoffUntil) {
+                return;
+            }
+            long added = inflate(Math.min(delta, inflateRate));
+            if (added > 0) {
+                if (lastInflateBytes == 0) {
+                    // compare against the interval from before this run of inflations
+                    youngIntervalAtInflate = youngInterval;
+                }
+                lastInflateBytes = added;
+                lastInflateTime = now;
+            }
+        } else {
+            deflate(Math.min(-delta, deflateRate));
+        }
+    }
+
+    public long inflatedBytes() { return inflatedBytes; }
+    public long deflatedBytes() { return deflatedBytes; }
+    public long backoffCount() { return backoffCount; }
+    public long mappedBytes() { return mappedBytes; }
+    public long residentBytes() { return residentBytes; }
+    public long reclaimedBytes() { return (mappedBytes < 0 ? -1 : mappedBytes - residentBytes); }
+    public long refaultedCount() { return refaultedCount; }
+    public long emergencyCount() { return emergencyCount; }
+    public long emergencyBytes() { return emergencyBytes; }
+    public long pressureEvents() { return pressureEvents; }
+
+    /**
+     * if verification is enabled check which pages of each balloon are
+     * actually resident so that what inflating was meant to hand back
+     * to the OS can be compared with what it did. balloons with resident
+     * pages and the totals are logged whenever the totals change.
+     *
+     * called from MemoryManager.gcEnd after gcEnd
+     */
+    public void verify()
+    {
+        if (!verify) {
+            return;
+        }
+        int count = BalloonManager.balloonCount();
+        if (residency.length < count * VERIFY_FIELDS) {
+            residency = new long[count * VERIFY_FIELDS];
+        }
+        int verified = BalloonManager.verifyResidency(residency);
+        if (verified < 0) {
+            // a GC may have moved balloons while they were checked so
+            // keep the last results and check again next time
+            return;
+        }
+        long mapped = 0;
+        long resident = 0;
+        long refaulted = 0;
+        for (int i = 0; i < verified; i++) {
+            int base = i * VERIFY_FIELDS;
+            mapped += residency[base];
+            resident += residency[base + 1];
+            if (residency[base + 1] > 0 && residency[base + 2] > 0) {
+                // the balloon was released at its old location but a GC
+                // moved it onto pages which are in use
+                refaulted++;
+            }
+        }
+        if (mapped == mappedBytes && resident == residentBytes && refaulted == refaultedCount) {
+            return;
+        }
+        mappedBytes = mapped;
+        residentBytes = resident;
+        refaultedCount = refaulted;
+        int reported = 0;
+        for (int i = 0; i < verified && reported < VERIFY_REPORTED; i++) {
+            int base = i * VERIFY_FIELDS;
+            if (residency[base + 1] > 0) {
+                out.printf("Balloon controller: balloon %d resident %dKB of %dKB after %d moves\n",
+                        i, residency[base + 1] / 1024, residency[base] / 1024, residency[base + 2]);
+                reported++;
+            }
+        }
+        out.printf("Balloon controller: verified %d balloons resident %dKB released %dKB of %dKB, %d refaulted after moving\n",
+                verified, resident / 1024, (mapped - resident) / 1024, mapped / 1024, refaulted);
+    }
+
+    /**
+     * create balloons to fill up to bytes of heap
+     * @return the number of bytes actually added
+     */
+    private long inflate(long bytes)
+    {
+        long added = BalloonManager.inflate(bytes);
+        inflatedBytes += added;
+        if (added > 0) {
+            out.printf("Balloon controller: inflated %dKB to %d balloons (%dKB)\n",
+                    added / 1024, BalloonManager.balloonCount(), BalloonManager.balloonBytes() / 1024);
+        }
+        return added;
+    }
+
+    /**
+     * delete balloons releasing up to bytes of heap
+     * @return the number of bytes actually released
+     */
+    private long deflate(long bytes)
+    {
+        long removed = BalloonManager.deflate(bytes);
+        deflatedBytes += removed;
+        if (removed > 0) {
+            out.printf("Balloon controller: deflated %dKB to %d balloons (%dKB)\n",
+                    removed / 1024, BalloonManager.balloonCount(), BalloonManager.balloonBytes() / 1024);
+        }
+        return removed;
+    }
+}
@@ -23,8 +23,6 @@
 
 package com.redhat.openjdk.balloon;
 
-import java.util.Stack;
-
 /**
  * Class which allocates and deallocates balloon objects
  * in order to fill up heap space with pages which are
@@ -36,62 +34,315 @@ class BalloonManager
     // useful units
     public final static int KBs = 1024;
     public final static int MBs = KBs * 1024;
-    public final static int BALLOON_SIZE = 1 * MBs;
+    public final static int DEFAULT_BALLOON_SIZE = 1 * MBs;
+    public final static int MAX_BALLOON_SIZE = 1024 * MBs;
 
-    // a private wrapper for the byte arrays we want to map and demap
-    private static class Balloon {
+    // the size of the byte array allocated for each balloon
+    // n.b. only changed at init before any balloons are created
+    private static int balloonSize = DEFAULT_BALLOON_SIZE;
 
-        public byte[] data;
-        public Balloon() {
-            data = new byte[BALLOON_SIZE];
-        }
-    }
+    // how many times to try registering or unregistering a batch of
+    // balloons when GCs keep interrupting
+    private final static int BATCH_ATTEMPTS = 3;
+
+    // n.b. once registered a balloon is only referenced by a native
+    // global ref. that allows an emergency deflation to release
+    // balloons from any thread without the Java side being involved
+
+    // the batch of balloons currently being registered. reused so that
+    // inflating does not allocate anything beyond the balloons
+    // n.b. only inflated by the controller which serializes calls
+    private static byte[][] batch = new byte[0][];
+
+    /**
+     * Register the first count balloon memory buffers in one go
+     * @param buffers the buffers, all balloonSize bytes long
+     * @param count the number of buffers to register
+     * @return true if a GC occurred while registering in which case
+     * none of the buffers are registered ow false
+     */
+    private static native boolean registerBalloons(byte[][] buffers, int count);
+
+    /**
+     * Unregister the count most recently registered balloon memory buffers
+     * @param count the number of buffers to unregister
+     * @return the number of buffers unregistered, which may be fewer than
+     * count if an emergency deflation got in first, or -1 if a GC occurred
+     * while unregistering in which case none of them are unregistered
+     */
+    private static native int unregisterBalloons(int count);
+
+    /**
+     * @return the number of balloons currently registered
+     */
+    private static native int countBalloons();
 
-    // the list of balloons we currently have allocated
-    private final static Stack<Balloon> balloons = new Stack<Balloon>();
+    /**
+     * Set how many balloons an emergency deflation releases
+     * @param count the number of balloons or 0 to disable emergency deflation
+     */
+    private static native void setEmergencyBalloons(int count);
+
+    /**
+     * Release balloons straight away from the calling thread
+     * @return the number of balloons released
+     */
+    private static native int emergencyDeflate();
+
+    /**
+     * Read the emergency deflation counts
+     * @param stats filled with the number of emergency deflations and
+     * the number of balloons they released
+     */
+    private static native void emergencyStats(long[] stats);
+
+    /**
+     * Register a PSI trigger on a pressure file
+     * @param path the pressure file
+     * @param stallUsecs how long tasks must stall on memory to fire it
+     * @param windowUsecs the window over which the stall is measured
+     * @return true if the trigger was registered
+     */
+    private static native boolean addPressureTrigger(String path, long stallUsecs, long windowUsecs);
+
+    /**
+     * Wait for a registered PSI trigger to fire
+     * @param timeoutMillis the longest time to wait
+     * @return the number of triggers which fired, 0 on timeout or -1 if
+     * the triggers cannot be polled
+     */
+    private static native int waitPressure(int timeoutMillis);
 
     /**
-     * Register a balloon memory buffer
-     * @param buffer
-     * @return true if a GC occurred while registering the balloon ow false
+     * Check which pages of each registered balloon are resident
+     * @param results filled with the mapped bytes, resident bytes and move
+     * count of each balloon, most recently registered first
+     * @return the number of balloons reported or -1 if a GC occurred
+     * while checking
      */
-    private static native boolean registerBalloon(byte[] buffer);
+    private static native int verifyBalloons(long[] results);
 
     /**
-     * Unregister a balloon memory buffer
-     * @param buffer
-     * @return true if a GC occurred while registering the balloon ow false
+     * Find how the native library releases balloon data areas
+     * @return the size of the aligned blocks of a balloon's data area
+     * which are released, either the page size or the huge page size
      */
-    private static native boolean unregisterBalloon(byte[] buffer);
+    private static native long balloonAlignment();
 
     /**
-     * Create a balloon on the java heap and register it,
+     * Set up the native library to track balloons when it was loaded by
+     * the Java agent rather than as a JVMTI agent
+     * @param options the agent option string
+     * @return true if balloons can be registered ow false
+     */
+    private static native boolean attachAgent(String options);
+
+    /**
+     * Clear the flag the native library sets when a GC happens so that
+     * balloon registration is only interrupted by subsequent GCs
+     */
+    private static native void clearInterrupted();
+
+    /**
+     * Release the pages of any balloons moved by a GC since the last
+     * call. endGC only records the moves so the work is done outside
+     * the GC pause
+     */
+    private static native void remapBalloons();
+
+    /**
+     * Make the native library available for ballooning when running as
+     * a Java agent. if the library was loaded as a JVMTI agent it is
+     * used as is otherwise it is loaded from libPath or, if that is null,
+     * from java.library.path
      * n.b. package-private access
+     * @return true if balloons can be registered ow false
      */
-    static boolean createBalloon() {
-        Balloon balloon = new Balloon();
-        boolean result = registerBalloon(balloon.data);
-        if (!result) {
-            balloons.push(balloon);
+    static boolean attach(String libPath, String options) {
+        try {
+            return attachAgent(options);
+        } catch (UnsatisfiedLinkError e) {
+            // not loaded as a JVMTI agent
+        }
+        try {
+            if (libPath != null) {
+                System.load(libPath);
+            } else {
+                System.loadLibrary("balloon");
+            }
+            return attachAgent(options);
+        } catch (UnsatisfiedLinkError e) {
+            System.out.printf("BalloonManager : cannot load balloon library : %s\n", e.getMessage());
+            return false;
         }
-        return result;
     }
 
+    /**
+     * Note that GC notification processing has started and release the
+     * pages of balloons the GC moved. only needed when driven by GC
+     * notifications. when loaded as a JVMTI agent the agent thread does
+     * both before calling MemoryManager.gcEnd
+     * n.b. package-private access
+     */
+    static void gcNotified() {
+        clearInterrupted();
+        remapBalloons();
+    }
 
     /**
-     * Remove a balloon making it's data area available for reuse
+     * Create as many balloons as fit in bytes of heap and register them
+     * with a single native call. if a GC interrupts registration the
+     * GC has already been seen by the native library so the whole batch
+     * is retried up to BATCH_ATTEMPTS times.
      * n.b. package-private access
+     * @return the number of bytes of balloon actually added, either all
+     * of them or 0 if GCs kept interrupting
      */
-    static boolean deleteBalloon() {
-        if(balloons.size() == 0) {
-            // should not happen
-            return false;
+    static long inflate(long bytes) {
+        int count = (int)(bytes / balloonSize);
+        if (count <= 0) {
+            return 0;
+        }
+        if (batch.length < count) {
+            batch = new byte[count][];
+        }
+        for (int i = 0; i < count; i++) {
+            batch[i] = new byte[balloonSize];
         }
-        Balloon balloon = balloons.firstElement();
-        boolean result = unregisterBalloon(balloon.data);
-        if (!result) {
-            balloons.pop();
+        boolean registered = false;
+        for (int attempt = 0; attempt < BATCH_ATTEMPTS && !registered; attempt++) {
+            // allocating the batch may itself have caused GCs
+            clearInterrupted();
+            registered = !registerBalloons(batch, count);
         }
-        return result;
+        // drop the references. registered arrays are now held by the
+        // native library and the others can be collected
+        for (int i = 0; i < count; i++) {
+            batch[i] = null;
+        }
+        return (registered ? (long)count * balloonSize : 0);
+    }
+
+    /**
+     * Remove enough of the most recently created balloons to release
+     * bytes of heap, rounding up to a whole balloon, with a single native
+     * call, retrying up to BATCH_ATTEMPTS times if GCs interrupt
+     * n.b. package-private access
+     * @return the number of bytes of balloon actually removed or 0 if
+     * GCs kept interrupting
+     */
+    static long deflate(long bytes) {
+        int count = (int)Math.min((bytes + balloonSize - 1) / balloonSize, (long)balloonCount());
+        if (count <= 0) {
+            return 0;
+        }
+        int removed = -1;
+        for (int attempt = 0; attempt < BATCH_ATTEMPTS && removed < 0; attempt++) {
+            clearInterrupted();
+            removed = unregisterBalloons(count);
+        }
+        return (removed > 0 ? (long)removed * balloonSize : 0);
+    }
+
+    /**
+     * Set how much heap an emergency deflation releases, rounding up to
+     * a whole balloon
+     * n.b. package-private access
+     */
+    static void setEmergencyRelease(long bytes) {
+        setEmergencyBalloons((int)Math.min((bytes + balloonSize - 1) / balloonSize, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Release the configured emergency amount of balloons straight away.
+     * safe to call from any thread.
+     * n.b. package-private access
+     * @return the number of bytes of balloon released
+     */
+    static long emergencyRelease() {
+        return (long)emergencyDeflate() * balloonSize;
+    }
+
+    /**
+     * Read the emergency deflation counts
+     * n.b. package-private access
+     * @param stats filled with the number of emergency deflations and the
+     * bytes of balloon they released
+     */
+    static void emergencyReleases(long[] stats) {
+        emergencyStats(stats);
+        stats[1] *= balloonSize;
+    }
+
+    /**
+     * Ask to be told when tasks stall on memory for more than stallMillis
+     * in any windowMillis window according to the supplied pressure file
+     * n.b. package-private access
+     * @return true if the trigger was registered
+     */
+    static boolean watchPressure(String path, long stallMillis, long windowMillis) {
+        return addPressureTrigger(path, stallMillis * 1000, windowMillis * 1000);
+    }
+
+    /**
+     * Block until memory pressure is reported by a trigger registered
+     * using watchPressure
+     * n.b. package-private access
+     * @return the number of triggers which fired, 0 if timeoutMillis
+     * passed without any firing or -1 if they can no longer be watched
+     */
+    static int awaitPressure(int timeoutMillis) {
+        return waitPressure(timeoutMillis);
+    }
+
+    /**
+     * Check the residency of the registered balloons' pages
+     * n.b. package-private access
+     * @return the number of balloons reported in results or -1 if a GC
+     * occurred while checking
+     */
+    static int verifyResidency(long[] results) {
+        return verifyBalloons(results);
+    }
+
+    /**
+     * @return the size of the aligned blocks of each balloon's data area
+     * which are released
+     * n.b. package-private access
+     */
+    static long alignment() {
+        return balloonAlignment();
+    }
+
+    /**
+     * set the size of subsequently created balloons
+     * n.b. package-private access
+     */
+    static void setBalloonSize(int size) {
+        balloonSize = size;
+    }
+
+    /**
+     * @return the size of each balloon in bytes
+     * n.b. package-private access
+     */
+    static int balloonSize() {
+        return balloonSize;
+    }
+
+    /**
+     * @return the number of balloons currently allocated
+     * n.b. package-private access
+     */
+    static int balloonCount() {
+        return countBalloons();
+    }
+
+    /**
+     * @return the number of bytes of heap currently occupied by balloons
+     * n.b. package-private access
+     */
+    static long balloonBytes() {
+        return (long)countBalloons() * balloonSize;
     }
 }
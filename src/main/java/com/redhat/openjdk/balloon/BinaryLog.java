@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * compact binary log holding one fixed size StatsRecord per GC. records
+ * are appended to memory mapped segments of the log file so appending a
+ * record costs a few memory writes rather than a write syscall.
+ *
+ * the file starts with a header laid out as follows
+ *
+ *   long   magic
+ *   int    version
+ *   int    header size in bytes (a multiple of 8)
+ *   int    field count
+ *   int    record size in bytes
+ *   long   record count, updated after each record is appended
+ *   long   start time in msecs since the epoch
+ *   string GC type
+ *   then for each field
+ *     byte   'D' if the field holds a double otherwise 'J'
+ *     string field name
+ *
+ * the StatsField fields come first followed by the PoolField fields
+ * for each memory pool named as described in PoolField.
+ *
+ * where each string is a short length followed by that many UTF-8 bytes.
+ * records follow the header, each as field count longs. the file is
+ * extended one segment at a time and any trailing space in the last
+ * segment is zero filled so readers must use the record count.
+ *
+ * StatsDecoder converts a binary log back to text or to CSV.
+ */
+// package access only
+class BinaryLog
+{
+    public final static long MAGIC = 0x42414c4c4f4f4e53L; // "BALLOONS"
+    public final static int VERSION = 1;
+
+    /**
+     * header offset of the record count
+     */
+    public final static int COUNT_OFFSET = 24;
+
+    /**
+     * approximate size of each mapped segment in bytes. the actual size
+     * is rounded down to a whole number of records.
+     */
+    private final static int SEGMENT_SIZE = 1024 * 1024;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer segment;
+    private int headerSize;
+    private int recordSize;
+    private int recordsPerSegment;
+    private int fieldCount;
+    private long recordCount;
+
+    /**
+     * create a new binary log. if a file already exists with the same
+     * name it is renamed by appending ".1" to its name replacing any
+     * previous file with that name.
+     *
+     * @return the log or null if it could not be created
+     */
+    public static BinaryLog open(String filename, long startTime, String gcType, String[] poolNames)
+    {
+        File f = new File(filename);
+        if (f.exists()) {
+            File old = new File(filename + ".1");
+            old.delete();
+            f.renameTo(old);
+        }
+        try {
+            return new BinaryLog(f, startTime, gcType, poolNames);
+        } catch (IOException e) {
+            System.out.printf("BinaryLog : could not create %s : %s\n", filename, e);
+            return null;
+        }
+    }
+
+    private BinaryLog(File f, long startTime, String gcType, String[] poolNames) throws IOException
+    {
+        file = new RandomAccessFile(f, "rw");
+        channel = file.getChannel();
+        fieldCount = StatsField.COUNT + poolNames.length * PoolField.COUNT;
+        recordSize = fieldCount * 8;
+        recordsPerSegment = SEGMENT_SIZE / recordSize;
+        recordCount = 0;
+
+        // work out the header size before mapping it
+        byte[] gcTypeBytes = gcType.getBytes("UTF-8");
+        byte[][] names = new byte[fieldCount][];
+        boolean[] isDouble = new boolean[fieldCount];
+        int size = COUNT_OFFSET + 8 + 8 + 2 + gcTypeBytes.length;
+        for (int i = 0; i < fieldCount; i++) {
+            if (i < StatsField.COUNT) {
+                names[i] = StatsField.get(i).fieldName().getBytes("UTF-8");
+                isDouble[i] = StatsField.get(i).isDouble();
+            } else {
+                PoolField field = PoolField.get((i - StatsField.COUNT) % PoolField.COUNT);
+                names[i] = field.fieldName(poolNames[(i - StatsField.COUNT) / PoolField.COUNT]).getBytes("UTF-8");
+                isDouble[i] = field.isDouble();
+            }
+            size += 1 + 2 + names[i].length;
+        }
+        headerSize = (size + 7) & ~7;
+
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerSize);
+        header.putLong(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(headerSize);
+        header.putInt(fieldCount);
+        header.putInt(recordSize);
+        header.putLong(recordCount);
+        header.putLong(startTime);
+        header.putShort((short)gcTypeBytes.length);
+        header.put(gcTypeBytes);
+        for (int i = 0; i < fieldCount; i++) {
+            header.put((byte)(isDouble[i] ? 'D' : 'J'));
+            header.putShort((short)names[i].length);
+            header.put(names[i]);
+        }
+    }
+
+    /**
+     * append a record to the log mapping a new segment if needed
+     */
+    public void append(StatsRecord record)
+    {
+        int slot = (int)(recordCount % recordsPerSegment);
+        if (slot == 0) {
+            long position = headerSize + recordCount * recordSize;
+            try {
+                segment = channel.map(FileChannel.MapMode.READ_WRITE, position, (long)recordsPerSegment * recordSize);
+            } catch (IOException e) {
+                System.out.printf("BinaryLog : could not extend log : %s\n", e);
+                return;
+            }
+        }
+        int offset = slot * recordSize;
+        for (int i = 0; i < fieldCount; i++) {
+            segment.putLong(offset, record.getRaw(i));
+            offset += 8;
+        }
+        recordCount++;
+        header.putLong(COUNT_OFFSET, recordCount);
+    }
+}
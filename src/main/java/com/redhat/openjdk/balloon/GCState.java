@@ -25,10 +25,13 @@ package com.redhat.openjdk.balloon;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryManagerMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.util.List;
 
 import com.sun.management.GarbageCollectorMXBean;
 import com.sun.management.GcInfo;
+import com.sun.management.HotSpotDiagnosticMXBean;
 
 
 /**
@@ -54,18 +57,29 @@ abstract class GCState
                 if (beanName.equals("PS Scavenge") || beanName.equals("PS MarkSweep")) {
                     theGCState = new PSState();
                     break;
-                } else if (beanName.equals("Copy") || beanName.equals("MarkSweepConpact")) {
+                } else if (beanName.equals("Copy") || beanName.equals("MarkSweepCompact")) {
                     theGCState = new SerialState();
                     break;
                 } else if (beanName.equals("G1 Young Generation") || beanName.equals("G1 Old Generation")) {
-                    // theGCState = new G1State();
-                    System.out.printf("GCState : cannot run with G1 GC!\n");
+                    theGCState = new G1State();
+                    break;
+                } else if (beanName.equals("ZGC Cycles") || beanName.equals("ZGC Pauses")) {
+                    theGCState = new ZState();
+                    break;
+                } else if (beanName.equals("ZGC Minor Cycles") || beanName.equals("ZGC Major Cycles")) {
+                    theGCState = new ZGenerationalState();
+                    break;
+                } else if (beanName.equals("Shenandoah Cycles") || beanName.equals("Shenandoah Pauses")) {
+                    theGCState = new ShenandoahState();
                     break;
                 } else if (beanName.equals("ParNew") || beanName.equals("ConcurrentMarkSweep")) {
                     System.out.printf("GCState : cannot run with CMS GC!\n");
                     break;
                 }
             }
+            if (theGCState != null) {
+                theGCState.resolvePools();
+            }
         }
 
         return theGCState;
@@ -95,6 +109,29 @@ abstract class GCState
      */
     protected GarbageCollectorMXBean oldGC;
 
+    /**
+     * for concurrent collectors the gc mx beans which report pauses or
+     * null for stop the world collectors. for concurrent collectors
+     * youngGC and oldGC report whole concurrent cycles.
+     */
+    protected GarbageCollectorMXBean[] pauseGCs;
+
+    /**
+     * the largest young gen committed size seen so far
+     */
+    private long youngCommittedHi = 0;
+
+    /**
+     * allowance for the array header when sizing balloons to fit a region or page
+     */
+    protected final static int ARRAY_HEADER_ALLOWANCE = 64;
+
+    /**
+     * number of blocks in a default balloon when the blocks are huge
+     * pages too large for the collector's default balloon size
+     */
+    protected final static int DEFAULT_BALLOON_BLOCKS = 4;
+
     /**
      * the key used to identify the eden memory pool
      */
@@ -105,8 +142,274 @@ abstract class GCState
      */
     protected String tenuredKey;
 
+    /**
+     * the key used to identify the survivor memory pool or null if its
+     * occupancy cannot be used to spot survivor overflow
+     */
+    protected String survivorKey;
+
+    /**
+     * the percentage of a survivor space the JVM aims to fill at a young
+     * GC before it lowers the tenuring threshold
+     */
+    private int targetSurvivorRatio = -1;
+
+    /**
+     * the names of all the memory pools, heap and non-heap. HeapState
+     * holds pool usage in this order.
+     */
+    private String[] poolNames;
+
+    /**
+     * true for each pool in poolNames which is part of the heap
+     */
+    private boolean[] heapPools;
+
+    /**
+     * indices in poolNames of the eden, tenured and survivor pools or -1
+     * if the GC does not have that pool
+     */
+    private int edenIndex = -1;
+    private int tenuredIndex = -1;
+    private int survivorIndex = -1;
+
     public abstract String getType();
 
+    /**
+     * @return true if a young GC described by the supplied heap state
+     * also collected tenured space and so should be treated as an old GC
+     */
+    public boolean isMixedGC(HeapState state)
+    {
+        return false;
+    }
+
+    /**
+     * @return true if the young GC described by the supplied heap state
+     * left the survivor space fuller than the JVM aims for. objects which
+     * do not fit are promoted early so the tenured growth at such a GC is
+     * an estimate of survivor overflow.
+     */
+    public boolean survivorOverflowed(HeapState state)
+    {
+        long used = state.survivor(HeapState.YOUNG_AFTER, HeapState.USED);
+        long committed = state.survivor(HeapState.YOUNG_AFTER, HeapState.COMMITTED);
+        if (survivorKey == null || committed <= 0) {
+            return false;
+        }
+        if (targetSurvivorRatio < 0) {
+            String value = lookupVMOption("TargetSurvivorRatio");
+            try {
+                targetSurvivorRatio = (value != null ? Integer.parseInt(value) : 50);
+            } catch (NumberFormatException e) {
+                targetSurvivorRatio = 50;
+            }
+        }
+        return used * 100 > committed * targetSurvivorRatio;
+    }
+
+    /**
+     * @param poolMax the maximum size of the tenured pool reported by the GC
+     * @param youngCommitted the space committed to the young gen after the GC
+     * @return the maximum space the tenured gen can actually grow into
+     */
+    public long tenuredMax(long poolMax, long youngCommitted)
+    {
+        return poolMax;
+    }
+
+    /**
+     * @return the size in bytes to use for balloon byte arrays
+     */
+    public int balloonSize()
+    {
+        return BalloonManager.DEFAULT_BALLOON_SIZE;
+    }
+
+    /**
+     * @return the smallest balloon size in bytes for which the collector
+     * allocates balloons where it never moves them or 0 if moving them
+     * cannot be avoided
+     */
+    protected long minBalloonSize()
+    {
+        return 0;
+    }
+
+    /**
+     * work out the balloon size to use.
+     *
+     * the native agent only releases whole aligned blocks of a balloon's
+     * data area, pages or huge pages, so the size is rounded down to a
+     * whole number of blocks less an allowance for the array header.
+     * collectors which start large arrays at a region or page boundary
+     * then lay each balloon over whole blocks and only the blocks at
+     * either end are kept. with other collectors a balloon may start
+     * part way through a block so it keeps up to two blocks more.
+     *
+     * a data area shorter than two blocks may hold no whole block at
+     * all so sizes are rounded up to two blocks. when no size has been
+     * requested the collector's default is used unless the blocks are
+     * huge pages which it cannot cover twice, in which case balloons
+     * are made DEFAULT_BALLOON_BLOCKS blocks long.
+     *
+     * @param requested the requested size in bytes or 0 for the default
+     * @param alignment the block size in bytes
+     * @return the size in bytes to use for balloon byte arrays
+     */
+    public int balloonSize(long requested, long alignment)
+    {
+        if (requested <= 0) {
+            if (balloonSize() >= 2 * alignment) {
+                return balloonSize();
+            }
+            requested = DEFAULT_BALLOON_BLOCKS * alignment;
+        }
+        long size = Math.min(requested, (long)BalloonManager.MAX_BALLOON_SIZE);
+        size = Math.max(size - size % alignment, alignment) - ARRAY_HEADER_ALLOWANCE;
+        if (size < 2 * alignment) {
+            size = Math.min(2 * alignment, (long)BalloonManager.MAX_BALLOON_SIZE);
+            System.out.printf("GCState : balloons need two %dKB blocks to release one, using %dKB\n",
+                    alignment / 1024, size / 1024);
+        }
+        if (size < minBalloonSize()) {
+            System.out.printf("GCState : %dKB balloons would be moved by %s GC, using %dKB\n",
+                    size / 1024, getType(), balloonSize() / 1024);
+            return balloonSize();
+        }
+        return (int)size;
+    }
+
+    /**
+     * @return false if the agent cannot safely locate balloons in the heap
+     * under this collector in which case only stats are gathered
+     */
+    public boolean supportsBallooning()
+    {
+        return true;
+    }
+
+    /**
+     * @return the map strategy the native agent must use to hand balloon
+     * pages back to the OS under this collector or null if any will do
+     */
+    public String requiredMapStrategy()
+    {
+        return null;
+    }
+
+    /**
+     * @return true if the perf data counters which the native agent
+     * samples at each GC report the eden, survivor and tenured sizes
+     * as the GC info does, so that young GCs can be sampled without
+     * looking up the GC info
+     */
+    public boolean heapSampled()
+    {
+        return false;
+    }
+
+    /**
+     * the perf data counters do not report the pool max sizes as the GC
+     * info does so a sampled young GC derives them from the ones the GC
+     * info last reported
+     *
+     * @param edenMax the eden max size the GC info last reported
+     * @param youngMax the sampled young generation max size
+     * @param survivorSpaces the sampled capacity of both survivor spaces
+     * @return the eden max size the GC info would report
+     */
+    public long edenMax(long edenMax, long youngMax, long survivorSpaces)
+    {
+        return edenMax;
+    }
+
+    /**
+     * @param survivorMax the survivor max size the GC info last reported
+     * @param survivorCapacity the sampled survivor capacity
+     * @return the survivor max size the GC info would report
+     */
+    public long survivorMax(long survivorMax, long survivorCapacity)
+    {
+        return survivorMax;
+    }
+
+    /**
+     * @return true if the collector resizes tenured space after an old
+     * GC to keep its free space between MinHeapFreeRatio and
+     * MaxHeapFreeRatio, uncommitting what is above the max
+     */
+    public boolean honoursFreeRatios()
+    {
+        return false;
+    }
+
+    /**
+     * @return true if the young and old GC times are concurrent cycle
+     * times rather than pause times
+     */
+    public boolean isConcurrent()
+    {
+        return pauseGCs != null;
+    }
+
+    /**
+     * @return the total time in msecs spent in GC pauses. only valid for
+     * concurrent collectors.
+     */
+    public long pauseMillis()
+    {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : pauseGCs) {
+            total += bean.getCollectionTime();
+        }
+        return total;
+    }
+
+    /**
+     * tenured max for collectors where the young and old gens share one
+     * pool of regions so that the old gen pool max is the whole heap. the
+     * largest size the young gen has had is deducted to get the space
+     * actually available to tenured data. using the current size would
+     * let balloons squeeze the young gen a little further at every GC.
+     */
+    protected long sharedTenuredMax(long poolMax, long youngCommitted)
+    {
+        if (youngCommitted > youngCommittedHi) {
+            youngCommittedHi = youngCommitted;
+        }
+        return (poolMax > youngCommittedHi ? poolMax - youngCommittedHi : poolMax);
+    }
+
+    /**
+     * @return the gc mx bean with the supplied name exiting if it cannot be found
+     */
+    protected static GarbageCollectorMXBean lookupGC(String name)
+    {
+        for (java.lang.management.GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (bean instanceof com.sun.management.GarbageCollectorMXBean && bean.getName().equals(name)) {
+                return (com.sun.management.GarbageCollectorMXBean)bean;
+            }
+        }
+        System.out.printf("MemoryManager : could not locate GC %s\n", name);
+        System.exit(1);
+        return null;
+    }
+
+    /**
+     * @return the value of a VM option or null if it cannot be read
+     */
+    protected static String lookupVMOption(String name)
+    {
+        try {
+            HotSpotDiagnosticMXBean diagnostic = ManagementFactory.newPlatformMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                    "com.sun.management:type=HotSpotDiagnostic", HotSpotDiagnosticMXBean.class);
+            return diagnostic.getVMOption(name).getValue();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     /**
      * implementation of GCState for Parallel GC
      */
@@ -124,6 +427,7 @@ abstract class GCState
                 if (bean.getName().equals("PS Scavenge")) {
                     youngManager = bean;
                     edenKey = "PS Eden Space";
+                    survivorKey = "PS Survivor Space";
                 } else if (bean.getName().equals("PS MarkSweep")) {
                     oldManager = bean;
                     tenuredKey = "PS Old Gen";
@@ -163,6 +467,48 @@ abstract class GCState
         public String getType() {
             return "Parallel Scavenge";
         }
+
+        @Override
+        public boolean heapSampled()
+        {
+            return true;
+        }
+
+        /**
+         * parallel scavenge reports the committed survivor space as its
+         * max and gives eden whatever the young generation max leaves
+         * once both survivor spaces are taken out
+         */
+        @Override
+        public long edenMax(long edenMax, long youngMax, long survivorSpaces)
+        {
+            return youngMax - survivorSpaces;
+        }
+
+        @Override
+        public long survivorMax(long survivorMax, long survivorCapacity)
+        {
+            return survivorCapacity;
+        }
+
+        /**
+         * the ratios bound the old gen free space computed by the
+         * adaptive size policy so they have no effect without it
+         */
+        @Override
+        public boolean honoursFreeRatios()
+        {
+            try {
+                HotSpotDiagnosticMXBean diagnostic = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+                if (!Boolean.parseBoolean(diagnostic.getVMOption("UseAdaptiveSizePolicy").getValue())) {
+                    System.out.printf("GCState : %s GC only resizes by the heap free ratios with UseAdaptiveSizePolicy\n", getType());
+                    return false;
+                }
+            } catch (Exception e) {
+                // assume the default policy
+            }
+            return true;
+        }
     }
 
     private static class SerialState extends GCState {
@@ -179,6 +525,7 @@ abstract class GCState
                 if (bean.getName().equals("Copy")) {
                     youngManager = bean;
                     edenKey = "Eden Space";
+                    survivorKey = "Survivor Space";
                 } else if (bean.getName().equals("MarkSweepCompact")) {
                     oldManager = bean;
                     tenuredKey = "Tenured Gen";
@@ -218,11 +565,295 @@ abstract class GCState
         public String getType() {
             return "Serial";
         }
+
+        @Override
+        public boolean heapSampled()
+        {
+            return true;
+        }
+
+        @Override
+        public boolean honoursFreeRatios()
+        {
+            return true;
+        }
+    }
+
+    /**
+     * implementation of GCState for G1 GC
+     *
+     * G1 reports young and mixed pauses through the young GC bean and
+     * only full GCs through the old GC bean. a mixed pause is spotted by
+     * the old gen shrinking across a young pause.
+     *
+     * young and old regions come from the same pool so the tenured max
+     * is computed by sharedTenuredMax.
+     *
+     * balloons are sized to fill exactly one region. that makes them
+     * humongous so they are allocated straight into old regions and are
+     * never copied by young or mixed pauses.
+     */
+    private static class G1State extends GCState {
+        private int regionSize;
+
+        public G1State()
+        {
+            super();
+
+            List<MemoryManagerMXBean> memManagerBeans = ManagementFactory.getMemoryManagerMXBeans();
+            List<java.lang.management.GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+
+            // look to see which memory manager we are using
+
+            for (MemoryManagerMXBean bean : memManagerBeans) {
+                if (bean.getName().equals("G1 Young Generation")) {
+                    youngManager = bean;
+                    edenKey = "G1 Eden Space";
+                    // n.b. no survivorKey as G1 commits survivor regions to
+                    // fit what survived so the pool always looks full
+                } else if (bean.getName().equals("G1 Old Generation")) {
+                    oldManager = bean;
+                    tenuredKey = "G1 Old Gen";
+                }
+            }
+
+            for (java.lang.management.GarbageCollectorMXBean bean : gcBeans) {
+                if (bean instanceof com.sun.management.GarbageCollectorMXBean) {
+                    if (bean.getName().equals("G1 Young Generation")) {
+                        youngGC = (com.sun.management.GarbageCollectorMXBean)bean;
+                    } else if (bean.getName().equals("G1 Old Generation")) {
+                        oldGC = (com.sun.management.GarbageCollectorMXBean)bean;
+                    }
+                }
+            }
+
+            if (youngManager == null) {
+                System.out.printf("MemoryManager : could not locate young manager\n");
+                System.exit(1);
+            }
+            if (oldManager == null) {
+                System.out.printf("MemoryManager : could not locate old manager\n");
+                System.exit(1);
+            }
+
+            if (youngGC == null) {
+                System.out.printf("MemoryManager : could not locate young GC\n");
+                System.exit(1);
+            }
+            if (oldGC == null) {
+                System.out.printf("MemoryManager : could not locate old GC\n");
+                System.exit(1);
+            }
+
+            regionSize = lookupRegionSize();
+        }
+
+        @Override
+        public String getType() {
+            return "G1";
+        }
+
+        @Override
+        public boolean isMixedGC(HeapState state)
+        {
+            return state.tenured(HeapState.YOUNG_AFTER, HeapState.USED) < state.tenured(HeapState.YOUNG_BEFORE, HeapState.USED);
+        }
+
+        @Override
+        public long tenuredMax(long poolMax, long youngCommitted)
+        {
+            return sharedTenuredMax(poolMax, youngCommitted);
+        }
+
+        @Override
+        public int balloonSize()
+        {
+            if (regionSize <= 0) {
+                return super.balloonSize();
+            }
+            // anything over half a region is humongous so this is safe
+            // for any region size which is a multiple of the page size
+            return regionSize - ARRAY_HEADER_ALLOWANCE;
+        }
+
+        @Override
+        protected long minBalloonSize()
+        {
+            return (regionSize <= 0 ? super.balloonSize() : regionSize / 2 + 1);
+        }
+
+        private static int lookupRegionSize()
+        {
+            String value = lookupVMOption("G1HeapRegionSize");
+            if (value == null) {
+                System.out.printf("MemoryManager : could not determine G1 region size\n");
+                return 0;
+            }
+            return Integer.parseInt(value);
+        }
+    }
+
+    /**
+     * implementation of GCState for single generation ZGC
+     *
+     * ZGC reports each concurrent cycle through one bean and the pauses
+     * within cycles through another. a cycle collects the whole heap so
+     * it is treated as an old GC and there are no young GCs.
+     *
+     * balloons are sized so that ZGC allocates each one in its own large
+     * page. large pages are never relocated whereas the medium pages which
+     * would hold a 1MB balloon are relocated concurrently. ZGC's heap is a
+     * shared memory mapping so balloon pages are only handed back to the
+     * OS by the remove map strategy. dontneed and free just unmap them
+     * from the process, leaving them in the shared memory file.
+     */
+    private static class ZState extends GCState {
+        private final static int LARGE_BALLOON_SIZE = 8 * BalloonManager.MBs - ARRAY_HEADER_ALLOWANCE;
+        private final static long MEDIUM_OBJECT_LIMIT = 4 * BalloonManager.MBs;
+
+        public ZState()
+        {
+            super();
+            oldGC = lookupGC("ZGC Cycles");
+            oldManager = oldGC;
+            pauseGCs = new GarbageCollectorMXBean[] { lookupGC("ZGC Pauses") };
+            tenuredKey = "ZHeap";
+        }
+
+        @Override
+        public String getType() {
+            return "ZGC";
+        }
+
+        @Override
+        public int balloonSize()
+        {
+            return LARGE_BALLOON_SIZE;
+        }
+
+        @Override
+        protected long minBalloonSize()
+        {
+            // bigger than the largest object placed in a medium page
+            return MEDIUM_OBJECT_LIMIT + 1;
+        }
+
+        @Override
+        public String requiredMapStrategy()
+        {
+            return "remove";
+        }
+    }
+
+    /**
+     * implementation of GCState for generational ZGC
+     *
+     * minor and major concurrent cycles are treated as young and old GCs
+     * with pauses reported separately. the generations share the heap so
+     * the tenured max is computed by sharedTenuredMax.
+     *
+     * the native agent locates a balloon by reading the raw oop held in a
+     * JNI handle. generational ZGC stores colored pointers in handles so
+     * that address cannot be used and ballooning is disabled.
+     */
+    private static class ZGenerationalState extends GCState {
+        public ZGenerationalState()
+        {
+            super();
+            youngGC = lookupGC("ZGC Minor Cycles");
+            youngManager = youngGC;
+            oldGC = lookupGC("ZGC Major Cycles");
+            oldManager = oldGC;
+            pauseGCs = new GarbageCollectorMXBean[] { lookupGC("ZGC Minor Pauses"), lookupGC("ZGC Major Pauses") };
+            edenKey = "ZGC Young Generation";
+            tenuredKey = "ZGC Old Generation";
+        }
+
+        @Override
+        public String getType() {
+            return "ZGC Generational";
+        }
+
+        @Override
+        public long tenuredMax(long poolMax, long youngCommitted)
+        {
+            return sharedTenuredMax(poolMax, youngCommitted);
+        }
+
+        @Override
+        public boolean supportsBallooning()
+        {
+            return false;
+        }
+    }
+
+    /**
+     * implementation of GCState for Shenandoah
+     *
+     * Shenandoah reports each concurrent cycle through one bean and the
+     * pauses within cycles through another. a cycle collects the whole
+     * heap so it is treated as an old GC and there are no young GCs.
+     *
+     * balloons are sized to span more than one region so they are
+     * humongous and never evacuated. the region size options are
+     * experimental and cannot be read so the size is worked out the way
+     * Shenandoah picks it by default, heap size / 2048 clamped to the
+     * range 256KB to 32MB.
+     */
+    private static class ShenandoahState extends GCState {
+        private final static long MIN_REGION_SIZE = 256 * BalloonManager.KBs;
+        private final static long MAX_REGION_SIZE = 32 * BalloonManager.MBs;
+        private final static long TARGET_REGION_COUNT = 2048;
+
+        public ShenandoahState()
+        {
+            super();
+            oldGC = lookupGC("Shenandoah Cycles");
+            oldManager = oldGC;
+            pauseGCs = new GarbageCollectorMXBean[] { lookupGC("Shenandoah Pauses") };
+            tenuredKey = "Shenandoah";
+        }
+
+        @Override
+        public String getType() {
+            return "Shenandoah";
+        }
+
+        @Override
+        public int balloonSize()
+        {
+            long regionSize = regionSize();
+            if (regionSize <= 0) {
+                return super.balloonSize();
+            }
+            // objects bigger than a region are humongous
+            return (int)Math.max(2 * regionSize, BalloonManager.DEFAULT_BALLOON_SIZE) - ARRAY_HEADER_ALLOWANCE;
+        }
+
+        @Override
+        protected long minBalloonSize()
+        {
+            long regionSize = regionSize();
+            return (regionSize <= 0 ? super.balloonSize() : regionSize + 1);
+        }
+
+        /**
+         * @return the region size in bytes or -1 if it cannot be worked out
+         */
+        private long regionSize()
+        {
+            String value = lookupVMOption("MaxHeapSize");
+            if (value == null) {
+                return -1;
+            }
+            long regionSize = Long.highestOneBit(Long.parseLong(value) / TARGET_REGION_COUNT);
+            return Math.max(MIN_REGION_SIZE, Math.min(regionSize, MAX_REGION_SIZE));
+        }
     }
 
     public long youngCount()
     {
-        return youngGC.getCollectionCount();
+        return (youngGC != null ? youngGC.getCollectionCount() : 0);
     }
 
     public long tenuredCount()
@@ -230,9 +861,59 @@ abstract class GCState
         return oldGC.getCollectionCount();
     }
 
+    /**
+     * @return the name of the memory pool holding tenured data
+     */
+    public String tenuredPoolName()
+    {
+        return tenuredKey;
+    }
+
+    /**
+     * @return true if the named collector is the one responsible for young GCs
+     */
+    public boolean isYoungGC(String name)
+    {
+        return youngGC != null && youngGC.getName().equals(name);
+    }
+
+    /**
+     * @return true if the named collector is the one responsible for old GCs
+     */
+    public boolean isTenuredGC(String name)
+    {
+        return oldGC.getName().equals(name);
+    }
+
+    /**
+     * @return true if the named collector reports the pauses of a
+     * concurrent collector
+     */
+    public boolean isPauseGC(String name)
+    {
+        if (pauseGCs != null) {
+            for (GarbageCollectorMXBean bean : pauseGCs) {
+                if (bean.getName().equals(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the named collector reports the pauses of a
+     * generational concurrent collector's young cycles. these are always
+     * listed first in pauseGCs.
+     */
+    public boolean isYoungPauseGC(String name)
+    {
+        return pauseGCs != null && youngGC != null && pauseGCs[0].getName().equals(name);
+    }
+
     public GcInfo lastYoungInfo()
     {
-        return youngGC.getLastGcInfo();
+        return (youngGC != null ? youngGC.getLastGcInfo() : null);
     }
 
     public GcInfo lastTenuredInfo()
@@ -240,13 +921,49 @@ abstract class GCState
         return oldGC.getLastGcInfo();
     }
 
-    public String edenKey()
+    /**
+     * look up the memory pools once the subclass has set the pool keys
+     */
+    private void resolvePools()
     {
-        return edenKey;
+        List<MemoryPoolMXBean> poolBeans = ManagementFactory.getMemoryPoolMXBeans();
+        poolNames = new String[poolBeans.size()];
+        heapPools = new boolean[poolNames.length];
+        for (int i = 0; i < poolNames.length; i++) {
+            poolNames[i] = poolBeans.get(i).getName();
+            heapPools[i] = (poolBeans.get(i).getType() == MemoryType.HEAP);
+            if (poolNames[i].equals(edenKey)) {
+                edenIndex = i;
+            } else if (poolNames[i].equals(tenuredKey)) {
+                tenuredIndex = i;
+            } else if (poolNames[i].equals(survivorKey)) {
+                survivorIndex = i;
+            }
+        }
     }
 
-    public String tenuredKey()
+    public String[] poolNames()
     {
-        return tenuredKey;
+        return poolNames;
+    }
+
+    public boolean[] heapPools()
+    {
+        return heapPools;
+    }
+
+    public int edenIndex()
+    {
+        return edenIndex;
+    }
+
+    public int tenuredIndex()
+    {
+        return tenuredIndex;
+    }
+
+    public int survivorIndex()
+    {
+        return survivorIndex;
     }
 }
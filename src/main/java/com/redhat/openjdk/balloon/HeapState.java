@@ -25,91 +25,57 @@ package com.redhat.openjdk.balloon;
 
 import com.sun.management.GcInfo;
 
-import java.io.PrintStream;
 import java.lang.management.MemoryUsage;
+import java.util.Map;
+
+import static com.redhat.openjdk.balloon.MemoryManager.*;
 
 /**
  * cache of information describing the Java heap state as
  * at some specific GC point
+ *
+ * the usage of every memory pool, heap and non-heap, is held in a single
+ * array indexed by usage slot, pool and usage field. pool indices are
+ * the ones resolved by GCState so the eden, tenured and survivor pools
+ * are found by index rather than by name.
  */
 
 // package access only
 class HeapState
 {
     /**
-     * the GC count for the young gen collector
-     */
-    public long youngCount;
-
-    /**
-     * the collection end time for the young gen collector
-     */
-    public long youngEndTime;
-
-    /**
-     * the collection elapsed time for the young gen collector
-     */
-    public long youngElapsedTime;
-
-    /**
-     * the size of the eden pool in bytes before the young gen collector ran
-     */
-    public long youngEdenBeforeSize;
-
-    /**
-     * the committed space in the eden pool in bytes before the young gen collector ran
-     */
-    public long youngEdenBeforeCommitted;
-
-    /**
-     * the available space in the eden pool in bytes before the young gen collector ran
-     */
-    public long youngEdenBeforeMax;
-
-    /**
-     * the size of the tenured pool in bytes before the young gen collector ran
-     */
-    public long youngTenuredBeforeSize;
-
-    /**
-     * the committed space in the tenured pool in bytes before the young gen collector ran
-     */
-    public long youngTenuredBeforeCommitted;
-
-    /**
-     * the available space in the tenured pool in bytes before the young gen collector ran
-     */
-    public long youngTenuredBeforeMax;
-
-    /**
-     * the size of the eden pool in bytes after the young gen collector ran
-     */
-    public long youngEdenAfterSize;
-
-    /**
-     * the committed space in the eden pool in bytes after the young gen collector ran
+     * usage slots. one for before and after the last young GC and one for
+     * before and after the last old GC. the young and old slots are each
+     * kept together so they can be copied in one go.
      */
-    public long youngEdenAfterCommitted;
+    public final static int YOUNG_BEFORE = 0;
+    public final static int YOUNG_AFTER = 1;
+    public final static int OLD_BEFORE = 2;
+    public final static int OLD_AFTER = 3;
+    private final static int SLOTS = 4;
 
     /**
-     * the available space in the eden pool in bytes after the young gen collector ran
+     * usage fields
      */
-    public long youngEdenAfterMax;
+    public final static int USED = 0;
+    public final static int COMMITTED = 1;
+    public final static int MAX = 2;
+    private final static int FIELDS = 3;
 
     /**
-     * the size of the tenured pool in bytes after the young gen collector ran
+     * the GC count for the young gen collector
      */
-    public long youngTenuredAfterSize;
+    public long youngCount;
 
     /**
-     * the available space in the tenured pool in bytes after the young gen collector ran
+     * the collection end time for the young gen collector
      */
-    public long youngTenuredAfterCommitted;
+    public long youngEndTime;
 
     /**
-     * the available space in the tenured pool in bytes after the young gen collector ran
+     * the collection elapsed time for the young gen collector
      */
-    public long youngTenuredAfterMax;
+    public long youngElapsedTime;
 
     /**
      * the GC count for the tenured gen collector
@@ -127,198 +93,285 @@ class HeapState
     public long oldElapsedTime;
 
     /**
-     * the size of the eden pool in bytes before the tenured gen collector ran
+     * the pools to look up in the GC info usage maps indexed by pool
      */
-    public long oldEdenBeforeSize;
+    private final String[] poolNames;
 
     /**
-     * the committed space in the eden pool in bytes before the young gen collector ran
+     * true for each pool which is part of the heap
      */
-    public long oldEdenBeforeCommitted;
+    private final boolean[] heapPools;
 
-    /**
-     * the available space in the eden pool in bytes before the young gen collector ran
-     */
-    public long oldEdenBeforeMax;
+    private final int edenIndex;
+    private final int tenuredIndex;
+    private final int survivorIndex;
 
     /**
-     * the size of the tenured pool in bytes before the tenured gen collector ran
+     * usage in bytes for each slot, pool and field
      */
-    public long oldTenuredBeforeSize;
+    private final long[] usage;
 
     /**
-     * the committed space in the tenured pool in bytes before the young gen collector ran
+     * the number of usage values in a slot
      */
-    public long oldTenuredBeforeCommitted;
+    private final int slotSize;
 
     /**
-     * the available space in the tenured pool in bytes before the young gen collector ran
+     * construct an empty heap state. heap states are allocated once up
+     * front and then refilled by calling update at each GC so that
+     * sampling the heap does not generate garbage.
      */
-    public long oldTenuredBeforeMax;
-
-    /**
-     * the size of the eden pool in bytes after the tenured gen collector ran
-     */
-    public long oldEdenAfterSize;
-
-    /**
-     * the commited space in the eden pool in bytes after the young gen collector ran
-     */
-    public long oldEdenAfterCommitted;
+    public HeapState(GCState gcState)
+    {
+        poolNames = gcState.poolNames();
+        heapPools = gcState.heapPools();
+        edenIndex = gcState.edenIndex();
+        tenuredIndex = gcState.tenuredIndex();
+        survivorIndex = gcState.survivorIndex();
+        slotSize = poolNames.length * FIELDS;
+        usage = new long[SLOTS * slotSize];
+    }
 
     /**
-     * the available space in the eden pool in bytes after the young gen collector ran
+     * refill this heap state with the current GC state.
+     *
+     * the last GC info for a collector is only looked up if its
+     * collection count has changed since the previous sample. that
+     * lookup builds CompositeData and MemoryUsage objects so it is
+     * the only part of sampling which allocates. if the count has not
+     * changed the values are copied from the previous sample.
+     *
+     * @param gcState the GC state from which to sample
+     * @param last the previous sample or null if there is none
      */
-    public long oldEdenAfterMax;
+    public void update(GCState gcState, HeapState last)
+    {
+        long newYoungCount = gcState.youngCount();
+        long newOldCount = gcState.tenuredCount();
+
+        // a GC may end between reading the counts and the GC info so
+        // take the count from the info which was used. a GC info id is
+        // the collector's count as of that GC
+        if (last != null && last.youngCount == newYoungCount) {
+            copyYoung(last);
+        } else {
+            GcInfo youngInfo = gcState.lastYoungInfo();
+            updateYoung(youngInfo);
+            if (youngInfo != null) {
+                newYoungCount = youngInfo.getId();
+            }
+        }
+        youngCount = newYoungCount;
 
-    /**
-     * the size of the tenured pool in bytes after the tenured gen collector ran
-     */
-    public long oldTenuredAfterSize;
+        if (last != null && last.oldCount == newOldCount) {
+            copyOld(last);
+        } else {
+            GcInfo tenuredInfo = gcState.lastTenuredInfo();
+            updateOld(tenuredInfo);
+            if (tenuredInfo != null) {
+                newOldCount = tenuredInfo.getId();
+            }
+        }
+        oldCount = newOldCount;
+    }
 
     /**
-     * the committed space in the tenured pool in bytes after the young gen collector ran
+     * refill this heap state using the GC info delivered with a GC
+     * notification. the notified side is taken from the info and the
+     * other side is copied from the previous sample, or looked up if
+     * there is none, so sampling does not go back to the GC beans.
+     *
+     * @param gcState the GC state from which to sample
+     * @param info the GC info for the collection just notified
+     * @param isYoung true if info was reported by the young collector
+     * @param last the previous sample or null if there is none
      */
-    public long oldTenuredAfterCommitted;
+    public void update(GCState gcState, GcInfo info, boolean isYoung, HeapState last)
+    {
+        if (isYoung) {
+            updateYoung(info);
+            // a GC info id is the collector's count as of that GC
+            youngCount = info.getId();
+            if (last != null) {
+                copyOld(last);
+                oldCount = last.oldCount;
+            } else {
+                updateOld(gcState.lastTenuredInfo());
+                oldCount = gcState.tenuredCount();
+            }
+        } else {
+            updateOld(info);
+            oldCount = info.getId();
+            if (last != null) {
+                copyYoung(last);
+                youngCount = last.youngCount;
+            } else {
+                updateYoung(gcState.lastYoungInfo());
+                youngCount = gcState.youngCount();
+            }
+        }
+    }
 
     /**
-     * the available space in the tenured pool in bytes after the young gen collector ran
+     * refill this heap state from the heap samples the native agent took
+     * at each GC since the last update. the samples only cover eden,
+     * survivor and tenured space so the other pools are carried forward
+     * from the previous sample. a young GC does not collect them and an
+     * old GC is left to update(GCState, HeapState), which refreshes every
+     * pool from the GC info.
+     *
+     * unlike looking up the GC info this allocates nothing.
+     *
+     * @param gcState the GC state which took the samples
+     * @param samples the samples drained from the native agent
+     * @param count the number of samples
+     * @param last the previous sample
+     * @param nanoOrigin the System.nanoTime value at JVM start
+     * @return false, leaving this heap state unchanged, if there are no
+     * samples, an old GC has happened, the young GC was not sampled
+     * in full or no earlier young GC has been described by its GC info
      */
-    public long oldTenuredAfterMax;
+    public boolean update(GCState gcState, long[] samples, int count, HeapState last, long nanoOrigin)
+    {
+        if (count <= 0) {
+            return false;
+        }
+        int base = (count - 1) * SAMPLE_FIELDS;
+        long newYoungCount = samples[base + SAMPLE_YOUNG_COUNT];
+        if (newYoungCount < 0 || samples[base + SAMPLE_OLD_COUNT] != last.oldCount) {
+            return false;
+        }
+        boolean isYoungGC = (newYoungCount != last.youngCount);
+        if (isYoungGC) {
+            // samples for later pauses which did not collect share the
+            // young GC's count so step back to the young GC's own sample
+            while (base > 0 && samples[base - SAMPLE_FIELDS + SAMPLE_YOUNG_COUNT] == newYoungCount) {
+                base -= SAMPLE_FIELDS;
+            }
+            // the pool max sizes are derived from the ones the GC info
+            // gave so it must already have described a young GC
+            if (last.youngEndTime == 0L || samples[base + SAMPLE_START_NANOS] < 0 || samples[base + SAMPLE_SURVIVOR_USED] < 0 ||
+                    samples[base + SAMPLE_SURVIVOR_USED_BEFORE] < 0) {
+                return false;
+            }
+        }
+        copyOld(last);
+        oldCount = last.oldCount;
+        copyYoung(last);
+        youngCount = newYoungCount;
+        if (isYoungGC) {
+            long nanos = samples[base + SAMPLE_NANOS];
+            youngEndTime = (nanos - nanoOrigin) / 1000000L;
+            youngElapsedTime = (nanos - samples[base + SAMPLE_START_NANOS]) / 1000000L;
+            // a young GC starts when eden is full and the eden used
+            // counter is stale by then so take eden to be full
+            long edenCapacity = samples[base + SAMPLE_EDEN_CAPACITY_BEFORE];
+            long edenMax = last.eden(YOUNG_AFTER, MAX);
+            long survivorMax = last.survivor(YOUNG_AFTER, MAX);
+            long youngMax = samples[base + SAMPLE_YOUNG_MAX];
+            long survivorCapacity = samples[base + SAMPLE_SURVIVOR_CAPACITY_BEFORE];
+            set(YOUNG_BEFORE, edenIndex, edenCapacity, edenCapacity,
+                    gcState.edenMax(edenMax, youngMax, samples[base + SAMPLE_SURVIVOR_SPACES_BEFORE]));
+            set(YOUNG_BEFORE, survivorIndex, samples[base + SAMPLE_SURVIVOR_USED_BEFORE], survivorCapacity,
+                    gcState.survivorMax(survivorMax, survivorCapacity));
+            set(YOUNG_BEFORE, tenuredIndex, samples[base + SAMPLE_OLD_USED_BEFORE], samples[base + SAMPLE_OLD_CAPACITY_BEFORE],
+                    last.tenured(YOUNG_AFTER, MAX));
+            survivorCapacity = samples[base + SAMPLE_SURVIVOR_CAPACITY];
+            set(YOUNG_AFTER, edenIndex, samples[base + SAMPLE_EDEN_USED], samples[base + SAMPLE_EDEN_CAPACITY],
+                    gcState.edenMax(edenMax, youngMax, samples[base + SAMPLE_SURVIVOR_SPACES]));
+            set(YOUNG_AFTER, survivorIndex, samples[base + SAMPLE_SURVIVOR_USED], survivorCapacity,
+                    gcState.survivorMax(survivorMax, survivorCapacity));
+            set(YOUNG_AFTER, tenuredIndex, samples[base + SAMPLE_OLD_USED], samples[base + SAMPLE_OLD_CAPACITY],
+                    last.tenured(YOUNG_AFTER, MAX));
+        }
+        return true;
+    }
 
-    /**
-     * construct a heap state which caches the current GC state
-     * @param gcState
-     */
-    public HeapState(GCState gcState)
+    private void set(int slot, int pool, long used, long committed, long max)
     {
-        GcInfo youngInfo = gcState.lastYoungInfo();
-        GcInfo tenuredInfo = gcState.lastTenuredInfo();
-        String edenKey = gcState.edenKey();
-        String tenuredKey = gcState.tenuredKey();
-        youngCount = gcState.youngCount();
-        oldCount = gcState.tenuredCount();
+        if (pool >= 0) {
+            int idx = slot * slotSize + pool * FIELDS;
+            usage[idx + USED] = used;
+            usage[idx + COMMITTED] = committed;
+            usage[idx + MAX] = max;
+        }
+    }
 
+    private void updateYoung(GcInfo youngInfo)
+    {
         if (youngInfo != null) {
             youngEndTime = youngInfo.getEndTime();
             youngElapsedTime = youngInfo.getDuration();
-            MemoryUsage before = youngInfo.getMemoryUsageBeforeGc().get(edenKey);
-            MemoryUsage after = youngInfo.getMemoryUsageAfterGc().get(edenKey);
-            if (before != null) {
-                youngEdenBeforeSize = before.getUsed();
-                youngEdenBeforeCommitted= before.getCommitted();
-                youngEdenBeforeMax = before.getMax();
-            } else {
-                youngEdenBeforeSize = 0L;
-                youngEdenBeforeCommitted = 0L;
-                youngEdenBeforeMax = 0L;
-            }
-            if (after != null) {
-                youngEdenAfterSize = after.getUsed();
-                youngEdenAfterCommitted = after.getCommitted();
-                youngEdenAfterMax = after.getMax();
-            } else {
-                youngEdenAfterSize = 0L;
-                youngEdenAfterCommitted = 0L;
-                youngEdenAfterMax = 0L;
-            }
-            before = youngInfo.getMemoryUsageBeforeGc().get(tenuredKey);
-            after = youngInfo.getMemoryUsageAfterGc().get(tenuredKey);
-            if (before != null) {
-                youngTenuredBeforeSize = before.getUsed();
-                youngTenuredBeforeCommitted = before.getCommitted();
-                youngTenuredBeforeMax = before.getMax();
-            } else {
-                youngTenuredBeforeSize = 0L;
-                youngTenuredBeforeCommitted = 0L;
-                youngTenuredBeforeMax = 0L;
-            }
-            if (after != null) {
-                youngTenuredAfterSize = after.getUsed();
-                youngTenuredAfterCommitted = after.getCommitted();
-                youngTenuredAfterMax = after.getMax();
-            } else {
-                youngTenuredAfterSize = 0L;
-                youngTenuredAfterCommitted = 0L;
-                youngTenuredAfterMax = 0L;
-            }
+            // each call to these getters builds a new map so only call them once
+            fill(YOUNG_BEFORE, youngInfo.getMemoryUsageBeforeGc());
+            fill(YOUNG_AFTER, youngInfo.getMemoryUsageAfterGc());
         } else {
             youngEndTime = 0L;
             youngElapsedTime = 0L;
-            youngEdenBeforeSize = 0L;
-            youngEdenBeforeCommitted = 0L;
-            youngEdenBeforeMax = 0L;
-            youngTenuredBeforeSize = 0L;
-            youngTenuredBeforeCommitted = 0L;
-            youngTenuredBeforeMax = 0L;
-            youngEdenAfterSize = 0L;
-            youngEdenAfterCommitted = 0L;
-            youngEdenAfterMax = 0L;
-            youngTenuredAfterSize = 0L;
-            youngTenuredAfterCommitted = 0L;
-            youngTenuredAfterMax = 0L;
+            clear(YOUNG_BEFORE);
+            clear(YOUNG_AFTER);
         }
+    }
 
+    private void updateOld(GcInfo tenuredInfo)
+    {
         if (tenuredInfo != null) {
             oldEndTime = tenuredInfo.getEndTime();
             oldElapsedTime = tenuredInfo.getDuration();
-            MemoryUsage before = tenuredInfo.getMemoryUsageBeforeGc().get(edenKey);
-            MemoryUsage after = tenuredInfo.getMemoryUsageAfterGc().get(edenKey);
-            if (before != null) {
-                oldEdenBeforeSize = before.getUsed();
-                oldEdenBeforeCommitted = before.getCommitted();
-                oldEdenBeforeMax = before.getMax();
-            } else {
-                oldEdenBeforeSize = 0L;
-                oldEdenBeforeCommitted = 0L;
-                oldEdenBeforeMax = 0L;
-            }
-            if (after != null) {
-                oldEdenAfterSize = after.getUsed();
-                oldEdenAfterCommitted = after.getCommitted();
-                oldEdenAfterMax = after.getMax();
-            } else {
-                oldEdenAfterSize = 0L;
-                oldEdenAfterCommitted = 0L;
-                oldEdenAfterMax = 0L;
-            }
-            before = tenuredInfo.getMemoryUsageBeforeGc().get(tenuredKey);
-            after = tenuredInfo.getMemoryUsageAfterGc().get(tenuredKey);
-            if (before != null) {
-                oldTenuredBeforeSize = before.getUsed();
-                oldTenuredBeforeCommitted = before.getCommitted();
-                oldTenuredBeforeMax = before.getMax();
-            } else {
-                oldTenuredBeforeSize = 0L;
-                oldTenuredBeforeCommitted = 0L;
-                oldTenuredBeforeMax = 0L;
-            }
-            if (after != null) {
-                oldTenuredAfterSize = after.getUsed();
-                oldTenuredAfterCommitted = after.getCommitted();
-                oldTenuredAfterMax = after.getMax();
-            } else {
-                oldTenuredAfterSize = 0L;
-                oldTenuredAfterCommitted = 0L;
-                oldTenuredAfterMax = 0L;
-            }
+            fill(OLD_BEFORE, tenuredInfo.getMemoryUsageBeforeGc());
+            fill(OLD_AFTER, tenuredInfo.getMemoryUsageAfterGc());
         } else {
             oldEndTime = 0L;
             oldElapsedTime = 0L;
-            oldEdenBeforeSize = 0L;
-            oldEdenBeforeCommitted = 0L;
-            oldEdenBeforeMax = 0L;
-            oldTenuredBeforeSize = 0L;
-            oldTenuredBeforeCommitted = 0L;
-            oldTenuredBeforeMax = 0L;
-            oldEdenAfterSize = 0L;
-            oldEdenAfterCommitted = 0L;
-            oldEdenAfterMax = 0L;
-            oldTenuredAfterSize = 0L;
-            oldTenuredAfterCommitted = 0L;
-            oldTenuredAfterMax = 0L;
+            clear(OLD_BEFORE);
+            clear(OLD_AFTER);
+        }
+    }
+
+    /**
+     * fill a usage slot from a GC info usage map. pools missing from the
+     * map are zeroed.
+     */
+    private void fill(int slot, Map<String, MemoryUsage> usageMap)
+    {
+        int idx = slot * slotSize;
+        for (int pool = 0; pool < poolNames.length; pool++) {
+            MemoryUsage poolUsage = usageMap.get(poolNames[pool]);
+            if (poolUsage != null) {
+                usage[idx + USED] = poolUsage.getUsed();
+                usage[idx + COMMITTED] = poolUsage.getCommitted();
+                usage[idx + MAX] = poolUsage.getMax();
+            } else {
+                usage[idx + USED] = 0L;
+                usage[idx + COMMITTED] = 0L;
+                usage[idx + MAX] = 0L;
+            }
+            idx += FIELDS;
         }
     }
+
+    private void clear(int slot)
+    {
+        int idx = slot * slotSize;
+        for (int i = 0; i < slotSize; i++) {
+            usage[idx + i] = 0L;
+        }
+    }
+
+    private void copyYoung(HeapState from)
+    {
+        youngEndTime = from.youngEndTime;
+        youngElapsedTime = from.youngElapsedTime;
+        System.arraycopy(from.usage, YOUNG_BEFORE * slotSize, usage, YOUNG_BEFORE * slotSize, 2 * slotSize);
+    }
+
+    private void copyOld(HeapState from)
+    {
+        oldEndTime = from.oldEndTime;
+        oldElapsedTime = from.oldElapsedTime;
+        System.arraycopy(from.usage, OLD_BEFORE * slotSize, usage, OLD_BEFORE * slotSize, 2 * slotSize);
+    }
+
     public long youngStart() { return youngEndTime - youngElapsedTime; }
     public long youngElapsed() { return youngElapsedTime; }
     public long youngEnd() { return youngEndTime; }
@@ -329,56 +382,108 @@ class HeapState
 
     public long end() { return (oldEndTime > youngEndTime ? oldEndTime : youngEndTime); }
 
-    public void dump()
+    /**
+     * @return the number of pools
+     */
+    public int poolCount() { return poolNames.length; }
+
+    /**
+     * @return a usage value in bytes or 0 if pool is -1, i.e. the GC
+     * has no such pool
+     */
+    public long get(int slot, int pool, int field)
     {
-        dump(System.out);
+        return (pool < 0 ? 0L : usage[slot * slotSize + pool * FIELDS + field]);
     }
 
-    public void dump(PrintStream out)
+    /**
+     * @return a usage value in bytes after whichever GC ended last
+     */
+    public long after(int pool, int field)
     {
-        StringBuilder builder = new StringBuilder();
-        dump(builder);
-        out.print(builder.toString());
+        return get((oldEndTime > youngEndTime ? OLD_AFTER : YOUNG_AFTER), pool, field);
     }
 
-    public void dump(StringBuilder builder)
+    public long eden(int slot, int field) { return get(slot, edenIndex, field); }
+    public long tenured(int slot, int field) { return get(slot, tenuredIndex, field); }
+    public long survivor(int slot, int field) { return get(slot, survivorIndex, field); }
+
+    /**
+     * @return the eden size in bytes after whichever GC ended last
+     */
+    public long edenAfterSize() { return after(edenIndex, USED); }
+
+    /**
+     * @return the tenured size in bytes after whichever GC ended last
+     */
+    public long tenuredAfterSize() { return after(tenuredIndex, USED); }
+
+    /**
+     * @return the used size in bytes of all the heap pools in a slot
+     */
+    public long heapUsed(int slot)
     {
-        dumpCountTime(builder, "  young count: ", youngCount, "  young msecs: ", youngElapsedTime);
-        dumpUsage(builder, "eden", youngEdenBeforeSize, youngEdenBeforeCommitted, youngEdenBeforeMax,
-                youngEdenAfterSize, youngEdenAfterCommitted, youngEdenAfterMax);
-        dumpUsage(builder, "tenured", youngTenuredBeforeSize, youngEdenBeforeCommitted, youngTenuredBeforeMax,
-                youngTenuredAfterSize, youngTenuredAfterCommitted, youngTenuredAfterMax);
-        dumpCountTime(builder, "  old count:   ", oldCount, "  old msecs:   ", oldElapsedTime);
-        dumpUsage(builder, "eden", oldEdenBeforeSize, oldEdenBeforeCommitted, oldEdenBeforeMax,
-                oldEdenAfterSize, oldEdenAfterCommitted, oldEdenAfterMax);
-        dumpUsage(builder, "tenured", oldTenuredBeforeSize, oldTenuredBeforeCommitted, oldTenuredBeforeMax,
-                oldTenuredAfterSize, oldTenuredAfterCommitted, oldTenuredAfterMax);
+        long used = 0;
+        for (int pool = 0; pool < heapPools.length; pool++) {
+            if (heapPools[pool]) {
+                used += get(slot, pool, USED);
+            }
+        }
+        return used;
     }
-    void dumpCountTime(StringBuilder builder, String tag1, long count, String tag2, long msecs)
+
+    /**
+     * @return the committed size in bytes of all the heap pools after
+     * whichever GC ended last
+     */
+    public long heapCommittedSize()
     {
-        builder.append(tag1);
-        builder.append(count);
-        builder.append('\n');
-        builder.append(tag2);
-        builder.append(msecs);
-        builder.append('\n');
+        long committed = 0;
+        for (int pool = 0; pool < heapPools.length; pool++) {
+            if (heapPools[pool]) {
+                committed += after(pool, COMMITTED);
+            }
+        }
+        return committed;
     }
-    void dumpUsage(StringBuilder builder, String tag, long beforeSize, long beforeCommitted, long beforeMax, long afterSize, long afterCommitted, long afterMax)
+
+    /**
+     * copy this heap state into the supplied stats record. the per pool
+     * usage is left to MemoryManager which adds its aggregates.
+     */
+    public void record(StatsRecord record)
     {
-        builder.append("    ");
-        builder.append(tag);
-        builder.append(": ");
-        builder.append(beforeSize/1024);
-        builder.append("KB/");
-        builder.append(beforeCommitted/1024);
-        builder.append("KB(");
-        builder.append(beforeMax/1024);
-        builder.append("KB) --> ");
-        builder.append(afterSize/1024);
-        builder.append("KB/");
-        builder.append(afterCommitted/1024);
-        builder.append("KB(");
-        builder.append(afterMax/1024);
-        builder.append("KB)\n");
+        record.set(StatsField.YOUNG_COUNT, youngCount);
+        record.set(StatsField.YOUNG_END_TIME, youngEndTime);
+        record.set(StatsField.YOUNG_ELAPSED_TIME, youngElapsedTime);
+        record.set(StatsField.YOUNG_EDEN_BEFORE_SIZE, eden(YOUNG_BEFORE, USED));
+        record.set(StatsField.YOUNG_EDEN_BEFORE_COMMITTED, eden(YOUNG_BEFORE, COMMITTED));
+        record.set(StatsField.YOUNG_EDEN_BEFORE_MAX, eden(YOUNG_BEFORE, MAX));
+        record.set(StatsField.YOUNG_TENURED_BEFORE_SIZE, tenured(YOUNG_BEFORE, USED));
+        record.set(StatsField.YOUNG_TENURED_BEFORE_COMMITTED, tenured(YOUNG_BEFORE, COMMITTED));
+        record.set(StatsField.YOUNG_TENURED_BEFORE_MAX, tenured(YOUNG_BEFORE, MAX));
+        record.set(StatsField.YOUNG_EDEN_AFTER_SIZE, eden(YOUNG_AFTER, USED));
+        record.set(StatsField.YOUNG_EDEN_AFTER_COMMITTED, eden(YOUNG_AFTER, COMMITTED));
+        record.set(StatsField.YOUNG_EDEN_AFTER_MAX, eden(YOUNG_AFTER, MAX));
+        record.set(StatsField.YOUNG_TENURED_AFTER_SIZE, tenured(YOUNG_AFTER, USED));
+        record.set(StatsField.YOUNG_TENURED_AFTER_COMMITTED, tenured(YOUNG_AFTER, COMMITTED));
+        record.set(StatsField.YOUNG_TENURED_AFTER_MAX, tenured(YOUNG_AFTER, MAX));
+        record.set(StatsField.OLD_COUNT, oldCount);
+        record.set(StatsField.OLD_END_TIME, oldEndTime);
+        record.set(StatsField.OLD_ELAPSED_TIME, oldElapsedTime);
+        record.set(StatsField.OLD_EDEN_BEFORE_SIZE, eden(OLD_BEFORE, USED));
+        record.set(StatsField.OLD_EDEN_BEFORE_COMMITTED, eden(OLD_BEFORE, COMMITTED));
+        record.set(StatsField.OLD_EDEN_BEFORE_MAX, eden(OLD_BEFORE, MAX));
+        record.set(StatsField.OLD_TENURED_BEFORE_SIZE, tenured(OLD_BEFORE, USED));
+        record.set(StatsField.OLD_TENURED_BEFORE_COMMITTED, tenured(OLD_BEFORE, COMMITTED));
+        record.set(StatsField.OLD_TENURED_BEFORE_MAX, tenured(OLD_BEFORE, MAX));
+        record.set(StatsField.OLD_EDEN_AFTER_SIZE, eden(OLD_AFTER, USED));
+        record.set(StatsField.OLD_EDEN_AFTER_COMMITTED, eden(OLD_AFTER, COMMITTED));
+        record.set(StatsField.OLD_EDEN_AFTER_MAX, eden(OLD_AFTER, MAX));
+        record.set(StatsField.OLD_TENURED_AFTER_SIZE, tenured(OLD_AFTER, USED));
+        record.set(StatsField.OLD_TENURED_AFTER_COMMITTED, tenured(OLD_AFTER, COMMITTED));
+        record.set(StatsField.OLD_TENURED_AFTER_MAX, tenured(OLD_AFTER, MAX));
+        record.set(StatsField.YOUNG_SURVIVOR_AFTER_SIZE, survivor(YOUNG_AFTER, USED));
+        record.set(StatsField.YOUNG_SURVIVOR_AFTER_COMMITTED, survivor(YOUNG_AFTER, COMMITTED));
     }
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import com.sun.management.VMOption;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * tunes MinHeapFreeRatio and MaxHeapFreeRatio while the JVM runs so
+ * that the collector itself keeps the committed tenured space close to
+ * the live set. Parallel and Serial GC resize tenured after an old GC
+ * so its free space lies between the two ratios, uncommitting anything
+ * above the max. the tuner asks for enough free space to absorb the
+ * recent promotion rate for a configurable period, so old GCs do not
+ * become much more frequent, but never less than a floor proportional
+ * to the live set.
+ *
+ * the tuner is driven from MemoryManager after each GC and is
+ * configured using the following agent options
+ *
+ *   tune -- enable the tuner
+ *   tuneperiod=TIME -- how long the free space should absorb promotion
+ *                      at the recent rate (default 5m)
+ *   tunefloor=N -- least free space to leave as a percentage of the
+ *                  live set (default 10)
+ *   tunespread=N -- gap between the min and max ratio in percentage
+ *                   points. a wider gap means fewer resizes (default 20)
+ *   tunestep=N -- ignore ratio changes smaller than this many
+ *                 percentage points (default 5)
+ *
+ * it can run alongside the balloon controller. balloons count as live
+ * so the tuner leaves them committed and the controller only has to
+ * fill whatever the collector does not give back itself.
+ */
+// package access only
+class HeapTuner
+{
+    private final static String MIN_FREE = "MinHeapFreeRatio";
+    private final static String MAX_FREE = "MaxHeapFreeRatio";
+
+    private final PrintStream out;
+    private final HotSpotDiagnosticMXBean diagnostic;
+    private final long period;
+    private final long floor;
+    private final long spread;
+    private final long step;
+    private long minRatio;
+    private long maxRatio;
+    private long changes = 0;
+    private boolean failed = false;
+
+    private HeapTuner(AgentOptions options, PrintStream out, HotSpotDiagnosticMXBean diagnostic, long minRatio, long maxRatio)
+    {
+        this.out = out;
+        this.diagnostic = diagnostic;
+        this.minRatio = minRatio;
+        this.maxRatio = maxRatio;
+        period = options.getTime("tuneperiod", 5 * 60 * 1000L);
+        floor = clamp(options.getLong("tunefloor", 10), 0, 1000);
+        spread = clamp(options.getLong("tunespread", 20), 1, 100);
+        step = clamp(options.getLong("tunestep", 5), 1, 100);
+    }
+
+    /**
+     * create a tuner if the ratios can be changed at runtime
+     *
+     * @return the tuner or null if the ratios cannot be read or written
+     */
+    public static HeapTuner create(AgentOptions options, PrintStream out)
+    {
+        HotSpotDiagnosticMXBean diagnostic;
+        VMOption min;
+        VMOption max;
+        try {
+            diagnostic = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            min = diagnostic.getVMOption(MIN_FREE);
+            max = diagnostic.getVMOption(MAX_FREE);
+        } catch (Exception e) {
+            out.printf("Heap tuner: cannot read the heap free ratios (%s), not tuning\n", e);
+            return null;
+        }
+        if (!min.isWriteable() || !max.isWriteable()) {
+            out.printf("Heap tuner: the heap free ratios cannot be changed in this JVM, not tuning\n");
+            return null;
+        }
+        HeapTuner tuner = new HeapTuner(options, out, diagnostic, Long.parseLong(min.getValue()), Long.parseLong(max.getValue()));
+        out.printf("Heap tuner: %s %d %s %d period %d secs floor %d%% spread %d step %d\n",
+                MIN_FREE, tuner.minRatio, MAX_FREE, tuner.maxRatio,
+                tuner.period / 1000, tuner.floor, tuner.spread, tuner.step);
+        return tuner;
+    }
+
+    /**
+     * recompute the ratios after a GC and apply them if they have moved
+     * by at least the step. the collector acts on them at its next old GC.
+     *
+     * @param now the GC end time in msecs
+     * @param live the tenured live set in KB after the GC
+     * @param liveAverage the running average of the tenured live set in KB
+     * @param promotionRate the running average promotion rate in KB/sec
+     * @param max the tenured max in KB
+     */
+    public void gcEnd(long now, long live, long liveAverage, double promotionRate, long max)
+    {
+        if (failed) {
+            return;
+        }
+        // size against the larger of the current and average live set so
+        // that a dip in occupancy does not give back space which will be
+        // needed again shortly
+        long base = Math.max(live, liveAverage);
+        if (base <= 0) {
+            return;
+        }
+        long free = Math.max((long)(promotionRate * period / 1000), base * floor / 100);
+        // asking for more than the heap can hold just pins it at the max
+        free = Math.max(Math.min(free, max - base), 0);
+        long ratio = Math.round(free * 100D / (base + free));
+        long newMin = clamp(ratio - spread / 2, 0, 99);
+        long newMax = clamp(newMin + spread, newMin + 1, 100);
+        if (Math.abs(newMin - minRatio) < step && Math.abs(newMax - maxRatio) < step) {
+            return;
+        }
+        out.printf("Heap tuner: at %d live %dKB promotion %.1fKB/s free target %dKB %s %d -> %d %s %d -> %d\n",
+                now, base, promotionRate, free, MIN_FREE, minRatio, newMin, MAX_FREE, maxRatio, newMax);
+        // the JVM rejects a min above the max so raise the max first when
+        // moving up and lower the min first when moving down
+        boolean ok;
+        if (newMin > maxRatio) {
+            ok = set(MAX_FREE, newMax) && set(MIN_FREE, newMin);
+        } else {
+            ok = set(MIN_FREE, newMin) && set(MAX_FREE, newMax);
+        }
+        if (!ok) {
+            failed = true;
+            out.printf("Heap tuner: giving up tuning after a failed update\n");
+            return;
+        }
+        minRatio = newMin;
+        maxRatio = newMax;
+        changes++;
+    }
+
+    private boolean set(String name, long value)
+    {
+        try {
+            diagnostic.setVMOption(name, Long.toString(value));
+            return true;
+        } catch (Exception e) {
+            out.printf("Heap tuner: cannot set %s to %d (%s)\n", name, value, e);
+            return false;
+        }
+    }
+
+    private static long clamp(long value, long lo, long hi)
+    {
+        return Math.max(lo, Math.min(hi, value));
+    }
+
+    public long minRatio()
+    {
+        return minRatio;
+    }
+
+    public long maxRatio()
+    {
+        return maxRatio;
+    }
+
+    public long changeCount()
+    {
+        return changes;
+    }
+}
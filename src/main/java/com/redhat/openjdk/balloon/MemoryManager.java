@@ -23,19 +23,32 @@
 
 package com.redhat.openjdk.balloon;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
 import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.util.Date;
 
+import static com.redhat.openjdk.balloon.HeapState.*;
+
 /**
  * A class responsible for monitoring and managing heap memory usage
  * including creating and deleting balloon in response to low or
  * high pressure on available heap memory.
  *
- * n.b. the current implementation merely monitors memory. it does
- * not attempt to infltae/deflate balloons.
+ * n.b. balloons are only inflated and deflated if the balloon agent
+ * option is supplied. otherwise the manager merely monitors memory.
+ *
+ * the manager is either driven by the native agent, which calls gcEnd
+ * after each GC, or by BalloonAgent when it is loaded as a Java agent,
+ * in which case it listens for GC notifications and only loads the
+ * native library if ballooning is requested.
  */
 public class MemoryManager
 {
@@ -56,44 +69,315 @@ public class MemoryManager
      * the GC in use and initalize the various monitoring statistics
      * which will be gathered as the application executes
      */
-    private final static boolean init(int logPlacement, boolean dumpAll)
+    private final static synchronized boolean init(int logPlacement, boolean dumpAll, String optionString)
+    {
+        if (initialized) {
+            // BalloonAgent got here first and gcEnd will be ignored
+            return true;
+        }
+        initialized = init(logPlacement, dumpAll, optionString, true);
+        return initialized;
+    }
+
+    /**
+     * called when the balloon jar is loaded as a Java agent to initialize
+     * the manager and subscribe to GC notifications from each collector
+     *
+     * n.b. package-private access
+     */
+    static synchronized boolean initNotifications(int logPlacement, boolean dumpAll, String optionString)
+    {
+        if (initialized) {
+            System.out.printf("MemoryManager : already driven by the native balloon agent\n");
+            return false;
+        }
+        if (!init(logPlacement, dumpAll, optionString, false)) {
+            return false;
+        }
+        initialized = true;
+        notificationDriven = true;
+        NotificationListener listener = new GCListener();
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (bean instanceof NotificationEmitter) {
+                ((NotificationEmitter)bean).addNotificationListener(listener, null, null);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * listener which passes GC notifications on to gcNotification
+     *
+     * notifications for each collector are delivered in order by the
+     * JMX notification thread once the GC has finished
+     */
+    private static class GCListener implements NotificationListener
+    {
+        public void handleNotification(Notification notification, Object handback)
+        {
+            if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData());
+            gcNotification(info.getGcName(), info.getGcInfo(), info.getGcCause());
+        }
+    }
+
+    private static boolean init(int logPlacement, boolean dumpAll, String optionString, boolean nativeAgent)
     {
         MemoryManager.dumpAll = dumpAll;
+        AgentOptions options = new AgentOptions(optionString);
         if (logPlacement == LOG_LOCATION_SYSOUT) {
-            out = System.out;
+            writer = StatsWriter.openStdout();
         } else {
             // prepare to log data
-            out = openLog(logPlacement);
-            if (out == null) {
+            writer = openLog(logPlacement);
+            if (writer == null) {
                 return false;
             }
         }
+        out = writer.stream();
 
-        out.printf("Start: %s\n\n", (new Date()).toString());
+        Date start = new Date();
+        nanoOrigin = System.nanoTime() - ManagementFactory.getRuntimeMXBean().getUptime() * 1000000L;
 
         // identify the current GC and heap state
         cacheState();
         if (gcState == null) {
             return false;
         }
-        out.printf("GC Type: %s\n", gcState.getType());
-        // set up the sample defaults
-        for (int i = 0; i < RUNNING_SAMPLE_COUNT; i++) {
-            live_running[i] = 0;
-            committed_running[i] = 0;
-            time_running[i] = i;
+        StatsFormatter.dumpHeader(out, start.toString(), gcState.getType());
+        String[] poolNames = gcState.poolNames();
+        record = new StatsRecord(poolNames);
+        currentHeapState = new HeapState(gcState);
+        lastHeapState = new HeapState(gcState);
+        pool_used_hi = new long[poolNames.length];
+        pool_used_lo = new long[poolNames.length];
+        pool_used_avge = new double[poolNames.length];
+        pool_committed_hi = new long[poolNames.length];
+        pool_committed_lo = new long[poolNames.length];
+        pool_committed_avge = new double[poolNames.length];
+        processMemory = ProcessMemory.open(options.isSet("pss"));
+
+        if (options.isSet("binary")) {
+            String filename = options.getString("binary", null);
+            if (filename == null) {
+                filename = (logPlacement == LOG_LOCATION_APPROOT ? "app-root/data/.balloonstats.bin" : ".balloonstats.bin");
+            }
+            binaryLog = BinaryLog.open(filename, start.getTime(), gcState.getType(), poolNames);
+            if (binaryLog == null) {
+                return false;
+            }
+            out.printf("Binary log: %s\n", filename);
         }
+        // set up the aggregation windows and dump intervals
+        windows = options.getTimes("windows", DEFAULT_WINDOWS, WindowedStats.MAX_WINDOWS);
+        liveWindows = new WindowedStats(windows);
+        committedWindows = new WindowedStats(windows);
+        allocationWindows = new WindowedStats(windows);
+        promotionWindows = new WindowedStats(windows);
+        overflowWindows = new WindowedStats(windows);
+        DUMP_INTERVAL_MIN = options.getTime("dumpmin", DUMP_INTERVAL_MIN);
+        DUMP_INTERVAL_MAX = options.getTime("dumpmax", DUMP_INTERVAL_MAX);
+        timestamp = - DUMP_INTERVAL_MIN;
+
+        if (options.isSet("balloon")) {
+            String strategy = gcState.requiredMapStrategy();
+            if (!gcState.supportsBallooning()) {
+                out.printf("Ballooning is not supported with %s GC, only gathering stats\n", gcState.getType());
+            } else if (strategy != null && !strategy.equals(options.getString("map", null))) {
+                // balloons would hold on to their pages so refuse rather
+                // than shrink the heap for nothing
+                out.printf("Ballooning with %s GC needs map=%s to release balloon pages, only gathering stats\n",
+                        gcState.getType(), strategy);
+            } else if (!nativeAgent && !BalloonManager.attach(options.getString("lib", null), optionString)) {
+                out.printf("Ballooning needs the native balloon library, only gathering stats\n");
+            } else {
+                BalloonManager.setBalloonSize(gcState.balloonSize(options.getSize("balloonsize", 0), BalloonManager.alignment()));
+                controller = new BalloonController(options, out, gcState.tenuredPoolName(), gcState.isConcurrent());
+                if (options.isSet("psi")) {
+                    new PressureMonitor(options, out).start(processMemory != null ? processMemory.pressureFile() : null);
+                }
+            }
+        }
+
+        if (options.isSet("tune")) {
+            if (!gcState.honoursFreeRatios()) {
+                out.printf("Heap tuning is not supported with %s GC\n", gcState.getType());
+            } else {
+                tuner = HeapTuner.create(options, out);
+            }
+        }
+
+        // failure to register only loses the management view of the stats
+        stats = new MemoryManagerStats(poolNames);
+        stats.register();
+
+        if (options.isSet("http")) {
+            // failure to listen only loses the metrics endpoint
+            MetricsServer.start((int)options.getLong("http", 0), stats);
+        }
+        writer.submit();
 
         return true;
     }
 
     /**
      * called every time an end of GC event is notified.
+     * synchronized so that pressure updates are serialized with it
      */
-    private final static void gcEnd()
+    private final static synchronized void gcEnd()
     {
+        if (notificationDriven) {
+            // stats are being gathered by gcNotification
+            return;
+        }
+        // swap the preallocated heap states so the current one becomes the
+        // last one then refill the old last one with the current GC state
+        HeapState tmp = lastHeapState;
         lastHeapState = currentHeapState;
-        currentHeapState = new HeapState(gcState);
+        currentHeapState = tmp;
+        boolean isFirstGC = !sampled;
+        int sampleCount = drainSamples(samples);
+        readPauses(pauses);
+        youngPauses.update(pauses, 0);
+        oldPauses.update(pauses, PauseHistogram.BUCKETS + 1);
+        if (sampleCount > 0) {
+            // count from the sequence numbers as the agent only keeps
+            // the newest of the GCs which found its event ring full
+            long seq = samples[(sampleCount - 1) * SAMPLE_FIELDS + SAMPLE_SEQ];
+            gcsDelivered++;
+            gcsCoalesced += seq - gcsSeen - 1;
+            gcsSeen = seq;
+        }
+        // young GCs are sampled from the native samples where the GC
+        // allows since looking up the GC info allocates
+        if (isFirstGC || !gcState.heapSampled() || !clockCalibrated ||
+                !currentHeapState.update(gcState, samples, sampleCount, lastHeapState, nanoOrigin)) {
+            currentHeapState.update(gcState, (isFirstGC ? null : lastHeapState));
+            if (gcState.heapSampled()) {
+                calibrateClock(sampleCount);
+            }
+        }
+        if (!isFirstGC && currentHeapState.youngCount == lastHeapState.youngCount &&
+                currentHeapState.oldCount == lastHeapState.oldCount) {
+            // a pause within a concurrent cycle. nothing new has been
+            // collected so put back the last heap state and wait for the
+            // cycle to end
+            currentHeapState = lastHeapState;
+            lastHeapState = tmp;
+            return;
+        }
+        sampled = true;
+        gcSampled(isFirstGC, null, (isFirstGC ? 0 : sampleCount));
+    }
+
+    /**
+     * called from the pressure monitor thread when memory pressure is
+     * reported or has eased so the controller can resize the balloons
+     * without waiting for a GC. synchronized with the GC entry points as
+     * the controller and the log stream are single threaded.
+     * n.b. package-private access
+     *
+     * @param rose true if pressure was reported or false if it eased
+     */
+    static synchronized void pressure(boolean rose)
+    {
+        if (controller == null) {
+            return;
+        }
+        long now = ManagementFactory.getRuntimeMXBean().getUptime();
+        if (rose) {
+            controller.pressure(now);
+        } else {
+            controller.pressureEased(now);
+        }
+        writer.submit();
+    }
+
+    /**
+     * reset the origin used to convert native sample times to JVM uptime
+     * so that the time of the last sample matches the end time the GC
+     * info gave for the same GC. the origin computed from the uptime at
+     * startup is out by the time the JVM took to start its management
+     * clock, which makes sampled young GCs look later than they were,
+     * so young GCs are only sampled once this has been done.
+     *
+     * @param count the number of samples drained at this GC
+     */
+    private static void calibrateClock(int count)
+    {
+        if (count <= 0) {
+            return;
+        }
+        int base = (count - 1) * SAMPLE_FIELDS;
+        if (samples[base + SAMPLE_YOUNG_COUNT] != currentHeapState.youngCount ||
+                samples[base + SAMPLE_OLD_COUNT] != currentHeapState.oldCount) {
+            return;
+        }
+        // only calibrate against a young GC. the agent sees an old GC
+        // end a little later, relative to its GC info, than a young one
+        long end = currentHeapState.youngEnd();
+        if (end > 0 && end >= currentHeapState.oldEnd()) {
+            nanoOrigin = samples[base + SAMPLE_NANOS] - end * 1000000L;
+            clockCalibrated = true;
+        }
+    }
+
+    /**
+     * copy the heap samples which the native agent took at each GC since
+     * the last call to gcEnd into samples
+     *
+     * @return the number of samples copied
+     */
+    private static native int drainSamples(long[] samples);
+
+    /**
+     * copy the pause histograms maintained by the native agent into
+     * pauses, the young series followed by the old series. each series
+     * is the largest pause since the last call followed by the
+     * cumulative count in each bucket.
+     */
+    private static native void readPauses(long[] pauses);
+
+    /**
+     * called for each GC notification when driven by BalloonAgent
+     */
+    private static synchronized void gcNotification(String gcName, GcInfo info, String cause)
+    {
+        boolean isYoung = gcState.isYoungGC(gcName);
+        // a concurrent collector's cycle beans time the whole cycle so
+        // only its pause beans give pause times
+        if (gcState.isConcurrent() ? gcState.isPauseGC(gcName) : true) {
+            boolean isYoungPause = (gcState.isConcurrent() ? gcState.isYoungPauseGC(gcName) : isYoung);
+            (isYoungPause ? youngPauses : oldPauses).record(info.getDuration() * 1000);
+        }
+        if (!isYoung && !gcState.isTenuredGC(gcName)) {
+            // concurrent collector pauses are accounted via pauseMillis
+            return;
+        }
+        if (controller != null) {
+            BalloonManager.gcNotified();
+        }
+        HeapState tmp = lastHeapState;
+        lastHeapState = currentHeapState;
+        currentHeapState = tmp;
+        boolean isFirstGC = !sampled;
+        currentHeapState.update(gcState, info, isYoung, (isFirstGC ? null : lastHeapState));
+        sampled = true;
+        gcSampled(isFirstGC, cause, 0);
+    }
+
+    /**
+     * update the stats once the current heap state has been sampled
+     *
+     * @param isFirstGC true if this is the first heap state sampled
+     * @param cause the GC cause if known or null
+     * @param sampleCount the number of native heap samples drained for
+     * this GC including the one for the GC itself
+     */
+    private static void gcSampled(boolean isFirstGC, String cause, int sampleCount)
+    {
         long end = currentHeapState.end();
         long lastEnd;
         long youngPlus;
@@ -101,11 +385,16 @@ public class MemoryManager
         long gcPlus;
         long mutatorPlus;
         long totalPlus;
-        boolean isFirstGC = (lastHeapState == null);
         boolean isYoungGC = (!isFirstGC && (currentHeapState.youngCount > lastHeapState.youngCount));
-        boolean isOldGC = (!isFirstGC && (currentHeapState.oldCount > lastHeapState.oldCount));
-        boolean seenOldGC = (currentHeapState.oldCount > 0);
-        boolean skippedYoungGCs = (!isFirstGC && (currentHeapState.youngCount > lastHeapState.youngCount + 1));
+        // a full GC is reported by the old collector but some GCs also
+        // collect tenured space during what is reported as a young GC
+        boolean isFullGC = (!isFirstGC && (currentHeapState.oldCount > lastHeapState.oldCount));
+        boolean isMixedGC = (isYoungGC && !isFullGC && gcState.isMixedGC(currentHeapState));
+        boolean isOldGC = isFullGC || isMixedGC;
+        if (isMixedGC) {
+            seenMixedGC = true;
+        }
+        boolean seenOldGC = (currentHeapState.oldCount > 0 || seenMixedGC);
         long live = 0;
         long committed = 0;
         long max = 0;
@@ -120,13 +409,13 @@ public class MemoryManager
             totalPlus = end;
             mutatorPlus = totalPlus - gcPlus;
             if (seenOldGC) {
-                max = currentHeapState.oldTenuredAfterMax / 1024;
-                committed =  currentHeapState.oldTenuredAfterCommitted / 1024;
-                live = currentHeapState.oldTenuredAfterSize / 1024;
+                max = gcState.tenuredMax(currentHeapState.tenured(OLD_AFTER, MAX), currentHeapState.eden(OLD_AFTER, COMMITTED)) / 1024;
+                committed =  currentHeapState.tenured(OLD_AFTER, COMMITTED) / 1024;
+                live = currentHeapState.tenured(OLD_AFTER, USED) / 1024;
             } else {
-                max = currentHeapState.youngTenuredAfterMax / 1024;
-                committed =  currentHeapState.youngTenuredAfterCommitted / 1024;
-                live = currentHeapState.youngTenuredAfterSize / 1024;
+                max = gcState.tenuredMax(currentHeapState.tenured(YOUNG_AFTER, MAX), currentHeapState.eden(YOUNG_AFTER, COMMITTED)) / 1024;
+                committed =  currentHeapState.tenured(YOUNG_AFTER, COMMITTED) / 1024;
+                live = currentHeapState.tenured(YOUNG_AFTER, USED) / 1024;
             }
             commPct = 100D * committed / max;
             livePct = 100D * live / max;
@@ -145,6 +434,7 @@ public class MemoryManager
             tenured_committed_hi_pct = commPct;
             tenured_live_avge_pct = livePct;
             tenured_live_hi_pct = livePct;
+            sampleWindows(end, live, committed, max);
         } else {
             lastEnd = lastHeapState.end();
             // use the latest end time to mark the time interval between last and current
@@ -152,97 +442,56 @@ public class MemoryManager
             youngPlus = currentHeapState.youngElapsed();
             gcPlus = youngPlus;
             oldPlus = 0;
-            if (isOldGC) {
+            if (isFullGC) {
                 // count the gc time for the old gc
+                // n.b. a mixed GC's time is already included in the young time
                 oldPlus = currentHeapState.oldElapsed();
                 gcPlus += oldPlus;
             }
-            // see if we missed any young GCs
-            if (skippedYoungGCs) {
-                // too bad we cannot make amends for that.
-                //System.out.printf("skipped young gc count from %d to %d\n", lastHeapState.youngCount, currentHeapState.youngCount);
-            }
             totalPlus = end - lastEnd;
             mutatorPlus =  totalPlus - gcPlus;
             // check the low and high water marks for tenured space
-            if (isOldGC) {
-                max = currentHeapState.oldTenuredAfterMax / 1024;
-                committed =  currentHeapState.oldTenuredAfterCommitted / 1024;
-                live = currentHeapState.oldTenuredAfterSize / 1024;
+            // n.b. a mixed GC is reported via the young GC info
+            if (isFullGC) {
+                max = gcState.tenuredMax(currentHeapState.tenured(OLD_AFTER, MAX), currentHeapState.eden(OLD_AFTER, COMMITTED)) / 1024;
+                committed =  currentHeapState.tenured(OLD_AFTER, COMMITTED) / 1024;
+                live = currentHeapState.tenured(OLD_AFTER, USED) / 1024;
             } else {
-                max = currentHeapState.youngTenuredAfterMax / 1024;
-                committed= currentHeapState.youngTenuredAfterCommitted / 1024;
-                live = currentHeapState.youngTenuredAfterSize / 1024;
+                max = gcState.tenuredMax(currentHeapState.tenured(YOUNG_AFTER, MAX), currentHeapState.eden(YOUNG_AFTER, COMMITTED)) / 1024;
+                committed= currentHeapState.tenured(YOUNG_AFTER, COMMITTED) / 1024;
+                live = currentHeapState.tenured(YOUNG_AFTER, USED) / 1024;
             }
 
-            commPct = 100D * committed / max;
-            livePct = 100D * live / max;
-            // update the committed average and lo water mark using the old tenured sizes after the GC
-            if (committed > tenured_committed_hi) {
-                tenured_committed_hi = committed;
-                tenured_committed_hi_pct = commPct;
-
+            // fold in the samples for any GCs which were coalesced
+            // into this one. n.b. the last sample is for this GC. for
+            // concurrent collectors samples are taken at pauses part
+            // way through a cycle so they do not give a live size
+            long sampleEnd = lastEnd;
+            if (!gcState.isConcurrent()) {
+                sampleEnd = foldSamples(sampleCount - 1, lastEnd, end, max, seenOldGC);
             }
-            // don't update lo water until we have seen an old GC
-            if (seenOldGC) {
-                if (committed < tenured_committed_lo || tenured_committed_lo == 0) {
-                    tenured_committed_lo = committed;
-                    tenured_committed_lo_pct = commPct;
-                }
-                if (live < tenured_live_lo || tenured_live_lo == 0) {
-                    tenured_live_lo = live;
-                    tenured_live_lo_pct = livePct;
-                }
-            }
-            if (live > tenured_live_hi) {
-                tenured_live_hi = live;
-                tenured_live_hi_pct = livePct;
-            }
-            // now update the averages
-            lastEnd = lastHeapState.end();
-            tenured_committed_avge = ((tenured_committed_avge * lastEnd) + (committed * (end - lastEnd))) / end;
-            tenured_committed_avge_pct = (100D * tenured_committed_avge / max);
-            // update the live average and lo/hi water mark using the old tenured size after the GC
-            tenured_live_avge = ((tenured_live_avge * lastEnd) + (live * (end - lastEnd))) / end;
-            tenured_live_avge_pct = (100D * tenured_live_avge / max);
-
-            // running totals just average the last RUNNING_SAMPLE_COUNT values
-            // start with the current committed and live values and current end time and
-            // fold in the last RUNNING_SAMPLE_COUNT - 1 values to computer the average
-            // then put the current values into the sample set
-            long current_time = end;
-            long current_committed = committed;
-            long current_live = live;
-            double live_accumulate = 0.0;
-            double committed_accumulate = 0.0;
-            long time_accumulate = 0;
-            int last = sample_idx + RUNNING_SAMPLE_COUNT; // don't go negative!
-            // accumulate RUNNING_SAMPLE_COUNT values
-            for (int i = 0; i < RUNNING_SAMPLE_COUNT ; i++) {
-                int last_wrap = last % RUNNING_SAMPLE_COUNT;
-                long last_time = time_running[last_wrap];
-                long delta = (current_time - last_time);
-                committed_accumulate += current_committed * delta;
-                live_accumulate += current_live * delta;
-                time_accumulate += delta;
-                current_time = last_time;
-                current_committed = committed_running[last_wrap];
-                current_live = live_running[last_wrap];
-                last--;
+            sampleTenured(end, sampleEnd, live, committed, max, seenOldGC);
+        }
+        if (gcState.isConcurrent()) {
+            // young and old times are concurrent cycle times which overlap
+            // the mutator so only count pause time as GC time
+            long pauseMillis = gcState.pauseMillis();
+            gcPlus = pauseMillis - lastPauseMillis;
+            lastPauseMillis = pauseMillis;
+            mutatorPlus = totalPlus - gcPlus;
+            if (isFullGC) {
+                sampleCycle();
             }
-            tenured_committed_running_avge = committed_accumulate / time_accumulate;
-            tenured_committed_running_avge_pct = 100D * tenured_committed_running_avge / max;
-            tenured_live_running_avge = live_accumulate / time_accumulate;
-            tenured_live_running_avge_pct = 100D * tenured_live_running_avge / max;
+        } else if (!isFirstGC) {
+            // n.b. a concurrent cycle's before and after sizes miss what
+            // was allocated and promoted while it ran so rates are only
+            // derived for stop the world collectors
+            sampleRates(end, isYoungGC, isFullGC, isMixedGC, mutatorPlus);
+        }
 
-            // move to next sample idx and install current values
-            sample_idx = (sample_idx + 1) % RUNNING_SAMPLE_COUNT;
-            live_running[sample_idx] = live;
-            committed_running[sample_idx] = committed;
-            time_running[sample_idx] = end;
+        samplePools(end, (isFirstGC ? 0 : lastHeapState.end()));
+        sampleProcess();
 
-            lastHeapState = currentHeapState;
-        }
         // ok, we can update the time counters now we don't need the old values
 
         mutatormsecs += mutatorPlus;
@@ -253,44 +502,437 @@ public class MemoryManager
 
         long dump_delta = (end - timestamp);
 
-        // always dump at first GC
-        // dump old GC if last dump was young GC or if last dump was oldGC and was over DUMP_INTERVAL_MIN in the past
-        // dump young GC if last dump was over DUMP_INTERVAL_MAX in the past
-        if (dumpAll || isFirstGC || (isOldGC && (!dumpedOld || dump_delta > DUMP_INTERVAL_MIN)) || dump_delta > DUMP_INTERVAL_MAX) {
-            out.printf("%s timestamp: %9.4f\n", (isOldGC ? "Old: " : "Young: "), totalmsecs/1000.0D);
-            currentHeapState.dump(out);
-            out.printf("  mutator secs: %9.4f               ", 1.0D * mutatormsecs/1000.0D);
-            out.printf("gc secs:      %9.4f\n", 1.0D * gcmsecs/1000.0D);
-            out.printf("    young secs: %9.4f               ", 1.0D * youngmsecs/1000.0D);
-            out.printf("old secs:     %9.4f\n", 1.0D * oldmsecs/1000.0D);
-            out.printf("  live:         %9d               ", live);
-            out.printf("committed:    %9d\n", committed);
-            out.printf(  "  live hi:      %9d (%7.4f%%)    ", (long)tenured_live_hi, tenured_live_hi_pct);
-            out.printf("live lo:      %9d (%7.4f%%)\n", (long)tenured_live_lo, tenured_live_lo_pct);
-            out.printf("  live avg:     %9d (%7.4f%%)    ", (long)tenured_live_avge, tenured_live_avge_pct);
-            out.printf("(last %2d):    %9d (%7.4f%%)\n", RUNNING_SAMPLE_COUNT, (long)tenured_live_running_avge, tenured_live_running_avge_pct);
-            out.printf("  commit hi:    %9d (%7.4f%%)    ", (long)tenured_committed_hi, tenured_committed_hi_pct);
-            out.printf("commit lo:    %9d (%7.4f%%)\n", (long)tenured_committed_lo, tenured_committed_lo_pct);
-            out.printf("  commit avg:   %9d (%7.4f%%)    ", (long)tenured_committed_avge, tenured_committed_avge_pct);
-            out.printf("(last %2d):    %9d (%7.4f%%)\n", RUNNING_SAMPLE_COUNT, (long)tenured_committed_running_avge, tenured_committed_running_avge_pct);
-            out.println();
+        fillRecord(isOldGC, end, live, committed);
+
+        if (binaryLog != null) {
+            // recording is cheap so record every GC
+            binaryLog.append(record);
+            youngPauses.roll();
+            oldPauses.roll();
+        } else if (dumpAll || isFirstGC || (isOldGC && (!dumpedOld || dump_delta > DUMP_INTERVAL_MIN)) || dump_delta > DUMP_INTERVAL_MAX) {
+            // always dump at first GC
+            // dump old GC if last dump was young GC or if last dump was oldGC and was over DUMP_INTERVAL_MIN in the past
+            // dump young GC if last dump was over DUMP_INTERVAL_MAX in the past
+            StatsFormatter.dump(out, record, cause);
+            youngPauses.roll();
+            oldPauses.roll();
 
             timestamp = end;
             dumpedOld = isOldGC;
         }
+
+        // now we have up to date stats resize the balloon if needed
+        if (controller != null && !isFirstGC) {
+            controller.gcEnd(end, isYoungGC, isOldGC, live * 1024, (long)tenured_live_running_avge * 1024, max * 1024, cycle_bytes);
+            controller.verify();
+            // publish the balloon size as left by the controller
+            record.set(StatsField.BALLOON_COUNT, BalloonManager.balloonCount());
+            record.set(StatsField.BALLOON_BYTES, BalloonManager.balloonBytes());
+            record.set(StatsField.BALLOON_INFLATED_BYTES, controller.inflatedBytes());
+            record.set(StatsField.BALLOON_DEFLATED_BYTES, controller.deflatedBytes());
+            record.set(StatsField.BALLOON_BACKOFFS, controller.backoffCount());
+            record.set(StatsField.BALLOON_MAPPED_BYTES, controller.mappedBytes());
+            record.set(StatsField.BALLOON_RESIDENT_BYTES, controller.residentBytes());
+            record.set(StatsField.BALLOON_RECLAIMED_BYTES, controller.reclaimedBytes());
+            record.set(StatsField.BALLOON_REFAULTED, controller.refaultedCount());
+            record.set(StatsField.BALLOON_EMERGENCIES, controller.emergencyCount());
+            record.set(StatsField.BALLOON_EMERGENCY_BYTES, controller.emergencyBytes());
+            record.set(StatsField.BALLOON_PRESSURE_EVENTS, controller.pressureEvents());
+        }
+
+        // retune the free ratios from the same stats. the collector
+        // applies them when it next resizes tenured
+        if (tuner != null && !isFirstGC) {
+            tuner.gcEnd(end, live, (long)tenured_live_running_avge, promotion_rate_running_avge, max);
+            record.set(StatsField.HEAP_MIN_FREE_RATIO, tuner.minRatio());
+            record.set(StatsField.HEAP_MAX_FREE_RATIO, tuner.maxRatio());
+            record.set(StatsField.HEAP_TUNINGS, tuner.changeCount());
+        }
+
+        stats.update(record);
+
+        // hand anything written to out over to the writer thread
+        writer.submit();
+    }
+
+    /**
+     * update the tenured water marks and averages with the live and
+     * committed sizes after a GC which ended at end. the previous sample
+     * is taken to have held from lastEnd until end.
+     */
+    private static void sampleTenured(long end, long lastEnd, long live, long committed, long max, boolean seenOldGC)
+    {
+        double commPct = 100D * committed / max;
+        double livePct = 100D * live / max;
+        // update the committed average and lo water mark using the old tenured sizes after the GC
+        if (committed > tenured_committed_hi) {
+            tenured_committed_hi = committed;
+            tenured_committed_hi_pct = commPct;
+
+        }
+        // don't update lo water until we have seen an old GC
+        if (seenOldGC) {
+            if (committed < tenured_committed_lo || tenured_committed_lo == 0) {
+                tenured_committed_lo = committed;
+                tenured_committed_lo_pct = commPct;
+            }
+            if (live < tenured_live_lo || tenured_live_lo == 0) {
+                tenured_live_lo = live;
+                tenured_live_lo_pct = livePct;
+            }
+        }
+        if (live > tenured_live_hi) {
+            tenured_live_hi = live;
+            tenured_live_hi_pct = livePct;
+        }
+        // now update the averages
+        tenured_committed_avge = ((tenured_committed_avge * lastEnd) + (committed * (end - lastEnd))) / end;
+        tenured_committed_avge_pct = (100D * tenured_committed_avge / max);
+        // update the live average and lo/hi water mark using the old tenured size after the GC
+        tenured_live_avge = ((tenured_live_avge * lastEnd) + (live * (end - lastEnd))) / end;
+        tenured_live_avge_pct = (100D * tenured_live_avge / max);
+
+        sampleWindows(end, live, committed, max);
+    }
+
+    /**
+     * add the live and committed sizes after a GC which ended at end to
+     * the aggregation windows. the running averages are taken from the
+     * first window.
+     */
+    private static void sampleWindows(long end, long live, long committed, long max)
+    {
+        liveWindows.update(end, live);
+        committedWindows.update(end, committed);
+        tenured_live_running_avge = liveWindows.average(0);
+        tenured_live_running_avge_pct = 100D * tenured_live_running_avge / max;
+        tenured_committed_running_avge = committedWindows.average(0);
+        tenured_committed_running_avge_pct = 100D * tenured_committed_running_avge / max;
+    }
+
+    /**
+     * update the water marks and time weighted averages of every memory
+     * pool with its usage after the GC which ended at end. the previous
+     * usage is taken to have held from lastEnd until end.
+     */
+    private static void samplePools(long end, long lastEnd)
+    {
+        for (int pool = 0; pool < pool_used_hi.length; pool++) {
+            long used = currentHeapState.after(pool, USED);
+            long committed = currentHeapState.after(pool, COMMITTED);
+            if (used > pool_used_hi[pool]) {
+                pool_used_hi[pool] = used;
+            }
+            if (used < pool_used_lo[pool] || pool_used_lo[pool] == 0) {
+                pool_used_lo[pool] = used;
+            }
+            if (committed > pool_committed_hi[pool]) {
+                pool_committed_hi[pool] = committed;
+            }
+            if (committed < pool_committed_lo[pool] || pool_committed_lo[pool] == 0) {
+                pool_committed_lo[pool] = committed;
+            }
+            if (end > 0) {
+                pool_used_avge[pool] = ((pool_used_avge[pool] * lastEnd) + (used * (double)(end - lastEnd))) / end;
+                pool_committed_avge[pool] = ((pool_committed_avge[pool] * lastEnd) + (committed * (double)(end - lastEnd))) / end;
+            }
+        }
+    }
+
+    /**
+     * sample the process and container memory and update their water marks
+     */
+    private static void sampleProcess()
+    {
+        if (processMemory == null) {
+            return;
+        }
+        processMemory.sample();
+        if (processMemory.rss > process_rss_hi) {
+            process_rss_hi = processMemory.rss;
+        }
+        if (processMemory.cgroupUsage > cgroup_usage_hi) {
+            cgroup_usage_hi = processMemory.cgroupUsage;
+        }
+    }
+
+    /**
+     * update the allocation, promotion and survivor overflow rates with
+     * the eden and tenured sizes either side of the GCs which happened
+     * since the last recorded GC. the interval is taken to have had
+     * mutatorPlus msecs of mutator time.
+     */
+    private static void sampleRates(long end, boolean isYoungGC, boolean isFullGC, boolean isMixedGC, long mutatorPlus)
+    {
+        HeapState current = currentHeapState;
+        HeapState last = lastHeapState;
+        long edenAfter = last.edenAfterSize();
+        long tenuredAfter = last.tenuredAfterSize();
+        long allocated = 0;
+        long promoted = 0;
+        long overflowed = 0;
+        // if there was both a young and a full GC chain the sizes through
+        // them in the order the GCs ended
+        boolean fullFirst = isFullGC && (!isYoungGC || current.oldEndTime < current.youngEndTime);
+        if (fullFirst) {
+            allocated += growth(edenAfter, current.eden(OLD_BEFORE, USED));
+            promoted += growth(tenuredAfter, current.tenured(OLD_BEFORE, USED));
+            edenAfter = current.eden(OLD_AFTER, USED);
+            tenuredAfter = current.tenured(OLD_AFTER, USED);
+        }
+        if (isYoungGC) {
+            allocated += growth(edenAfter, current.eden(YOUNG_BEFORE, USED));
+            if (isMixedGC) {
+                // a mixed GC also evacuates tenured regions so only the
+                // growth up to the GC counts
+                promoted += growth(tenuredAfter, current.tenured(YOUNG_BEFORE, USED));
+            } else {
+                promoted += growth(tenuredAfter, current.tenured(YOUNG_AFTER, USED));
+                if (gcState.survivorOverflowed(current)) {
+                    overflowed += growth(current.tenured(YOUNG_BEFORE, USED), current.tenured(YOUNG_AFTER, USED));
+                }
+            }
+            edenAfter = current.eden(YOUNG_AFTER, USED);
+            tenuredAfter = current.tenured(YOUNG_AFTER, USED);
+        }
+        if (isFullGC && !fullFirst) {
+            allocated += growth(edenAfter, current.eden(OLD_BEFORE, USED));
+            promoted += growth(tenuredAfter, current.tenured(OLD_BEFORE, USED));
+        }
+        // GCs coalesced into this one are only known from their counts.
+        // each was triggered by a full eden so count a full eden for each
+        long missed = (current.youngCount - last.youngCount) + (current.oldCount - last.oldCount)
+                - (isYoungGC ? 1 : 0) - (isFullGC ? 1 : 0);
+        if (missed > 0) {
+            allocated += missed * current.eden(YOUNG_BEFORE, USED);
+        }
+
+        // convert to KBs per mutator second
+        double allocatedKB = allocated / 1024D;
+        double promotedKB = promoted / 1024D;
+        double overflowedKB = overflowed / 1024D;
+        if (mutatorPlus > 0) {
+            allocation_rate = allocatedKB * 1000D / mutatorPlus;
+            promotion_rate = promotedKB * 1000D / mutatorPlus;
+            survivor_overflow_rate = overflowedKB * 1000D / mutatorPlus;
+        }
+        allocated_total += allocatedKB;
+        promoted_total += promotedKB;
+        overflowed_total += overflowedKB;
+        rate_msecs += mutatorPlus;
+        if (rate_msecs > 0) {
+            allocation_rate_avge = allocated_total * 1000D / rate_msecs;
+            promotion_rate_avge = promoted_total * 1000D / rate_msecs;
+            survivor_overflow_rate_avge = overflowed_total * 1000D / rate_msecs;
+        }
+
+        allocationWindows.update(end, allocation_rate);
+        promotionWindows.update(end, promotion_rate);
+        overflowWindows.update(end, survivor_overflow_rate);
+        allocation_rate_running_avge = allocationWindows.average(0);
+        promotion_rate_running_avge = promotionWindows.average(0);
+        survivor_overflow_rate_running_avge = overflowWindows.average(0);
+    }
+
+    /**
+     * for a concurrent collector estimate how many bytes the application
+     * allocates while a cycle runs. the GC info gives the heap usage as
+     * each cycle starts so whatever it grew by since the last cycle ended
+     * was allocated in between. the rate over those gaps times the usual
+     * cycle length is what a cycle needs free when it starts. a cycle
+     * into which others were coalesced has no usable gap so is skipped.
+     */
+    private static void sampleCycle()
+    {
+        HeapState current = currentHeapState;
+        HeapState last = lastHeapState;
+        if (current.oldCount != last.oldCount + 1) {
+            return;
+        }
+        // GC info times are in whole msecs so back to back cycles can
+        // appear to leave no gap
+        long gap = Math.max(current.oldStart() - last.oldEnd(), 1);
+        long grown = growth(last.heapUsed(OLD_AFTER), current.heapUsed(OLD_BEFORE));
+        cycle_gap_bytes = cycle_gap_bytes * (1D - CYCLE_WEIGHT) + grown;
+        cycle_gap_msecs = cycle_gap_msecs * (1D - CYCLE_WEIGHT) + gap;
+        if (cycle_msecs_avge == 0D) {
+            cycle_msecs_avge = current.oldElapsed();
+        } else {
+            cycle_msecs_avge += CYCLE_WEIGHT * (current.oldElapsed() - cycle_msecs_avge);
+        }
+        cycle_bytes = (long)(cycle_gap_bytes / cycle_gap_msecs * cycle_msecs_avge);
+    }
+
+    /**
+     * @return the amount a pool grew from before to after or 0 if it shrank
+     */
+    private static long growth(long before, long after)
+    {
+        return (after > before ? after - before : 0);
+    }
+
+    /**
+     * fold the tenured sizes sampled by the native agent for GCs which
+     * were coalesced into the current one into the water marks and
+     * averages
+     *
+     * @param count the number of samples to fold
+     * @param lastEnd the end time of the last recorded GC
+     * @param end the end time of the current GC
+     * @return the end time of the last sample folded or lastEnd if none were
+     */
+    private static long foldSamples(int count, long lastEnd, long end, long max, boolean seenOldGC)
+    {
+        for (int i = 0; i < count; i++) {
+            int base = i * SAMPLE_FIELDS;
+            long used = samples[base + SAMPLE_OLD_USED];
+            if (used < 0) {
+                // perf data counters are not available
+                continue;
+            }
+            // keep sample times inside the interval between the recorded GCs
+            long sampleEnd = (samples[base + SAMPLE_NANOS] - nanoOrigin) / 1000000L;
+            sampleEnd = Math.max(lastEnd, Math.min(sampleEnd, end));
+            sampleTenured(sampleEnd, lastEnd, used / 1024, samples[base + SAMPLE_OLD_CAPACITY] / 1024, max, seenOldGC);
+            lastEnd = sampleEnd;
+            gcsAggregated++;
+        }
+        return lastEnd;
+    }
+
+    /**
+     * copy the current heap state and stats into the preallocated record
+     */
+    private static void fillRecord(boolean isOldGC, long end, long live, long committed)
+    {
+        record.set(StatsField.OLD_GC, isOldGC);
+        record.set(StatsField.CONCURRENT, gcState.isConcurrent());
+        record.set(StatsField.END, end);
+        record.set(StatsField.TOTAL_MSECS, totalmsecs);
+        record.set(StatsField.MUTATOR_MSECS, mutatormsecs);
+        record.set(StatsField.GC_MSECS, gcmsecs);
+        record.set(StatsField.YOUNG_MSECS, youngmsecs);
+        record.set(StatsField.OLD_MSECS, oldmsecs);
+        currentHeapState.record(record);
+        record.set(StatsField.LIVE, live);
+        record.set(StatsField.COMMITTED, committed);
+        record.set(StatsField.LIVE_HI, tenured_live_hi);
+        record.set(StatsField.LIVE_HI_PCT, tenured_live_hi_pct);
+        record.set(StatsField.LIVE_LO, tenured_live_lo);
+        record.set(StatsField.LIVE_LO_PCT, tenured_live_lo_pct);
+        record.set(StatsField.LIVE_AVGE, tenured_live_avge);
+        record.set(StatsField.LIVE_AVGE_PCT, tenured_live_avge_pct);
+        record.set(StatsField.LIVE_RUNNING_AVGE, tenured_live_running_avge);
+        record.set(StatsField.LIVE_RUNNING_AVGE_PCT, tenured_live_running_avge_pct);
+        record.set(StatsField.COMMITTED_HI, tenured_committed_hi);
+        record.set(StatsField.COMMITTED_HI_PCT, tenured_committed_hi_pct);
+        record.set(StatsField.COMMITTED_LO, tenured_committed_lo);
+        record.set(StatsField.COMMITTED_LO_PCT, tenured_committed_lo_pct);
+        record.set(StatsField.COMMITTED_AVGE, tenured_committed_avge);
+        record.set(StatsField.COMMITTED_AVGE_PCT, tenured_committed_avge_pct);
+        record.set(StatsField.COMMITTED_RUNNING_AVGE, tenured_committed_running_avge);
+        record.set(StatsField.COMMITTED_RUNNING_AVGE_PCT, tenured_committed_running_avge_pct);
+        record.set(StatsField.RUNNING_WINDOW, windows[0]);
+        record.set(StatsField.BALLOONING, controller != null);
+        record.set(StatsField.BALLOON_COUNT, (controller != null ? BalloonManager.balloonCount() : 0));
+        record.set(StatsField.BALLOON_BYTES, (controller != null ? BalloonManager.balloonBytes() : 0));
+        record.set(StatsField.BALLOON_INFLATED_BYTES, (controller != null ? controller.inflatedBytes() : 0));
+        record.set(StatsField.BALLOON_DEFLATED_BYTES, (controller != null ? controller.deflatedBytes() : 0));
+        record.set(StatsField.BALLOON_BACKOFFS, (controller != null ? controller.backoffCount() : 0));
+        record.set(StatsField.GCS_SEEN, gcsSeen);
+        record.set(StatsField.GCS_AGGREGATED, gcsAggregated);
+        record.set(StatsField.GCS_DELIVERED, gcsDelivered);
+        record.set(StatsField.GCS_COALESCED, gcsCoalesced);
+        record.set(StatsField.YOUNG_PAUSES, youngPauses.count());
+        record.set(StatsField.YOUNG_PAUSE_P50, youngPauses.percentile(0.5D));
+        record.set(StatsField.YOUNG_PAUSE_P90, youngPauses.percentile(0.9D));
+        record.set(StatsField.YOUNG_PAUSE_P99, youngPauses.percentile(0.99D));
+        record.set(StatsField.YOUNG_PAUSE_P999, youngPauses.percentile(0.999D));
+        record.set(StatsField.YOUNG_PAUSE_MAX, youngPauses.max());
+        record.set(StatsField.OLD_PAUSES, oldPauses.count());
+        record.set(StatsField.OLD_PAUSE_P50, oldPauses.percentile(0.5D));
+        record.set(StatsField.OLD_PAUSE_P90, oldPauses.percentile(0.9D));
+        record.set(StatsField.OLD_PAUSE_P99, oldPauses.percentile(0.99D));
+        record.set(StatsField.OLD_PAUSE_P999, oldPauses.percentile(0.999D));
+        record.set(StatsField.OLD_PAUSE_MAX, oldPauses.max());
+        record.set(StatsField.ALLOCATION_RATE, allocation_rate);
+        record.set(StatsField.ALLOCATION_RATE_AVGE, allocation_rate_avge);
+        record.set(StatsField.ALLOCATION_RATE_RUNNING_AVGE, allocation_rate_running_avge);
+        record.set(StatsField.PROMOTION_RATE, promotion_rate);
+        record.set(StatsField.PROMOTION_RATE_AVGE, promotion_rate_avge);
+        record.set(StatsField.PROMOTION_RATE_RUNNING_AVGE, promotion_rate_running_avge);
+        record.set(StatsField.SURVIVOR_OVERFLOW_RATE, survivor_overflow_rate);
+        record.set(StatsField.SURVIVOR_OVERFLOW_RATE_AVGE, survivor_overflow_rate_avge);
+        record.set(StatsField.SURVIVOR_OVERFLOW_RATE_RUNNING_AVGE, survivor_overflow_rate_running_avge);
+        for (int w = 0; w < WindowedStats.MAX_WINDOWS; w++) {
+            record.set(StatsField.get(StatsField.WINDOW_1_MSECS.ordinal() + w), (w < windows.length ? windows[w] : 0));
+        }
+        liveWindows.record(record, StatsField.LIVE_W1_AVGE);
+        committedWindows.record(record, StatsField.COMMITTED_W1_AVGE);
+        allocationWindows.record(record, StatsField.ALLOCATION_RATE_W1_AVGE);
+        promotionWindows.record(record, StatsField.PROMOTION_RATE_W1_AVGE);
+        record.set(StatsField.BALLOON_MAPPED_BYTES, (controller != null ? controller.mappedBytes() : -1));
+        record.set(StatsField.BALLOON_RESIDENT_BYTES, (controller != null ? controller.residentBytes() : -1));
+        record.set(StatsField.BALLOON_RECLAIMED_BYTES, (controller != null ? controller.reclaimedBytes() : -1));
+        record.set(StatsField.BALLOON_REFAULTED, (controller != null ? controller.refaultedCount() : -1));
+        record.set(StatsField.BALLOON_EMERGENCIES, (controller != null ? controller.emergencyCount() : 0));
+        record.set(StatsField.BALLOON_EMERGENCY_BYTES, (controller != null ? controller.emergencyBytes() : 0));
+        record.set(StatsField.BALLOON_PRESSURE_EVENTS, (controller != null ? controller.pressureEvents() : 0));
+        record.set(StatsField.HEAP_MIN_FREE_RATIO, (tuner != null ? tuner.minRatio() : -1));
+        record.set(StatsField.HEAP_MAX_FREE_RATIO, (tuner != null ? tuner.maxRatio() : -1));
+        record.set(StatsField.HEAP_TUNINGS, (tuner != null ? tuner.changeCount() : 0));
+        record.set(StatsField.HEAP_COMMITTED, currentHeapState.heapCommittedSize());
+        ProcessMemory process = processMemory;
+        record.set(StatsField.PROCESS_RSS, (process != null ? process.rss : -1));
+        record.set(StatsField.PROCESS_RSS_HI, process_rss_hi);
+        record.set(StatsField.PROCESS_PSS, (process != null ? process.pss : -1));
+        record.set(StatsField.PROCESS_SWAP, (process != null ? process.swap : -1));
+        record.set(StatsField.CGROUP_USAGE, (process != null ? process.cgroupUsage : -1));
+        record.set(StatsField.CGROUP_USAGE_HI, cgroup_usage_hi);
+        record.set(StatsField.CGROUP_LIMIT, (process != null ? process.cgroupLimit : -1));
+        record.set(StatsField.CGROUP_ANON, (process != null ? process.cgroupAnon : -1));
+        record.set(StatsField.CGROUP_FILE, (process != null ? process.cgroupFile : -1));
+        for (int pool = 0; pool < pool_used_hi.length; pool++) {
+            record.set(pool, PoolField.USED, currentHeapState.after(pool, USED));
+            record.set(pool, PoolField.COMMITTED, currentHeapState.after(pool, COMMITTED));
+            record.set(pool, PoolField.MAX, currentHeapState.after(pool, MAX));
+            record.set(pool, PoolField.USED_HI, pool_used_hi[pool]);
+            record.set(pool, PoolField.USED_LO, pool_used_lo[pool]);
+            record.set(pool, PoolField.USED_AVGE, pool_used_avge[pool]);
+            record.set(pool, PoolField.COMMITTED_HI, pool_committed_hi[pool]);
+            record.set(pool, PoolField.COMMITTED_LO, pool_committed_lo[pool]);
+            record.set(pool, PoolField.COMMITTED_AVGE, pool_committed_avge[pool]);
+        }
     }
 
     /**
      * called when the agent is terminated.
      */
 
-    private final static void terminate()
+    private final static synchronized void terminate()
     {
         // identify the current GC state
     }
 
     /**
-     * output stream to the ballon stats log file or Syste.out if useSysout was passed as true
+     * true once init has succeeded either from the native agent or
+     * from BalloonAgent
+     */
+    private static boolean initialized = false;
+
+    /**
+     * true if stats are gathered from GC notifications rather than by
+     * upcalls to gcEnd from the native agent
+     */
+    private static boolean notificationDriven = false;
+
+    /**
+     * asynchronous writer for the ballon stats log file or stdout if useSysout was passed as true
+     */
+    private static StatsWriter writer = null;
+
+    /**
+     * stream used to format stats text for the writer
      */
     private static PrintStream out = null;
 
@@ -299,6 +941,27 @@ public class MemoryManager
      *  at infrequent intervals
      */
     private static boolean dumpAll;
+    /**
+     * binary stats log or null if stats are only logged as text
+     */
+    private static BinaryLog binaryLog = null;
+    /**
+     * preallocated record refilled with the stats for each GC
+     */
+    private static StatsRecord record = null;
+    /**
+     * snapshot of the stats published via JMX and the metrics endpoint
+     */
+    private static MemoryManagerStats stats = null;
+    /**
+     * controller which sizes the balloon or null if ballooning is not enabled
+     */
+    private static BalloonController controller = null;
+    /**
+     * tuner which adjusts the heap free ratios or null if tuning is not
+     * enabled
+     */
+    private static HeapTuner tuner = null;
     /**
      * accessor for the GC satistics
      */
@@ -309,8 +972,101 @@ public class MemoryManager
     private static HeapState currentHeapState = null;
     /**
      * heap stats for the previous most recently recorded GC
+     *
+     * only valid once sampled is true
      */
     private static HeapState lastHeapState = null;
+    /**
+     * true once gcEnd has sampled the heap at least once
+     */
+    private static boolean sampled = false;
+    /**
+     * true once a young GC has been seen to also collect tenured space
+     */
+    private static boolean seenMixedGC = false;
+
+    /**
+     * layout of the heap samples taken by the native agent at each GC.
+     * each sample is SAMPLE_FIELDS consecutive longs. sizes are in bytes
+     * and are -1 if the agent cannot read them. the start time and the
+     * before sizes are -1 if the agent missed the start of the GC.
+     *
+     * n.b. package-private access so HeapState can read the samples
+     */
+    final static int SAMPLE_SEQ = 0;
+    final static int SAMPLE_NANOS = 1;
+    final static int SAMPLE_YOUNG_COUNT = 2;
+    final static int SAMPLE_OLD_COUNT = 3;
+    final static int SAMPLE_EDEN_USED = 4;
+    final static int SAMPLE_EDEN_CAPACITY = 5;
+    final static int SAMPLE_OLD_USED = 6;
+    final static int SAMPLE_OLD_CAPACITY = 7;
+    final static int SAMPLE_START_NANOS = 8;
+    final static int SAMPLE_EDEN_CAPACITY_BEFORE = 9;
+    final static int SAMPLE_SURVIVOR_USED_BEFORE = 10;
+    final static int SAMPLE_SURVIVOR_CAPACITY_BEFORE = 11;
+    final static int SAMPLE_OLD_USED_BEFORE = 12;
+    final static int SAMPLE_OLD_CAPACITY_BEFORE = 13;
+    final static int SAMPLE_SURVIVOR_USED = 14;
+    final static int SAMPLE_SURVIVOR_CAPACITY = 15;
+    final static int SAMPLE_SURVIVOR_SPACES_BEFORE = 16;
+    final static int SAMPLE_SURVIVOR_SPACES = 17;
+    final static int SAMPLE_YOUNG_MAX = 18;
+    final static int SAMPLE_FIELDS = 19;
+
+    /**
+     * the most samples the native agent can hold between calls to gcEnd,
+     * a full event ring plus the record of the newest GC which found it
+     * full
+     */
+    private final static int SAMPLE_BATCH = 256 + 1;
+
+    /**
+     * preallocated buffer into which the native agent's samples are drained
+     */
+    private static long[] samples = new long[SAMPLE_BATCH * SAMPLE_FIELDS];
+
+    /**
+     * histograms of young and old GC pause times since the stats were
+     * last dumped
+     */
+    private static PauseHistogram youngPauses = new PauseHistogram();
+    private static PauseHistogram oldPauses = new PauseHistogram();
+
+    /**
+     * preallocated buffer into which the native agent's pause
+     * histograms are read
+     */
+    private static long[] pauses = new long[2 * (PauseHistogram.BUCKETS + 1)];
+
+    /**
+     * System.nanoTime at JVM start. sample times are taken from the
+     * same clock so subtracting this converts them to JVM uptime.
+     */
+    private static long nanoOrigin;
+    /**
+     * true once nanoOrigin has been matched against a young GC's info
+     */
+    private static boolean clockCalibrated = false;
+
+    /**
+     * the number of GCs sampled by the native agent
+     */
+    private static long gcsSeen;
+
+    /**
+     * the number of sampled GCs folded into the aggregates without
+     * their own record
+     */
+    private static long gcsAggregated;
+
+    /**
+     * the number of calls to gcEnd which drained samples and the number
+     * of GCs which ended since the previous call before the last one
+     * drained, whether or not their samples were kept
+     */
+    private static long gcsDelivered;
+    private static long gcsCoalesced;
 
     /**
      * the total time spent in young GC in millisecs
@@ -327,6 +1083,12 @@ public class MemoryManager
      */
     private static long gcmsecs;
 
+    /**
+     * the total GC pause time in millisecs as of the last GC when using a
+     * concurrent collector
+     */
+    private static long lastPauseMillis;
+
     /**
      * the total time not spent in GC millisecs
      */
@@ -406,29 +1168,89 @@ public class MemoryManager
     private static double tenured_committed_running_avge = 0D;
 
     /**
-     *  number of samples used to keep a running average of the committed and live sizes
+     * water marks and time weighted averages in bytes of the used and
+     * committed sizes of every memory pool indexed as in HeapState
      */
-    private final static int RUNNING_SAMPLE_COUNT = 10;
+    private static long[] pool_used_hi;
+    private static long[] pool_used_lo;
+    private static double[] pool_used_avge;
+    private static long[] pool_committed_hi;
+    private static long[] pool_committed_lo;
+    private static double[] pool_committed_avge;
 
     /**
-     *  the last N values for committed
+     * sampler for the process and container memory or null if neither
+     * can be read
      */
-    private static long[] committed_running = new long[RUNNING_SAMPLE_COUNT];
+    private static ProcessMemory processMemory;
 
     /**
-     *  the last N values for live
+     * highest process RSS and cgroup usage in bytes seen at a GC
      */
-    private static long[] live_running = new long[RUNNING_SAMPLE_COUNT];
+    private static long process_rss_hi = -1;
+    private static long cgroup_usage_hi = -1;
 
     /**
-     *  the last N time intervals over which samples are valid
+     * default aggregation window lengths in msecs. overridden by the
+     * windows option. the first window gives the running averages.
      */
-    private static long[] time_running = new long[RUNNING_SAMPLE_COUNT];
+    private final static long[] DEFAULT_WINDOWS = { 60 * 1000L, 5 * 60 * 1000L, 15 * 60 * 1000L, 60 * 60 * 1000L };
 
     /**
-     * round robin counter for latest running stat sample index
+     * the aggregation window lengths in msecs
      */
-    private static int sample_idx = RUNNING_SAMPLE_COUNT - 1;
+    private static long[] windows = DEFAULT_WINDOWS;
+
+    /**
+     * windowed aggregates of the live and committed KBs and the
+     * allocation, promotion and survivor overflow rates
+     */
+    private static WindowedStats liveWindows;
+    private static WindowedStats committedWindows;
+    private static WindowedStats allocationWindows;
+    private static WindowedStats promotionWindows;
+    private static WindowedStats overflowWindows;
+
+    /**
+     * allocation, promotion and survivor overflow rates in KBs per
+     * mutator second for the last interval, the whole run and the
+     * running window
+     */
+    private static double allocation_rate = 0D;
+    private static double allocation_rate_avge = 0D;
+    private static double allocation_rate_running_avge = 0D;
+    private static double promotion_rate = 0D;
+    private static double promotion_rate_avge = 0D;
+    private static double promotion_rate_running_avge = 0D;
+    private static double survivor_overflow_rate = 0D;
+    private static double survivor_overflow_rate_avge = 0D;
+    private static double survivor_overflow_rate_running_avge = 0D;
+
+    /**
+     * KBs allocated, promoted and overflowed since the first GC and the
+     * mutator msecs over which they were measured
+     */
+    private static double allocated_total = 0D;
+    private static double promoted_total = 0D;
+    private static double overflowed_total = 0D;
+    private static long rate_msecs = 0;
+
+    /**
+     * for a concurrent collector decaying sums of the bytes allocated in
+     * the gaps between cycles and of the msecs those gaps lasted, the
+     * running average cycle length in msecs and the bytes estimated from
+     * them to be allocated while a cycle runs. cycle_bytes stays 0 for
+     * stop the world collectors
+     */
+    private static double cycle_gap_bytes = 0D;
+    private static double cycle_gap_msecs = 0D;
+    private static double cycle_msecs_avge = 0D;
+    private static long cycle_bytes = 0;
+
+    /**
+     * weight given to the latest cycle when updating the cycle estimates
+     */
+    private final static double CYCLE_WEIGHT = 0.2D;
 
     /**
      * was the last dump for an old GC?
@@ -443,7 +1265,7 @@ public class MemoryManager
      * i.e. if old GCs come thick and fast we wll wait at least 20 seconds
      * before dumping details of the next old GC
      *
-     * n.b. only respected if dumpAll is false
+     * n.b. only respected if dumpAll is false. set with the dumpmin option
      */
     private static long DUMP_INTERVAL_MIN = 20 * 1000;
     /**
@@ -452,7 +1274,7 @@ public class MemoryManager
      * i.e. if old GCs are thin in the ground we will dump details of the next
      * young GC if we have not seen an old GC for 2 minutes
      *
-     * n.b. only respected if dumpAll is false
+     * n.b. only respected if dumpAll is false. set with the dumpmax option
      */
     private static long DUMP_INTERVAL_MAX = 120 * 1000;
 
@@ -468,20 +1290,20 @@ public class MemoryManager
      *
      * this value will be supplied by default
      */
-    private static int LOG_LOCATION_LOCAL = 0;
+    final static int LOG_LOCATION_LOCAL = 0;
     /**
      * constant value passed into init call to request logging to System.out
      */
-    private static int LOG_LOCATION_SYSOUT = 1;
+    final static int LOG_LOCATION_SYSOUT = 1;
     /**
      * constant value passed into init call to request placement of log file in app-root/data dir
      */
-    private static int LOG_LOCATION_APPROOT = 2;
+    final static int LOG_LOCATION_APPROOT = 2;
 
     /**
      * called during init to open the log file and write a header
      */
-    private static PrintStream openLog(int logPlacement)
+    private static StatsWriter openLog(int logPlacement)
     {
         String filename;
         if (logPlacement == LOG_LOCATION_APPROOT) {
@@ -491,14 +1313,7 @@ public class MemoryManager
         } else {
             return null;
         }
-        File file = new File(filename);
-        try {
-            FileOutputStream fos = new FileOutputStream(file, true);
-            PrintStream out = new PrintStream(fos, true);
-            return out;
-        } catch (FileNotFoundException e) {
-            return null;
-        }
+        return StatsWriter.open(filename);
     }
 
     /**
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+/**
+ * the statistics computed by MemoryManager at the end of each GC. the
+ * MemoryManager MXBean publishes each of them as an attribute and all
+ * of them together as its Snapshot attribute.
+ *
+ * the unit of each attribute is given with it. sizes are in KBs, as in
+ * the stats log, except for the balloon sizes, whose names end in
+ * Bytes, and the pool usage arrays, which are in bytes. times are in
+ * msecs, pauses in usecs and rates in KBs per second.
+ */
+public interface MemoryManagerSnapshot
+{
+    /**
+     * @return the end time of the GC which produced the snapshot in msecs since JVM start
+     */
+    public long getTimestamp();
+
+    public boolean isLastGCOld();
+    public long getYoungGCCount();
+    public long getOldGCCount();
+
+    /**
+     * running totals in msecs
+     */
+    public long getTotalMillis();
+    public long getMutatorMillis();
+    public long getGCMillis();
+    public long getYoungGCMillis();
+    public long getOldGCMillis();
+
+    /**
+     * tenured live and committed sizes in KBs after the GC
+     */
+    public long getLive();
+    public long getCommitted();
+
+    /**
+     * water marks and averages of the tenured live and committed sizes
+     * in KBs, each with its percentage of the tenured max
+     */
+    public long getLiveHi();
+    public double getLiveHiPercent();
+    public long getLiveLo();
+    public double getLiveLoPercent();
+    public long getLiveAverage();
+    public double getLiveAveragePercent();
+    public long getLiveRunningAverage();
+    public double getLiveRunningAveragePercent();
+
+    public long getCommittedHi();
+    public double getCommittedHiPercent();
+    public long getCommittedLo();
+    public double getCommittedLoPercent();
+    public long getCommittedAverage();
+    public double getCommittedAveragePercent();
+    public long getCommittedRunningAverage();
+    public double getCommittedRunningAveragePercent();
+
+    /**
+     * @return the length in msecs of the window used for the running averages
+     */
+    public long getRunningWindowMillis();
+
+    /**
+     * whether the controller is running, the balloons it holds, their
+     * size in bytes, the bytes it has inflated and deflated in total and
+     * the number of times it has backed off
+     */
+    public boolean isBallooning();
+    public long getBalloonCount();
+    public long getBalloonBytes();
+    public long getBalloonInflatedBytes();
+    public long getBalloonDeflatedBytes();
+    public long getBalloonBackoffCount();
+
+    /**
+     * bytes of whole balloon pages, how many bytes of them were resident
+     * and how many released at the last residency check and the number
+     * of moved balloons with resident pages. -1 unless the verify option
+     * is set
+     */
+    public long getBalloonMappedBytes();
+    public long getBalloonResidentBytes();
+    public long getBalloonReclaimedBytes();
+    public long getBalloonRefaultedCount();
+
+    /**
+     * number of emergency deflations triggered by heap exhaustion or
+     * critical tenured occupancy and the balloon bytes they released
+     */
+    public long getBalloonEmergencyCount();
+    public long getBalloonEmergencyBytes();
+
+    /**
+     * number of times a PSI trigger reported memory pressure. 0 unless
+     * the psi option is set
+     */
+    public long getBalloonPressureEvents();
+
+    /**
+     * the heap free ratios set by the tuner as percentages, -1 unless
+     * the tune option is set, and the number of times it has changed them
+     */
+    public long getHeapMinFreeRatio();
+    public long getHeapMaxFreeRatio();
+    public long getHeapTuningCount();
+
+    /**
+     * GC end events the native agent has seen and the coalesced ones
+     * whose samples were folded into the stats
+     */
+    public long getGCsSeen();
+    public long getGCsAggregated();
+
+    /**
+     * GC end events the native agent delivered to the manager and those
+     * coalesced into a later delivery because they arrived while it was
+     * busy. they add up to GCsSeen
+     */
+    public long getGCsDelivered();
+    public long getGCsCoalesced();
+
+    /**
+     * allocation, promotion and estimated survivor overflow rates in
+     * KBs per mutator second for the last interval, the whole run and
+     * the running window
+     */
+    public double getAllocationRate();
+    public double getAllocationRateAverage();
+    public double getAllocationRateRunningAverage();
+    public double getPromotionRate();
+    public double getPromotionRateAverage();
+    public double getPromotionRateRunningAverage();
+    public double getSurvivorOverflowRate();
+    public double getSurvivorOverflowRateAverage();
+    public double getSurvivorOverflowRateRunningAverage();
+
+    /**
+     * committed size in KBs of the heap pools after the last GC and the
+     * process and container memory in KBs sampled with it. -1 if not
+     * available and for the limit also if there is none.
+     */
+    public long getHeapCommitted();
+    public long getProcessRss();
+    public long getProcessRssHi();
+    public long getProcessPss();
+    public long getProcessSwap();
+    public long getCgroupUsage();
+    public long getCgroupUsageHi();
+    public long getCgroupLimit();
+    public long getCgroupAnon();
+    public long getCgroupFile();
+
+    /**
+     * @return the lengths in msecs of the aggregation windows
+     */
+    public long[] getWindowMillis();
+
+    /**
+     * time weighted average, min, max and exponentially weighted
+     * average over each aggregation window in the same order as
+     * WindowMillis. sizes are in KBs and rates in KBs per second.
+     */
+    public double[] getLiveWindowAverages();
+    public double[] getLiveWindowMins();
+    public double[] getLiveWindowMaxes();
+    public double[] getLiveWindowEwmas();
+    public double[] getCommittedWindowAverages();
+    public double[] getCommittedWindowMins();
+    public double[] getCommittedWindowMaxes();
+    public double[] getCommittedWindowEwmas();
+    public double[] getAllocationRateWindowAverages();
+    public double[] getAllocationRateWindowMins();
+    public double[] getAllocationRateWindowMaxes();
+    public double[] getAllocationRateWindowEwmas();
+    public double[] getPromotionRateWindowAverages();
+    public double[] getPromotionRateWindowMins();
+    public double[] getPromotionRateWindowMaxes();
+    public double[] getPromotionRateWindowEwmas();
+
+    /**
+     * @return the names of all the memory pools, heap and non-heap
+     */
+    public String[] getPoolNames();
+
+    /**
+     * usage in bytes of each memory pool in the same order as PoolNames.
+     * used and committed are as at the end of the last GC, with their
+     * water marks and time weighted averages since the first GC.
+     */
+    public long[] getPoolUsed();
+    public long[] getPoolCommitted();
+    public long[] getPoolMax();
+    public long[] getPoolUsedHi();
+    public long[] getPoolUsedLo();
+    public double[] getPoolUsedAverage();
+    public long[] getPoolCommittedHi();
+    public long[] getPoolCommittedLo();
+    public double[] getPoolCommittedAverage();
+
+    /**
+     * pause counts and percentiles in usecs for the interval since the
+     * stats were last dumped
+     */
+    public long getYoungPauseCount();
+    public long getYoungPause50thPercentile();
+    public long getYoungPause90thPercentile();
+    public long getYoungPause99thPercentile();
+    public long getYoungPause999thPermille();
+    public long getYoungPauseMax();
+    public long getOldPauseCount();
+    public long getOldPause50thPercentile();
+    public long getOldPause90thPercentile();
+    public long getOldPause99thPercentile();
+    public long getOldPause999thPermille();
+    public long getOldPauseMax();
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static com.redhat.openjdk.balloon.StatsField.*;
+
+/**
+ * MXBean implementation which serves the MemoryManager statistics from
+ * a private copy of the last StatsRecord. the agent thread replaces the
+ * copy after each GC and readers take the same lock so no attribute
+ * is ever read from a partially updated record. the Snapshot attribute
+ * is served from a frozen copy so that all of its items come from the
+ * same GC. MetricsServer renders its responses from the same snapshot.
+ */
+// package access only
+class MemoryManagerStats implements MemoryManagerStatsMXBean
+{
+    public final static String OBJECT_NAME = "com.redhat.openjdk.balloon:type=MemoryManager";
+
+    private final StatsRecord snapshot;
+
+    /**
+     * the names of the memory pools whose fields the snapshot holds
+     */
+    private final String[] poolNames;
+
+    /**
+     * incremented each time the snapshot is replaced
+     */
+    private long version = 0;
+
+    public MemoryManagerStats(String[] poolNames)
+    {
+        this.poolNames = poolNames;
+        snapshot = new StatsRecord(poolNames);
+    }
+
+    /**
+     * create a copy of the supplied stats which is never updated
+     */
+    private MemoryManagerStats(MemoryManagerStats stats)
+    {
+        this(stats.poolNames);
+        version = stats.copyTo(snapshot);
+    }
+
+    public String[] poolNames()
+    {
+        return poolNames;
+    }
+
+    /**
+     * register the bean with the platform MBean server
+     *
+     * @return true if the bean was registered otherwise false
+     */
+    public boolean register()
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            System.out.printf("MemoryManagerStats : could not register %s : %s\n", OBJECT_NAME, e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * replace the snapshot with a copy of the supplied record
+     */
+    public synchronized void update(StatsRecord record)
+    {
+        snapshot.copyFrom(record);
+        version++;
+    }
+
+    /**
+     * @return the version of the current snapshot
+     */
+    public synchronized long version()
+    {
+        return version;
+    }
+
+    /**
+     * copy the snapshot into the supplied record
+     * @return the version of the copied snapshot
+     */
+    public synchronized long copyTo(StatsRecord record)
+    {
+        record.copyFrom(snapshot);
+        return version;
+    }
+
+    public MemoryManagerSnapshot getSnapshot()
+    {
+        return new MemoryManagerStats(this);
+    }
+
+    private synchronized long get(StatsField field)
+    {
+        return snapshot.get(field);
+    }
+
+    /**
+     * @return a size held in bytes in KBs or -1 if it is not available
+     */
+    private synchronized long getKB(StatsField field)
+    {
+        long bytes = snapshot.get(field);
+        return (bytes < 0 ? -1 : bytes / 1024);
+    }
+
+    private synchronized double getDouble(StatsField field)
+    {
+        return snapshot.getDouble(field);
+    }
+
+    private synchronized int windowCount()
+    {
+        int count = 0;
+        while (count < WindowedStats.MAX_WINDOWS && snapshot.get(StatsField.get(WINDOW_1_MSECS.ordinal() + count)) != 0) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return one windowed value for each window in use
+     * @param first the first windowed field for a metric
+     * @param stat the offset of the value within each window's fields
+     */
+    private synchronized double[] getWindowed(StatsField first, int stat)
+    {
+        double[] result = new double[windowCount()];
+        for (int w = 0; w < result.length; w++) {
+            result[w] = snapshot.getDouble(StatsField.get(first.ordinal() + w * WindowedStats.STATS + stat));
+        }
+        return result;
+    }
+
+    private synchronized long[] getPools(PoolField field)
+    {
+        long[] result = new long[poolNames.length];
+        for (int pool = 0; pool < result.length; pool++) {
+            result[pool] = snapshot.get(pool, field);
+        }
+        return result;
+    }
+
+    private synchronized double[] getPoolDoubles(PoolField field)
+    {
+        double[] result = new double[poolNames.length];
+        for (int pool = 0; pool < result.length; pool++) {
+            result[pool] = snapshot.getDouble(pool, field);
+        }
+        return result;
+    }
+
+    private synchronized boolean getBoolean(StatsField field)
+    {
+        return snapshot.getBoolean(field);
+    }
+
+    public long getTimestamp() { return get(END); }
+
+    public boolean isLastGCOld() { return getBoolean(OLD_GC); }
+    public long getYoungGCCount() { return get(YOUNG_COUNT); }
+    public long getOldGCCount() { return get(OLD_COUNT); }
+
+    public long getTotalMillis() { return get(TOTAL_MSECS); }
+    public long getMutatorMillis() { return get(MUTATOR_MSECS); }
+    public long getGCMillis() { return get(GC_MSECS); }
+    public long getYoungGCMillis() { return get(YOUNG_MSECS); }
+    public long getOldGCMillis() { return get(OLD_MSECS); }
+
+    public long getLive() { return get(LIVE); }
+    public long getCommitted() { return get(COMMITTED); }
+
+    public long getLiveHi() { return (long)getDouble(LIVE_HI); }
+    public double getLiveHiPercent() { return getDouble(LIVE_HI_PCT); }
+    public long getLiveLo() { return (long)getDouble(LIVE_LO); }
+    public double getLiveLoPercent() { return getDouble(LIVE_LO_PCT); }
+    public long getLiveAverage() { return (long)getDouble(LIVE_AVGE); }
+    public double getLiveAveragePercent() { return getDouble(LIVE_AVGE_PCT); }
+    public long getLiveRunningAverage() { return (long)getDouble(LIVE_RUNNING_AVGE); }
+    public double getLiveRunningAveragePercent() { return getDouble(LIVE_RUNNING_AVGE_PCT); }
+
+    public long getCommittedHi() { return (long)getDouble(COMMITTED_HI); }
+    public double getCommittedHiPercent() { return getDouble(COMMITTED_HI_PCT); }
+    public long getCommittedLo() { return (long)getDouble(COMMITTED_LO); }
+    public double getCommittedLoPercent() { return getDouble(COMMITTED_LO_PCT); }
+    public long getCommittedAverage() { return (long)getDouble(COMMITTED_AVGE); }
+    public double getCommittedAveragePercent() { return getDouble(COMMITTED_AVGE_PCT); }
+    public long getCommittedRunningAverage() { return (long)getDouble(COMMITTED_RUNNING_AVGE); }
+    public double getCommittedRunningAveragePercent() { return getDouble(COMMITTED_RUNNING_AVGE_PCT); }
+
+    public long getRunningWindowMillis() { return get(RUNNING_WINDOW); }
+
+    public boolean isBallooning() { return getBoolean(BALLOONING); }
+    public long getBalloonCount() { return get(BALLOON_COUNT); }
+    public long getBalloonBytes() { return get(BALLOON_BYTES); }
+    public long getBalloonInflatedBytes() { return get(BALLOON_INFLATED_BYTES); }
+    public long getBalloonDeflatedBytes() { return get(BALLOON_DEFLATED_BYTES); }
+    public long getBalloonBackoffCount() { return get(BALLOON_BACKOFFS); }
+    public long getBalloonMappedBytes() { return get(BALLOON_MAPPED_BYTES); }
+    public long getBalloonResidentBytes() { return get(BALLOON_RESIDENT_BYTES); }
+    public long getBalloonReclaimedBytes() { return get(BALLOON_RECLAIMED_BYTES); }
+    public long getBalloonRefaultedCount() { return get(BALLOON_REFAULTED); }
+    public long getBalloonEmergencyCount() { return get(BALLOON_EMERGENCIES); }
+    public long getBalloonEmergencyBytes() { return get(BALLOON_EMERGENCY_BYTES); }
+    public long getBalloonPressureEvents() { return get(BALLOON_PRESSURE_EVENTS); }
+
+    public long getHeapMinFreeRatio() { return get(HEAP_MIN_FREE_RATIO); }
+    public long getHeapMaxFreeRatio() { return get(HEAP_MAX_FREE_RATIO); }
+    public long getHeapTuningCount() { return get(HEAP_TUNINGS); }
+
+    public long getGCsSeen() { return get(GCS_SEEN); }
+    public long getGCsAggregated() { return get(GCS_AGGREGATED); }
+    public long getGCsDelivered() { return get(GCS_DELIVERED); }
+    public long getGCsCoalesced() { return get(GCS_COALESCED); }
+
+    public double getAllocationRate() { return getDouble(ALLOCATION_RATE); }
+    public double getAllocationRateAverage() { return getDouble(ALLOCATION_RATE_AVGE); }
+    public double getAllocationRateRunningAverage() { return getDouble(ALLOCATION_RATE_RUNNING_AVGE); }
+    public double getPromotionRate() { return getDouble(PROMOTION_RATE); }
+    public double getPromotionRateAverage() { return getDouble(PROMOTION_RATE_AVGE); }
+    public double getPromotionRateRunningAverage() { return getDouble(PROMOTION_RATE_RUNNING_AVGE); }
+    public double getSurvivorOverflowRate() { return getDouble(SURVIVOR_OVERFLOW_RATE); }
+    public double getSurvivorOverflowRateAverage() { return getDouble(SURVIVOR_OVERFLOW_RATE_AVGE); }
+    public double getSurvivorOverflowRateRunningAverage() { return getDouble(SURVIVOR_OVERFLOW_RATE_RUNNING_AVGE); }
+
+    public long getHeapCommitted() { return getKB(HEAP_COMMITTED); }
+    public long getProcessRss() { return getKB(PROCESS_RSS); }
+    public long getProcessRssHi() { return getKB(PROCESS_RSS_HI); }
+    public long getProcessPss() { return getKB(PROCESS_PSS); }
+    public long getProcessSwap() { return getKB(PROCESS_SWAP); }
+    public long getCgroupUsage() { return getKB(CGROUP_USAGE); }
+    public long getCgroupUsageHi() { return getKB(CGROUP_USAGE_HI); }
+    public long getCgroupLimit() { return getKB(CGROUP_LIMIT); }
+    public long getCgroupAnon() { return getKB(CGROUP_ANON); }
+    public long getCgroupFile() { return getKB(CGROUP_FILE); }
+
+    public synchronized long[] getWindowMillis()
+    {
+        long[] result = new long[windowCount()];
+        for (int w = 0; w < result.length; w++) {
+            result[w] = snapshot.get(StatsField.get(WINDOW_1_MSECS.ordinal() + w));
+        }
+        return result;
+    }
+
+    public double[] getLiveWindowAverages() { return getWindowed(LIVE_W1_AVGE, WindowedStats.AVGE); }
+    public double[] getLiveWindowMins() { return getWindowed(LIVE_W1_AVGE, WindowedStats.MIN); }
+    public double[] getLiveWindowMaxes() { return getWindowed(LIVE_W1_AVGE, WindowedStats.MAX); }
+    public double[] getLiveWindowEwmas() { return getWindowed(LIVE_W1_AVGE, WindowedStats.EWMA); }
+    public double[] getCommittedWindowAverages() { return getWindowed(COMMITTED_W1_AVGE, WindowedStats.AVGE); }
+    public double[] getCommittedWindowMins() { return getWindowed(COMMITTED_W1_AVGE, WindowedStats.MIN); }
+    public double[] getCommittedWindowMaxes() { return getWindowed(COMMITTED_W1_AVGE, WindowedStats.MAX); }
+    public double[] getCommittedWindowEwmas() { return getWindowed(COMMITTED_W1_AVGE, WindowedStats.EWMA); }
+    public double[] getAllocationRateWindowAverages() { return getWindowed(ALLOCATION_RATE_W1_AVGE, WindowedStats.AVGE); }
+    public double[] getAllocationRateWindowMins() { return getWindowed(ALLOCATION_RATE_W1_AVGE, WindowedStats.MIN); }
+    public double[] getAllocationRateWindowMaxes() { return getWindowed(ALLOCATION_RATE_W1_AVGE, WindowedStats.MAX); }
+    public double[] getAllocationRateWindowEwmas() { return getWindowed(ALLOCATION_RATE_W1_AVGE, WindowedStats.EWMA); }
+    public double[] getPromotionRateWindowAverages() { return getWindowed(PROMOTION_RATE_W1_AVGE, WindowedStats.AVGE); }
+    public double[] getPromotionRateWindowMins() { return getWindowed(PROMOTION_RATE_W1_AVGE, WindowedStats.MIN); }
+    public double[] getPromotionRateWindowMaxes() { return getWindowed(PROMOTION_RATE_W1_AVGE, WindowedStats.MAX); }
+    public double[] getPromotionRateWindowEwmas() { return getWindowed(PROMOTION_RATE_W1_AVGE, WindowedStats.EWMA); }
+
+    public String[] getPoolNames() { return poolNames.clone(); }
+    public long[] getPoolUsed() { return getPools(PoolField.USED); }
+    public long[] getPoolCommitted() { return getPools(PoolField.COMMITTED); }
+    public long[] getPoolMax() { return getPools(PoolField.MAX); }
+    public long[] getPoolUsedHi() { return getPools(PoolField.USED_HI); }
+    public long[] getPoolUsedLo() { return getPools(PoolField.USED_LO); }
+    public double[] getPoolUsedAverage() { return getPoolDoubles(PoolField.USED_AVGE); }
+    public long[] getPoolCommittedHi() { return getPools(PoolField.COMMITTED_HI); }
+    public long[] getPoolCommittedLo() { return getPools(PoolField.COMMITTED_LO); }
+    public double[] getPoolCommittedAverage() { return getPoolDoubles(PoolField.COMMITTED_AVGE); }
+
+    public long getYoungPauseCount() { return get(YOUNG_PAUSES); }
+    public long getYoungPause50thPercentile() { return get(YOUNG_PAUSE_P50); }
+    public long getYoungPause90thPercentile() { return get(YOUNG_PAUSE_P90); }
+    public long getYoungPause99thPercentile() { return get(YOUNG_PAUSE_P99); }
+    public long getYoungPause999thPermille() { return get(YOUNG_PAUSE_P999); }
+    public long getYoungPauseMax() { return get(YOUNG_PAUSE_MAX); }
+    public long getOldPauseCount() { return get(OLD_PAUSES); }
+    public long getOldPause50thPercentile() { return get(OLD_PAUSE_P50); }
+    public long getOldPause90thPercentile() { return get(OLD_PAUSE_P90); }
+    public long getOldPause99thPercentile() { return get(OLD_PAUSE_P99); }
+    public long getOldPause999thPermille() { return get(OLD_PAUSE_P999); }
+    public long getOldPauseMax() { return get(OLD_PAUSE_MAX); }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+/**
+ * management interface exposing the statistics computed by MemoryManager
+ * at the end of each GC. registered with the platform MBean server as
+ * com.redhat.openjdk.balloon:type=MemoryManager.
+ *
+ * each attribute is read from a snapshot which is replaced as a whole
+ * after each GC. reading several attributes takes the snapshot lock
+ * once for each, so a GC may replace the snapshot in between. a client
+ * which needs consistent values should read the Snapshot attribute,
+ * which holds every attribute as of the same GC.
+ */
+public interface MemoryManagerStatsMXBean extends MemoryManagerSnapshot
+{
+    /**
+     * @return a copy of the current snapshot, published as a composite
+     * whose items are the other attributes
+     */
+    public MemoryManagerSnapshot getSnapshot();
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static com.redhat.openjdk.balloon.StatsField.*;
+
+/**
+ * minimal HTTP endpoint which serves the MemoryManager statistics on
+ * /metrics in the Prometheus text exposition format. the server only
+ * listens on the loopback address and is enabled with agent option
+ *
+ *   http=PORT
+ *
+ * a response is rendered from a copy of the MemoryManagerStats snapshot
+ * into a reusable buffer. the rendered bytes are kept and served again
+ * until a GC publishes a new snapshot so frequent scrapes cost next to
+ * nothing and never hold the snapshot lock for more than a copy.
+ *
+ * requests are handled on the server's dispatcher thread one at a time
+ * which is what makes it safe to reuse the buffers.
+ */
+// package access only
+class MetricsServer implements HttpHandler
+{
+    private final static String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final static String PREFIX = "jvm_balloon_";
+
+    private final MemoryManagerStats stats;
+    private final StatsRecord record;
+
+    /**
+     * pool label for each memory pool in record order
+     */
+    private final String[] poolLabels;
+    private final StringBuilder builder = new StringBuilder(8192);
+    private byte[] bytes = new byte[8192];
+    private int length = 0;
+    private long renderedVersion = -1;
+
+    /**
+     * start serving metrics on the supplied loopback port
+     *
+     * @return the server or null if it could not be started
+     */
+    public static MetricsServer start(int port, MemoryManagerStats stats)
+    {
+        MetricsServer metrics = new MetricsServer(stats);
+        final HttpServer server;
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+        } catch (IOException e) {
+            System.out.printf("MetricsServer : could not listen on port %d : %s\n", port, e);
+            return null;
+        }
+        server.createContext("/metrics", metrics);
+        // requests are handled on the dispatcher thread
+        server.setExecutor(null);
+        // the dispatcher thread inherits the daemon status of the thread
+        // which starts the server. that is the agent thread when the native
+        // agent drives MemoryManager but the non-daemon main thread in Java
+        // agent mode so start it from a daemon thread or the JVM never exits
+        Thread starter = new Thread(new Runnable() {
+            public void run() {
+                server.start();
+            }
+        }, "Balloon metrics server start");
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return metrics;
+    }
+
+    private MetricsServer(MemoryManagerStats stats)
+    {
+        this.stats = stats;
+        String[] poolNames = stats.poolNames();
+        record = new StatsRecord(poolNames);
+        poolLabels = new String[poolNames.length];
+        for (int pool = 0; pool < poolNames.length; pool++) {
+            poolLabels[pool] = "pool=\"" + poolNames[pool].replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        }
+    }
+
+    public void handle(HttpExchange exchange) throws IOException
+    {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (stats.version() != renderedVersion) {
+                renderedVersion = stats.copyTo(record);
+                render();
+            }
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes, 0, length);
+            os.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * render the copied record into the byte buffer
+     */
+    private void render()
+    {
+        builder.setLength(0);
+
+        header("gc_collections_total", "Number of collections by generation", "counter");
+        sample("gc_collections_total", "gen=\"young\"", record.get(YOUNG_COUNT));
+        sample("gc_collections_total", "gen=\"old\"", record.get(OLD_COUNT));
+        header("gc_seconds_total", "Time spent in collections by generation", "counter");
+        sample("gc_seconds_total", "gen=\"young\"", record.get(YOUNG_MSECS) / 1000D);
+        sample("gc_seconds_total", "gen=\"old\"", record.get(OLD_MSECS) / 1000D);
+        header("mutator_seconds_total", "Time spent outside collections", "counter");
+        sample("mutator_seconds_total", null, record.get(MUTATOR_MSECS) / 1000D);
+        header("last_gc_end_seconds", "JVM uptime at the end of the last recorded collection", "gauge");
+        sample("last_gc_end_seconds", null, record.get(END) / 1000D);
+
+        header("tenured_live_bytes", "Tenured live size after collection", "gauge");
+        sample("tenured_live_bytes", "stat=\"current\"", record.get(LIVE) * 1024);
+        aggregate("tenured_live_bytes", LIVE_HI, LIVE_LO, LIVE_AVGE, LIVE_RUNNING_AVGE);
+        header("tenured_live_ratio", "Tenured live size as a fraction of the tenured maximum", "gauge");
+        ratios("tenured_live_ratio", LIVE_HI_PCT, LIVE_LO_PCT, LIVE_AVGE_PCT, LIVE_RUNNING_AVGE_PCT);
+        header("tenured_committed_bytes", "Tenured committed size after collection", "gauge");
+        sample("tenured_committed_bytes", "stat=\"current\"", record.get(COMMITTED) * 1024);
+        aggregate("tenured_committed_bytes", COMMITTED_HI, COMMITTED_LO, COMMITTED_AVGE, COMMITTED_RUNNING_AVGE);
+        header("tenured_committed_ratio", "Tenured committed size as a fraction of the tenured maximum", "gauge");
+        ratios("tenured_committed_ratio", COMMITTED_HI_PCT, COMMITTED_LO_PCT, COMMITTED_AVGE_PCT, COMMITTED_RUNNING_AVGE_PCT);
+
+        header("heap_committed_bytes", "Committed size of all heap pools after collection", "gauge");
+        sample("heap_committed_bytes", null, record.get(HEAP_COMMITTED));
+        available("process_resident_bytes", "Process resident set size when the collection was recorded", "stat=\"current\"", PROCESS_RSS, "stat=\"hi\"", PROCESS_RSS_HI);
+        available("process_proportional_bytes", "Process proportional set size when the collection was recorded", null, PROCESS_PSS, null, null);
+        available("process_swap_bytes", "Process memory swapped out when the collection was recorded", null, PROCESS_SWAP, null, null);
+        available("cgroup_usage_bytes", "Memory charged to the container cgroup when the collection was recorded", "stat=\"current\"", CGROUP_USAGE, "stat=\"hi\"", CGROUP_USAGE_HI);
+        available("cgroup_limit_bytes", "Memory limit of the container cgroup", null, CGROUP_LIMIT, null, null);
+        available("cgroup_stat_bytes", "Container cgroup memory by kind", "kind=\"anon\"", CGROUP_ANON, "kind=\"file\"", CGROUP_FILE);
+
+        header("allocation_bytes_per_second", "Eden allocation per mutator second", "gauge");
+        rates("allocation_bytes_per_second", ALLOCATION_RATE, ALLOCATION_RATE_AVGE, ALLOCATION_RATE_RUNNING_AVGE);
+        header("promotion_bytes_per_second", "Tenured growth across young collections per mutator second", "gauge");
+        rates("promotion_bytes_per_second", PROMOTION_RATE, PROMOTION_RATE_AVGE, PROMOTION_RATE_RUNNING_AVGE);
+        header("survivor_overflow_bytes_per_second", "Estimated early promotion from overfull survivor spaces per mutator second", "gauge");
+        rates("survivor_overflow_bytes_per_second", SURVIVOR_OVERFLOW_RATE, SURVIVOR_OVERFLOW_RATE_AVGE, SURVIVOR_OVERFLOW_RATE_RUNNING_AVGE);
+
+        header("windowed_tenured_live_bytes", "Tenured live size aggregated over each window", "gauge");
+        windows("windowed_tenured_live_bytes", LIVE_W1_AVGE, 1024D);
+        header("windowed_tenured_committed_bytes", "Tenured committed size aggregated over each window", "gauge");
+        windows("windowed_tenured_committed_bytes", COMMITTED_W1_AVGE, 1024D);
+        header("windowed_allocation_bytes_per_second", "Eden allocation rate aggregated over each window", "gauge");
+        windows("windowed_allocation_bytes_per_second", ALLOCATION_RATE_W1_AVGE, 1024D);
+        header("windowed_promotion_bytes_per_second", "Promotion rate aggregated over each window", "gauge");
+        windows("windowed_promotion_bytes_per_second", PROMOTION_RATE_W1_AVGE, 1024D);
+
+        header("last_gc_pause_seconds", "Duration of the last collection by generation", "gauge");
+        sample("last_gc_pause_seconds", "gen=\"young\"", record.get(YOUNG_ELAPSED_TIME) / 1000D);
+        sample("last_gc_pause_seconds", "gen=\"old\"", record.get(OLD_ELAPSED_TIME) / 1000D);
+        header("last_gc_pool_bytes", "Pool usage before and after the last collection by generation", "gauge");
+        pool("young", "eden", "before", YOUNG_EDEN_BEFORE_SIZE, YOUNG_EDEN_BEFORE_COMMITTED, YOUNG_EDEN_BEFORE_MAX);
+        pool("young", "eden", "after", YOUNG_EDEN_AFTER_SIZE, YOUNG_EDEN_AFTER_COMMITTED, YOUNG_EDEN_AFTER_MAX);
+        pool("young", "tenured", "before", YOUNG_TENURED_BEFORE_SIZE, YOUNG_TENURED_BEFORE_COMMITTED, YOUNG_TENURED_BEFORE_MAX);
+        pool("young", "tenured", "after", YOUNG_TENURED_AFTER_SIZE, YOUNG_TENURED_AFTER_COMMITTED, YOUNG_TENURED_AFTER_MAX);
+        pool("old", "eden", "before", OLD_EDEN_BEFORE_SIZE, OLD_EDEN_BEFORE_COMMITTED, OLD_EDEN_BEFORE_MAX);
+        pool("old", "eden", "after", OLD_EDEN_AFTER_SIZE, OLD_EDEN_AFTER_COMMITTED, OLD_EDEN_AFTER_MAX);
+        pool("old", "tenured", "before", OLD_TENURED_BEFORE_SIZE, OLD_TENURED_BEFORE_COMMITTED, OLD_TENURED_BEFORE_MAX);
+        pool("old", "tenured", "after", OLD_TENURED_AFTER_SIZE, OLD_TENURED_AFTER_COMMITTED, OLD_TENURED_AFTER_MAX);
+
+        header("memory_pool_bytes", "Memory pool usage after the last collection", "gauge");
+        for (int pool = 0; pool < poolLabels.length; pool++) {
+            sample("memory_pool_bytes", poolLabels[pool] + ",kind=\"used\"", record.get(pool, PoolField.USED));
+            sample("memory_pool_bytes", poolLabels[pool] + ",kind=\"committed\"", record.get(pool, PoolField.COMMITTED));
+            sample("memory_pool_bytes", poolLabels[pool] + ",kind=\"max\"", record.get(pool, PoolField.MAX));
+        }
+        header("memory_pool_used_bytes", "Memory pool used size aggregated since the first collection", "gauge");
+        for (int pool = 0; pool < poolLabels.length; pool++) {
+            sample("memory_pool_used_bytes", poolLabels[pool] + ",stat=\"hi\"", record.get(pool, PoolField.USED_HI));
+            sample("memory_pool_used_bytes", poolLabels[pool] + ",stat=\"lo\"", record.get(pool, PoolField.USED_LO));
+            sample("memory_pool_used_bytes", poolLabels[pool] + ",stat=\"average\"", record.getDouble(pool, PoolField.USED_AVGE));
+        }
+        header("memory_pool_committed_bytes", "Memory pool committed size aggregated since the first collection", "gauge");
+        for (int pool = 0; pool < poolLabels.length; pool++) {
+            sample("memory_pool_committed_bytes", poolLabels[pool] + ",stat=\"hi\"", record.get(pool, PoolField.COMMITTED_HI));
+            sample("memory_pool_committed_bytes", poolLabels[pool] + ",stat=\"lo\"", record.get(pool, PoolField.COMMITTED_LO));
+            sample("memory_pool_committed_bytes", poolLabels[pool] + ",stat=\"average\"", record.getDouble(pool, PoolField.COMMITTED_AVGE));
+        }
+
+        header("ballooning", "1 if the balloon controller is enabled", "gauge");
+        sample("ballooning", null, record.get(BALLOONING));
+        header("balloons", "Number of inflated balloons", "gauge");
+        sample("balloons", null, record.get(BALLOON_COUNT));
+        header("balloon_bytes", "Heap occupied by inflated balloons", "gauge");
+        sample("balloon_bytes", null, record.get(BALLOON_BYTES));
+        header("balloon_inflated_bytes_total", "Heap added to balloons by the controller", "counter");
+        sample("balloon_inflated_bytes_total", null, record.get(BALLOON_INFLATED_BYTES));
+        header("balloon_deflated_bytes_total", "Heap released from balloons by the controller", "counter");
+        sample("balloon_deflated_bytes_total", null, record.get(BALLOON_DEFLATED_BYTES));
+        header("balloon_backoffs_total", "Times the controller backed off inflation", "counter");
+        sample("balloon_backoffs_total", null, record.get(BALLOON_BACKOFFS));
+        available("balloon_reclaimed_bytes", "Balloon bytes verified as released to the OS", null, BALLOON_RECLAIMED_BYTES, null, null);
+        available("balloon_resident_bytes", "Balloon bytes verified as still resident", null, BALLOON_RESIDENT_BYTES, null, null);
+        available("balloon_refaulted", "Balloons with resident pages after a GC moved them", null, BALLOON_REFAULTED, null, null);
+        header("balloon_emergencies_total", "Emergency deflations on heap exhaustion or critical occupancy", "counter");
+        sample("balloon_emergencies_total", null, record.get(BALLOON_EMERGENCIES));
+        header("balloon_emergency_bytes_total", "Heap released from balloons by emergency deflations", "counter");
+        sample("balloon_emergency_bytes_total", null, record.get(BALLOON_EMERGENCY_BYTES));
+        header("balloon_pressure_events_total", "Times a PSI trigger reported memory pressure", "counter");
+        sample("balloon_pressure_events_total", null, record.get(BALLOON_PRESSURE_EVENTS));
+        available("heap_free_ratio_percent", "Heap free ratio bounds set by the tuner", "bound=\"min\"", HEAP_MIN_FREE_RATIO, "bound=\"max\"", HEAP_MAX_FREE_RATIO);
+        header("heap_tunings_total", "Times the tuner changed the heap free ratios", "counter");
+        sample("heap_tunings_total", null, record.get(HEAP_TUNINGS));
+
+        header("gc_events_total", "Collections sampled by the native agent, those aggregated without their own record and those delivered or coalesced", "counter");
+        sample("gc_events_total", "kind=\"seen\"", record.get(GCS_SEEN));
+        sample("gc_events_total", "kind=\"aggregated\"", record.get(GCS_AGGREGATED));
+        sample("gc_events_total", "kind=\"delivered\"", record.get(GCS_DELIVERED));
+        sample("gc_events_total", "kind=\"coalesced\"", record.get(GCS_COALESCED));
+
+        header("interval_pauses", "GC pauses since the stats were last dumped", "gauge");
+        sample("interval_pauses", "gen=\"young\"", record.get(YOUNG_PAUSES));
+        sample("interval_pauses", "gen=\"old\"", record.get(OLD_PAUSES));
+        header("interval_pause_seconds", "GC pause percentiles since the stats were last dumped", "gauge");
+        pauses("young", YOUNG_PAUSE_P50, YOUNG_PAUSE_P90, YOUNG_PAUSE_P99, YOUNG_PAUSE_P999, YOUNG_PAUSE_MAX);
+        pauses("old", OLD_PAUSE_P50, OLD_PAUSE_P90, OLD_PAUSE_P99, OLD_PAUSE_P999, OLD_PAUSE_MAX);
+
+        // exposition format text is plain ASCII so copy chars straight into bytes
+        length = builder.length();
+        if (bytes.length < length) {
+            bytes = new byte[length * 2];
+        }
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte)builder.charAt(i);
+        }
+    }
+
+    private void header(String name, String help, String type)
+    {
+        builder.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private void name(String name, String labels)
+    {
+        builder.append(PREFIX).append(name);
+        if (labels != null) {
+            builder.append('{').append(labels).append('}');
+        }
+        builder.append(' ');
+    }
+
+    private void sample(String name, String labels, long value)
+    {
+        name(name, labels);
+        builder.append(value).append('\n');
+    }
+
+    private void sample(String name, String labels, double value)
+    {
+        name(name, labels);
+        builder.append(value).append('\n');
+    }
+
+    /**
+     * up to two values held in bytes which are only written if they
+     * are available
+     */
+    private void available(String name, String help, String labels1, StatsField field1, String labels2, StatsField field2)
+    {
+        if (record.get(field1) < 0) {
+            return;
+        }
+        header(name, help, "gauge");
+        sample(name, labels1, record.get(field1));
+        if (field2 != null) {
+            sample(name, labels2, record.get(field2));
+        }
+    }
+
+    /**
+     * hi, lo and average values held in KBs
+     */
+    private void aggregate(String name, StatsField hi, StatsField lo, StatsField avge, StatsField runningAvge)
+    {
+        sample(name, "stat=\"hi\"", (long)record.getDouble(hi) * 1024);
+        sample(name, "stat=\"lo\"", (long)record.getDouble(lo) * 1024);
+        sample(name, "stat=\"average\"", (long)record.getDouble(avge) * 1024);
+        sample(name, "stat=\"running_average\"", (long)record.getDouble(runningAvge) * 1024);
+    }
+
+    /**
+     * hi, lo and average values held as percentages
+     */
+    private void ratios(String name, StatsField hi, StatsField lo, StatsField avge, StatsField runningAvge)
+    {
+        sample(name, "stat=\"hi\"", record.getDouble(hi) / 100D);
+        sample(name, "stat=\"lo\"", record.getDouble(lo) / 100D);
+        sample(name, "stat=\"average\"", record.getDouble(avge) / 100D);
+        sample(name, "stat=\"running_average\"", record.getDouble(runningAvge) / 100D);
+    }
+
+    /**
+     * current and average rates held in KBs per second
+     */
+    private void rates(String name, StatsField current, StatsField avge, StatsField runningAvge)
+    {
+        sample(name, "stat=\"current\"", record.getDouble(current) * 1024D);
+        sample(name, "stat=\"average\"", record.getDouble(avge) * 1024D);
+        sample(name, "stat=\"running_average\"", record.getDouble(runningAvge) * 1024D);
+    }
+
+    /**
+     * windowed values for each window in use scaled from KBs to bytes
+     */
+    private void windows(String name, StatsField first, double scale)
+    {
+        for (int w = 0; w < WindowedStats.MAX_WINDOWS; w++) {
+            long msecs = record.get(StatsField.get(WINDOW_1_MSECS.ordinal() + w));
+            if (msecs == 0) {
+                break;
+            }
+            String prefix = "window=\"" + StatsFormatter.windowLabel(msecs) + "\",stat=";
+            int idx = first.ordinal() + w * WindowedStats.STATS;
+            sample(name, prefix + "\"average\"", record.getDouble(StatsField.get(idx + WindowedStats.AVGE)) * scale);
+            sample(name, prefix + "\"min\"", record.getDouble(StatsField.get(idx + WindowedStats.MIN)) * scale);
+            sample(name, prefix + "\"max\"", record.getDouble(StatsField.get(idx + WindowedStats.MAX)) * scale);
+            sample(name, prefix + "\"ewma\"", record.getDouble(StatsField.get(idx + WindowedStats.EWMA)) * scale);
+        }
+    }
+
+    /**
+     * pause percentiles held in usecs
+     */
+    private void pauses(String gen, StatsField p50, StatsField p90, StatsField p99, StatsField p999, StatsField max)
+    {
+        String prefix = "gen=\"" + gen + "\",quantile=";
+        sample("interval_pause_seconds", prefix + "\"0.5\"", record.get(p50) / 1000000D);
+        sample("interval_pause_seconds", prefix + "\"0.9\"", record.get(p90) / 1000000D);
+        sample("interval_pause_seconds", prefix + "\"0.99\"", record.get(p99) / 1000000D);
+        sample("interval_pause_seconds", prefix + "\"0.999\"", record.get(p999) / 1000000D);
+        sample("interval_pause_seconds", prefix + "\"1\"", record.get(max) / 1000000D);
+    }
+
+    private void pool(String gen, String pool, String when, StatsField used, StatsField committed, StatsField max)
+    {
+        String prefix = "gen=\"" + gen + "\",pool=\"" + pool + "\",when=\"" + when + "\",kind=";
+        sample("last_gc_pool_bytes", prefix + "\"used\"", record.get(used));
+        sample("last_gc_pool_bytes", prefix + "\"committed\"", record.get(committed));
+        sample("last_gc_pool_bytes", prefix + "\"max\"", record.get(max));
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+/**
+ * log-linear histogram of GC pause lengths in usecs used to report
+ * pause percentiles for the interval since the stats were last
+ * dumped.
+ *
+ * values below SUB_BUCKETS each get their own bucket. each power of
+ * two above that is split into SUB_BUCKETS linear buckets so a bucket's
+ * width is at most 1/16 of its lower bound. the layout matches the
+ * histograms kept by the native agent so its cumulative counts can be
+ * copied in directly. when the agent is not loaded pauses are recorded
+ * from the GC notifications instead.
+ *
+ * the histogram is allocated up front so recording and reporting do
+ * not generate garbage.
+ */
+// package access only
+class PauseHistogram
+{
+    public final static int SUB_BITS = 4;
+    public final static int SUB_BUCKETS = 1 << SUB_BITS;
+    public final static int MAX_EXPONENT = 35;
+    public final static int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    /**
+     * cumulative count of pauses in each bucket
+     */
+    private final long[] counts = new long[BUCKETS];
+
+    /**
+     * the counts as of the start of the current interval
+     */
+    private final long[] base = new long[BUCKETS];
+
+    /**
+     * the longest pause in usecs in the current interval
+     */
+    private long max;
+
+    /**
+     * record a single pause
+     */
+    public void record(long usecs)
+    {
+        counts[bucket(usecs)]++;
+        if (usecs > max) {
+            max = usecs;
+        }
+    }
+
+    /**
+     * replace the cumulative counts with those read from the native agent
+     *
+     * @param pauses the array filled in by the agent
+     * @param offset the index of the agent's longest pause value which
+     * is followed by its counts
+     */
+    public void update(long[] pauses, int offset)
+    {
+        if (pauses[offset] > max) {
+            max = pauses[offset];
+        }
+        System.arraycopy(pauses, offset + 1, counts, 0, BUCKETS);
+    }
+
+    /**
+     * start a new interval
+     */
+    public void roll()
+    {
+        System.arraycopy(counts, 0, base, 0, BUCKETS);
+        max = 0;
+    }
+
+    /**
+     * @return the number of pauses in the current interval
+     */
+    public long count()
+    {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts[i] - base[i];
+        }
+        return total;
+    }
+
+    /**
+     * @return the longest pause in usecs in the current interval
+     */
+    public long max()
+    {
+        return max;
+    }
+
+    /**
+     * @return the pause length in usecs which fraction of the pauses in
+     * the current interval do not exceed or 0 if there were none. the
+     * value is the upper bound of the bucket it falls in, capped at the
+     * longest pause
+     */
+    public long percentile(double fraction)
+    {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long)Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i] - base[i];
+            if (seen >= target && seen > 0) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return the bucket for a pause length in usecs
+     */
+    public static int bucket(long usecs)
+    {
+        if (usecs < SUB_BUCKETS) {
+            return (usecs < 0 ? 0 : (int)usecs);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(usecs);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int)((usecs >> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest pause length in usecs which falls in a bucket
+     */
+    public static long upperBound(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        int shift = exponent - SUB_BITS;
+        return ((long)(SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+/**
+ * the fields held in a StatsRecord for each memory pool, heap and
+ * non-heap. all sizes are in bytes. the pools themselves are only
+ * known at runtime so a record holds these fields for each pool after
+ * the StatsField values. in the binary log each one is named
+ * pool:<pool name>:<field name>.
+ */
+// package access only
+enum PoolField
+{
+    // usage after the last GC
+    USED,
+    COMMITTED,
+    MAX,
+    // used and committed water marks and time weighted averages
+    USED_HI,
+    USED_LO,
+    USED_AVGE(true),
+    COMMITTED_HI,
+    COMMITTED_LO,
+    COMMITTED_AVGE(true);
+
+    /**
+     * true if the field holds a double rather than a long
+     */
+    private final boolean isDouble;
+
+    private PoolField()
+    {
+        this(false);
+    }
+
+    private PoolField(boolean isDouble)
+    {
+        this.isDouble = isDouble;
+    }
+
+    public boolean isDouble()
+    {
+        return isDouble;
+    }
+
+    /**
+     * @return the name used to identify this field in the binary log and CSV output
+     */
+    public String fieldName()
+    {
+        return name().toLowerCase();
+    }
+
+    /**
+     * cached copy of values() which clones its result on every call
+     */
+    private final static PoolField[] FIELDS = values();
+
+    public final static int COUNT = FIELDS.length;
+
+    public static PoolField get(int idx)
+    {
+        return FIELDS[idx];
+    }
+
+    /**
+     * prefix of the binary log names of pool fields
+     */
+    public final static String PREFIX = "pool:";
+
+    /**
+     * @return the binary log name for this field of the named pool
+     */
+    public String fieldName(String poolName)
+    {
+        return PREFIX + poolName + ":" + fieldName();
+    }
+
+    /**
+     * @return the field with the supplied field name or null if there is none
+     */
+    public static PoolField lookup(String fieldName)
+    {
+        for (PoolField field : FIELDS) {
+            if (field.fieldName().equals(fieldName)) {
+                return field;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+import java.io.File;
+import java.io.PrintStream;
+
+/**
+ * daemon thread which waits for linux pressure stall information (PSI)
+ * triggers to fire and tells the balloon controller, via MemoryManager,
+ * when memory pressure rises and when it eases. a trigger is registered on the
+ * memory.pressure file of the process's v2 cgroup, so that pressure in
+ * a container is seen, and on /proc/pressure/memory, so that pressure
+ * from neighbours on the host is seen. the thread waits in poll so it
+ * reacts within a window of the pressure starting rather than at the
+ * next GC.
+ *
+ * configured using the following agent options
+ *
+ *   psi -- enable the monitor (needs the balloon option)
+ *   psistall=TIME -- how long tasks must stall on memory within a
+ *                    window to count as pressure (default 150, i.e. msecs)
+ *   psiwindow=TIME -- the window over which stalls are measured, a
+ *                     multiple of 2s for unprivileged users (default 2s)
+ *   psiquiet=TIME -- how long without a trigger firing before pressure
+ *                    is deemed to have eased (default 30s)
+ */
+// package access only
+class PressureMonitor implements Runnable
+{
+    /**
+     * the host wide memory pressure file
+     */
+    private final static String HOST_PRESSURE = "/proc/pressure/memory";
+
+    private final PrintStream out;
+    private final long stall;
+    private final long window;
+    private final long quiet;
+
+    public PressureMonitor(AgentOptions options, PrintStream out)
+    {
+        this.out = out;
+        stall = options.getTime("psistall", 150L);
+        window = options.getTime("psiwindow", 2 * 1000L);
+        quiet = Math.min(options.getTime("psiquiet", 30 * 1000L), Integer.MAX_VALUE);
+    }
+
+    /**
+     * register the PSI triggers and start the monitor thread
+     *
+     * @param cgroupPressure the memory.pressure file of the process's
+     * cgroup or null if there is none
+     * @return true if at least one trigger was registered
+     */
+    public boolean start(String cgroupPressure)
+    {
+        boolean watching = false;
+        if (cgroupPressure != null) {
+            watching |= watch(cgroupPressure);
+        }
+        if (new File(HOST_PRESSURE).canRead()) {
+            watching |= watch(HOST_PRESSURE);
+        }
+        if (!watching) {
+            out.printf("Balloon pressure monitor: no PSI triggers could be registered, not monitoring\n");
+            return false;
+        }
+        Thread thread = new Thread(this, "Balloon pressure monitor");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    private boolean watch(String path)
+    {
+        if (!BalloonManager.watchPressure(path, stall, window)) {
+            return false;
+        }
+        out.printf("Balloon pressure monitor: watching %s for stalls of %d msecs in %d msecs\n", path, stall, window);
+        return true;
+    }
+
+    public void run()
+    {
+        for (;;) {
+            int fired = BalloonManager.awaitPressure((int)quiet);
+            if (fired < 0) {
+                // n.b. the log stream belongs to the GC thread so use stdout
+                System.out.printf("PressureMonitor : PSI triggers can no longer be polled, stopping\n");
+                return;
+            }
+            MemoryManager.pressure(fired > 0);
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * samples the memory footprint of the process and of the container
+ * it runs in so it can be reported next to the heap sizes. heap
+ * committed size only matters in so far as it shows up in the process
+ * RSS and the cgroup usage is what the OOM killer compares against the
+ * container limit.
+ *
+ * the process figures come from /proc/self/status which the kernel
+ * fills from counters it already maintains. /proc/self/smaps_rollup
+ * also gives the proportional set size but has to walk the page tables
+ * of every mapping, which for a large heap is too slow to do at every
+ * GC, so it is only used when asked for. the cgroup figures come from
+ * the v2 memory.current and memory.stat files or their v1 equivalents.
+ *
+ * the files are opened once and reread from the start at each sample
+ * into a preallocated buffer so sampling neither allocates nor opens
+ * files. sizes are in bytes and are -1 if they are not available.
+ */
+// package access only
+class ProcessMemory
+{
+    /**
+     * open the files to sample
+     *
+     * @param pss true if the proportional set size should be sampled
+     * @return the sampler or null if none of the files can be read
+     */
+    public static ProcessMemory open(boolean pss)
+    {
+        ProcessMemory memory = new ProcessMemory(pss);
+        if (memory.process == null && memory.cgroupUsageFile == null) {
+            return null;
+        }
+        return memory;
+    }
+
+    /**
+     * resident and proportional set size and swapped out size of the process
+     */
+    public long rss = -1;
+    public long pss = -1;
+    public long swap = -1;
+
+    /**
+     * memory charged to the container, its limit and how much of the
+     * charge is anonymous memory and page cache. the limit is -1 if
+     * there is none.
+     */
+    public long cgroupUsage = -1;
+    public long cgroupLimit = -1;
+    public long cgroupAnon = -1;
+    public long cgroupFile = -1;
+
+    private RandomAccessFile process;
+    private RandomAccessFile cgroupUsageFile;
+    private RandomAccessFile cgroupStatFile;
+
+    /**
+     * the memory.pressure file of the process's v2 cgroup or null if
+     * there is none
+     */
+    private String pressureFile;
+
+    /**
+     * keys for the process and cgroup fields in the files read
+     */
+    private final byte[] rssKey;
+    private final byte[] pssKey;
+    private final byte[] swapKey;
+    private byte[] anonKey;
+    private byte[] fileKey;
+
+    /**
+     * buffer into which each file is read. big enough for the whole of
+     * any of the files sampled
+     */
+    private final byte[] buffer = new byte[16384];
+    private int length;
+
+    private ProcessMemory(boolean pss)
+    {
+        if (pss) {
+            process = openFile("/proc/self/smaps_rollup");
+            rssKey = key("Rss:");
+            pssKey = key("Pss:");
+            swapKey = key("Swap:");
+        } else {
+            process = openFile("/proc/self/status");
+            rssKey = key("VmRSS:");
+            pssKey = null;
+            swapKey = key("VmSwap:");
+        }
+        openCgroup();
+    }
+
+    /**
+     * reread the files and update the sizes
+     */
+    public void sample()
+    {
+        if (process != null) {
+            if (read(process)) {
+                // both files give sizes in KBs
+                rss = value(rssKey) * 1024;
+                pss = (pssKey != null ? value(pssKey) * 1024 : -1);
+                swap = value(swapKey) * 1024;
+            } else {
+                process = close(process);
+                rss = pss = swap = -1;
+            }
+        }
+        if (cgroupUsageFile != null) {
+            if (read(cgroupUsageFile)) {
+                cgroupUsage = number(0);
+            } else {
+                cgroupUsageFile = close(cgroupUsageFile);
+                cgroupUsage = -1;
+            }
+        }
+        if (cgroupStatFile != null) {
+            if (read(cgroupStatFile)) {
+                cgroupAnon = value(anonKey);
+                cgroupFile = value(fileKey);
+            } else {
+                cgroupStatFile = close(cgroupStatFile);
+                cgroupAnon = cgroupFile = -1;
+            }
+        }
+    }
+
+    /**
+     * locate the memory controller of the cgroup this process belongs
+     * to, preferring a v1 memory hierarchy over a v2 unified one, and
+     * open its usage and stat files. the limit rarely changes so it is
+     * only read here.
+     */
+    private void openCgroup()
+    {
+        String v1Path = null;
+        String v2Path = null;
+        for (String line : readLines("/proc/self/cgroup")) {
+            // hierarchy-id:controller-list:path
+            int first = line.indexOf(':');
+            int second = line.indexOf(':', first + 1);
+            if (first < 0 || second < 0) {
+                continue;
+            }
+            String controllers = line.substring(first + 1, second);
+            String path = line.substring(second + 1);
+            if (line.startsWith("0::")) {
+                v2Path = path;
+            } else if (("," + controllers + ",").contains(",memory,")) {
+                v1Path = path;
+            }
+        }
+        String v1Mount = null;
+        String v1Root = null;
+        String v2Mount = null;
+        String v2Root = null;
+        for (String line : readLines("/proc/self/mountinfo")) {
+            // id parent major:minor root mount-point options ... - fstype source super-options
+            String[] fields = line.split(" ");
+            int sep = line.indexOf(" - ");
+            if (fields.length < 5 || sep < 0) {
+                continue;
+            }
+            String[] tail = line.substring(sep + 3).split(" ");
+            if (tail[0].equals("cgroup2")) {
+                v2Root = fields[3];
+                v2Mount = fields[4];
+            } else if (tail[0].equals("cgroup") && tail.length > 2 && ("," + tail[2] + ",").contains(",memory,")) {
+                v1Root = fields[3];
+                v1Mount = fields[4];
+            }
+        }
+        String dir;
+        if (v1Path != null && v1Mount != null) {
+            dir = cgroupDir(v1Mount, v1Root, v1Path, "memory.usage_in_bytes");
+            cgroupUsageFile = openFile(dir + "/memory.usage_in_bytes");
+            cgroupStatFile = openFile(dir + "/memory.stat");
+            anonKey = key("total_rss");
+            fileKey = key("total_cache");
+            cgroupLimit = readLimit(dir + "/memory.limit_in_bytes");
+        } else if (v2Path != null && v2Mount != null) {
+            dir = cgroupDir(v2Mount, v2Root, v2Path, "memory.current");
+            cgroupUsageFile = openFile(dir + "/memory.current");
+            cgroupStatFile = openFile(dir + "/memory.stat");
+            anonKey = key("anon");
+            fileKey = key("file");
+            cgroupLimit = readLimit(dir + "/memory.max");
+        }
+        // PSI is only available from the v2 hierarchy even on hosts
+        // which also mount a v1 memory controller
+        if (v2Path != null && v2Mount != null) {
+            dir = cgroupDir(v2Mount, v2Root, v2Path, "memory.pressure");
+            if (new File(dir, "memory.pressure").canRead()) {
+                pressureFile = dir + "/memory.pressure";
+            }
+        }
+    }
+
+    /**
+     * @return the memory.pressure file of the process's v2 cgroup or null
+     * if there is none
+     */
+    public String pressureFile()
+    {
+        return pressureFile;
+    }
+
+    /**
+     * @return the directory holding the controller files for the cgroup
+     * with the supplied path. inside a cgroup namespace or container the
+     * path may not be visible below the mount point in which case the
+     * mount point itself is the process's cgroup.
+     */
+    private static String cgroupDir(String mount, String root, String path, String probe)
+    {
+        if (!root.equals("/") && path.startsWith(root)) {
+            path = path.substring(root.length());
+        }
+        String dir = (path.equals("/") ? mount : mount + path);
+        if (new File(dir, probe).canRead()) {
+            return dir;
+        }
+        return mount;
+    }
+
+    /**
+     * @return the limit in the named file or -1 if there is no limit
+     */
+    private long readLimit(String name)
+    {
+        RandomAccessFile file = openFile(name);
+        if (file == null || !read(file)) {
+            close(file);
+            return -1;
+        }
+        close(file);
+        // v2 writes max and v1 a page rounded Long.MAX_VALUE for no limit
+        long limit = number(0);
+        return (limit >= (Long.MAX_VALUE >> 1) ? -1 : limit);
+    }
+
+    /**
+     * read the whole of a file from its start into the buffer
+     *
+     * @return true if the file could be read otherwise false
+     */
+    private boolean read(RandomAccessFile file)
+    {
+        try {
+            file.seek(0);
+            length = 0;
+            int count;
+            while (length < buffer.length && (count = file.read(buffer, length, buffer.length - length)) > 0) {
+                length += count;
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.printf("ProcessMemory : could not sample memory usage : %s\n", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the number following key at the start of a line of the
+     * buffer or -1 if there is no such line
+     */
+    private long value(byte[] key)
+    {
+        int idx = 0;
+        while (idx < length) {
+            if (matches(idx, key)) {
+                return number(idx + key.length);
+            }
+            // skip to the start of the next line
+            while (idx < length && buffer[idx] != '\n') {
+                idx++;
+            }
+            idx++;
+        }
+        return -1;
+    }
+
+    private boolean matches(int idx, byte[] key)
+    {
+        if (idx + key.length >= length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buffer[idx + i] != key[i]) {
+                return false;
+            }
+        }
+        // the key must be followed by white space so anon does not match anon_thp
+        return buffer[idx + key.length] == ' ' || buffer[idx + key.length] == '\t';
+    }
+
+    /**
+     * @return the decimal number at or after idx skipping leading white
+     * space or -1 if there is none
+     */
+    private long number(int idx)
+    {
+        while (idx < length && (buffer[idx] == ' ' || buffer[idx] == '\t')) {
+            idx++;
+        }
+        if (idx >= length || buffer[idx] < '0' || buffer[idx] > '9') {
+            return -1;
+        }
+        long value = 0;
+        while (idx < length && buffer[idx] >= '0' && buffer[idx] <= '9') {
+            value = value * 10 + (buffer[idx] - '0');
+            idx++;
+        }
+        return value;
+    }
+
+    private static byte[] key(String key)
+    {
+        byte[] bytes = new byte[key.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)key.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static RandomAccessFile openFile(String name)
+    {
+        try {
+            return new RandomAccessFile(name, "r");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static RandomAccessFile close(RandomAccessFile file)
+    {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+        return null;
+    }
+
+    private static String[] readLines(String name)
+    {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(name));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } catch (IOException e) {
+            // not on Linux or no cgroups
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * command line tool which decodes a binary stats log written by
+ * BinaryLog, printing it either in the same text layout as the stats
+ * log or as CSV with one line per GC.
+ *
+ * run using
+ *
+ *   java -cp balloondriver-1.0.0.jar com.redhat.openjdk.balloon.StatsDecoder [-csv] file
+ */
+public class StatsDecoder
+{
+    public static void main(String[] args)
+    {
+        boolean csv = false;
+        String filename = null;
+        for (String arg : args) {
+            if (arg.equals("-csv")) {
+                csv = true;
+            } else if (filename == null) {
+                filename = arg;
+            } else {
+                usage();
+            }
+        }
+        if (filename == null) {
+            usage();
+        }
+        try {
+            decode(filename, csv, System.out);
+        } catch (IOException e) {
+            System.out.println("StatsDecoder : error reading " + filename + " : " + e);
+            System.exit(1);
+        }
+    }
+
+    private static void usage()
+    {
+        System.out.println("usage : StatsDecoder [-csv] file");
+        System.out.println("        decode a binary balloon stats log as text or CSV");
+        System.exit(1);
+    }
+
+    private static void decode(String filename, boolean csv, PrintStream out) throws IOException
+    {
+        FileInputStream fis = new FileInputStream(filename);
+        try {
+            FileChannel channel = fis.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < BinaryLog.COUNT_OFFSET + 8 || buffer.getLong() != BinaryLog.MAGIC) {
+                throw new IOException("not a binary stats log");
+            }
+            int version = buffer.getInt();
+            if (version > BinaryLog.VERSION) {
+                throw new IOException("unsupported version " + version);
+            }
+            int headerSize = buffer.getInt();
+            int fieldCount = buffer.getInt();
+            int recordSize = buffer.getInt();
+            long recordCount = buffer.getLong();
+            long startTime = buffer.getLong();
+            String gcType = getString(buffer);
+            String[] names = new String[fieldCount];
+            boolean[] isDouble = new boolean[fieldCount];
+            // map each field in the file to the corresponding field in this version
+            // so that logs written by other versions can still be rendered as text
+            int[] mapping = new int[fieldCount];
+            List<String> pools = new ArrayList<String>();
+            for (int i = 0; i < fieldCount; i++) {
+                isDouble[i] = (buffer.get() == 'D');
+                names[i] = getString(buffer);
+                StatsField field = StatsField.lookup(names[i]);
+                mapping[i] = (field != null ? field.ordinal() : -1);
+                if (field == null && names[i].startsWith(PoolField.PREFIX)) {
+                    // pool names may include ':' but field names do not
+                    int idx = names[i].lastIndexOf(':');
+                    String pool = names[i].substring(PoolField.PREFIX.length(), idx);
+                    PoolField poolField = PoolField.lookup(names[i].substring(idx + 1));
+                    if (poolField != null) {
+                        if (!pools.contains(pool)) {
+                            pools.add(pool);
+                        }
+                        mapping[i] = StatsRecord.poolIndex(pools.indexOf(pool), poolField);
+                    }
+                }
+            }
+
+            // don't trust the count beyond the end of the file
+            long available = (buffer.limit() - headerSize) / recordSize;
+            if (recordCount > available) {
+                recordCount = available;
+            }
+
+            if (csv) {
+                StatsFormatter.dumpCSVHeader(out, names);
+            } else {
+                StatsFormatter.dumpHeader(out, new Date(startTime).toString(), gcType);
+            }
+
+            long[] raw = new long[fieldCount];
+            StatsRecord record = new StatsRecord(pools.toArray(new String[pools.size()]));
+            for (long r = 0; r < recordCount; r++) {
+                buffer.position((int)(headerSize + r * recordSize));
+                for (int i = 0; i < fieldCount; i++) {
+                    raw[i] = buffer.getLong();
+                    if (mapping[i] >= 0) {
+                        record.setRaw(mapping[i], raw[i]);
+                    }
+                }
+                if (csv) {
+                    StatsFormatter.dumpCSV(out, raw, isDouble);
+                } else {
+                    StatsFormatter.dump(out, record);
+                }
+            }
+        } finally {
+            fis.close();
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException
+    {
+        int length = buffer.getShort();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+/**
+ * the fields which make up a StatsRecord. a record holds one value for
+ * each field. field names are written into the header of the binary
+ * stats log so records can still be decoded if fields are added later.
+ *
+ * sizes taken from the heap state are in bytes. the live and committed
+ * figures computed by MemoryManager are in KBs.
+ */
+// package access only
+enum StatsField
+{
+    // 1 if the record was for an old GC otherwise 0
+    OLD_GC,
+    // 1 if young and old msecs are concurrent cycle times and gc msecs
+    // is pause time otherwise 0
+    CONCURRENT,
+    // end time of the GC in msecs since JVM start
+    END,
+    // running totals in msecs
+    TOTAL_MSECS,
+    MUTATOR_MSECS,
+    GC_MSECS,
+    YOUNG_MSECS,
+    OLD_MSECS,
+    // heap state for the last young GC
+    YOUNG_COUNT,
+    YOUNG_END_TIME,
+    YOUNG_ELAPSED_TIME,
+    YOUNG_EDEN_BEFORE_SIZE,
+    YOUNG_EDEN_BEFORE_COMMITTED,
+    YOUNG_EDEN_BEFORE_MAX,
+    YOUNG_TENURED_BEFORE_SIZE,
+    YOUNG_TENURED_BEFORE_COMMITTED,
+    YOUNG_TENURED_BEFORE_MAX,
+    YOUNG_EDEN_AFTER_SIZE,
+    YOUNG_EDEN_AFTER_COMMITTED,
+    YOUNG_EDEN_AFTER_MAX,
+    YOUNG_TENURED_AFTER_SIZE,
+    YOUNG_TENURED_AFTER_COMMITTED,
+    YOUNG_TENURED_AFTER_MAX,
+    // heap state for the last old GC
+    OLD_COUNT,
+    OLD_END_TIME,
+    OLD_ELAPSED_TIME,
+    OLD_EDEN_BEFORE_SIZE,
+    OLD_EDEN_BEFORE_COMMITTED,
+    OLD_EDEN_BEFORE_MAX,
+    OLD_TENURED_BEFORE_SIZE,
+    OLD_TENURED_BEFORE_COMMITTED,
+    OLD_TENURED_BEFORE_MAX,
+    OLD_EDEN_AFTER_SIZE,
+    OLD_EDEN_AFTER_COMMITTED,
+    OLD_EDEN_AFTER_MAX,
+    OLD_TENURED_AFTER_SIZE,
+    OLD_TENURED_AFTER_COMMITTED,
+    OLD_TENURED_AFTER_MAX,
+    // tenured live and committed KBs after this GC
+    LIVE,
+    COMMITTED,
+    // tenured live aggregates in KBs and as a percentage of max
+    LIVE_HI(true),
+    LIVE_HI_PCT(true),
+    LIVE_LO(true),
+    LIVE_LO_PCT(true),
+    LIVE_AVGE(true),
+    LIVE_AVGE_PCT(true),
+    LIVE_RUNNING_AVGE(true),
+    LIVE_RUNNING_AVGE_PCT(true),
+    // tenured committed aggregates in KBs and as a percentage of max
+    COMMITTED_HI(true),
+    COMMITTED_HI_PCT(true),
+    COMMITTED_LO(true),
+    COMMITTED_LO_PCT(true),
+    COMMITTED_AVGE(true),
+    COMMITTED_AVGE_PCT(true),
+    COMMITTED_RUNNING_AVGE(true),
+    COMMITTED_RUNNING_AVGE_PCT(true),
+    // length in msecs of the window used for the running averages
+    RUNNING_WINDOW,
+    // 1 if the balloon controller is enabled otherwise 0
+    BALLOONING,
+    BALLOON_COUNT,
+    BALLOON_BYTES,
+    // running totals of balloon controller activity
+    BALLOON_INFLATED_BYTES,
+    BALLOON_DEFLATED_BYTES,
+    BALLOON_BACKOFFS,
+    // GCs sampled by the native agent and how many of those were
+    // folded into the aggregates without their own record
+    GCS_SEEN,
+    GCS_AGGREGATED,
+    // GC end events the native agent passed to gcEnd and those which
+    // were coalesced into a later one. together they make up GCS_SEEN
+    GCS_DELIVERED,
+    GCS_COALESCED,
+    // number of young and old GC pauses since the stats were last
+    // dumped and their percentiles and maximum in usecs
+    YOUNG_PAUSES,
+    YOUNG_PAUSE_P50,
+    YOUNG_PAUSE_P90,
+    YOUNG_PAUSE_P99,
+    YOUNG_PAUSE_P999,
+    YOUNG_PAUSE_MAX,
+    OLD_PAUSES,
+    OLD_PAUSE_P50,
+    OLD_PAUSE_P90,
+    OLD_PAUSE_P99,
+    OLD_PAUSE_P999,
+    OLD_PAUSE_MAX,
+    // survivor usage after the last young GC in bytes
+    YOUNG_SURVIVOR_AFTER_SIZE,
+    YOUNG_SURVIVOR_AFTER_COMMITTED,
+    // eden allocation, tenured promotion and estimated survivor overflow
+    // in KBs per mutator second for the interval since the last record,
+    // averaged over the whole run and over the running window. all 0
+    // for concurrent collectors.
+    ALLOCATION_RATE(true),
+    ALLOCATION_RATE_AVGE(true),
+    ALLOCATION_RATE_RUNNING_AVGE(true),
+    PROMOTION_RATE(true),
+    PROMOTION_RATE_AVGE(true),
+    PROMOTION_RATE_RUNNING_AVGE(true),
+    SURVIVOR_OVERFLOW_RATE(true),
+    SURVIVOR_OVERFLOW_RATE_AVGE(true),
+    SURVIVOR_OVERFLOW_RATE_RUNNING_AVGE(true),
+    // lengths in msecs of the aggregation windows or 0 if unused
+    WINDOW_1_MSECS,
+    WINDOW_2_MSECS,
+    WINDOW_3_MSECS,
+    WINDOW_4_MSECS,
+    // time weighted average, min, max and exponentially weighted
+    // average of the live and committed KBs and the allocation and
+    // promotion rates over each window. laid out as WindowedStats
+    // expects.
+    LIVE_W1_AVGE(true),
+    LIVE_W1_MIN(true),
+    LIVE_W1_MAX(true),
+    LIVE_W1_EWMA(true),
+    LIVE_W2_AVGE(true),
+    LIVE_W2_MIN(true),
+    LIVE_W2_MAX(true),
+    LIVE_W2_EWMA(true),
+    LIVE_W3_AVGE(true),
+    LIVE_W3_MIN(true),
+    LIVE_W3_MAX(true),
+    LIVE_W3_EWMA(true),
+    LIVE_W4_AVGE(true),
+    LIVE_W4_MIN(true),
+    LIVE_W4_MAX(true),
+    LIVE_W4_EWMA(true),
+    COMMITTED_W1_AVGE(true),
+    COMMITTED_W1_MIN(true),
+    COMMITTED_W1_MAX(true),
+    COMMITTED_W1_EWMA(true),
+    COMMITTED_W2_AVGE(true),
+    COMMITTED_W2_MIN(true),
+    COMMITTED_W2_MAX(true),
+    COMMITTED_W2_EWMA(true),
+    COMMITTED_W3_AVGE(true),
+    COMMITTED_W3_MIN(true),
+    COMMITTED_W3_MAX(true),
+    COMMITTED_W3_EWMA(true),
+    COMMITTED_W4_AVGE(true),
+    COMMITTED_W4_MIN(true),
+    COMMITTED_W4_MAX(true),
+    COMMITTED_W4_EWMA(true),
+    ALLOCATION_RATE_W1_AVGE(true),
+    ALLOCATION_RATE_W1_MIN(true),
+    ALLOCATION_RATE_W1_MAX(true),
+    ALLOCATION_RATE_W1_EWMA(true),
+    ALLOCATION_RATE_W2_AVGE(true),
+    ALLOCATION_RATE_W2_MIN(true),
+    ALLOCATION_RATE_W2_MAX(true),
+    ALLOCATION_RATE_W2_EWMA(true),
+    ALLOCATION_RATE_W3_AVGE(true),
+    ALLOCATION_RATE_W3_MIN(true),
+    ALLOCATION_RATE_W3_MAX(true),
+    ALLOCATION_RATE_W3_EWMA(true),
+    ALLOCATION_RATE_W4_AVGE(true),
+    ALLOCATION_RATE_W4_MIN(true),
+    ALLOCATION_RATE_W4_MAX(true),
+    ALLOCATION_RATE_W4_EWMA(true),
+    PROMOTION_RATE_W1_AVGE(true),
+    PROMOTION_RATE_W1_MIN(true),
+    PROMOTION_RATE_W1_MAX(true),
+    PROMOTION_RATE_W1_EWMA(true),
+    PROMOTION_RATE_W2_AVGE(true),
+    PROMOTION_RATE_W2_MIN(true),
+    PROMOTION_RATE_W2_MAX(true),
+    PROMOTION_RATE_W2_EWMA(true),
+    PROMOTION_RATE_W3_AVGE(true),
+    PROMOTION_RATE_W3_MIN(true),
+    PROMOTION_RATE_W3_MAX(true),
+    PROMOTION_RATE_W3_EWMA(true),
+    PROMOTION_RATE_W4_AVGE(true),
+    PROMOTION_RATE_W4_MIN(true),
+    PROMOTION_RATE_W4_MAX(true),
+    PROMOTION_RATE_W4_EWMA(true),
+    // committed size of all the heap pools after the GC and the process
+    // and container memory sampled when the GC was recorded, all in bytes.
+    // process and cgroup sizes are -1 if not available and the cgroup
+    // limit is also -1 if there is none
+    HEAP_COMMITTED,
+    PROCESS_RSS,
+    PROCESS_RSS_HI,
+    PROCESS_PSS,
+    PROCESS_SWAP,
+    CGROUP_USAGE,
+    CGROUP_USAGE_HI,
+    CGROUP_LIMIT,
+    CGROUP_ANON,
+    CGROUP_FILE,
+    // bytes of whole pages in the balloons' data areas and how many of
+    // them were resident and released at the last residency check plus
+    // the number of moved balloons with resident pages. all -1 unless
+    // balloons are verified
+    BALLOON_MAPPED_BYTES,
+    BALLOON_RESIDENT_BYTES,
+    BALLOON_RECLAIMED_BYTES,
+    BALLOON_REFAULTED,
+    // number of emergency deflations and the balloon bytes they released
+    BALLOON_EMERGENCIES,
+    BALLOON_EMERGENCY_BYTES,
+    // number of times a PSI trigger reported memory pressure
+    BALLOON_PRESSURE_EVENTS,
+    // the heap free ratios set by the tuner, both -1 unless tuning, and
+    // the number of times it has changed them
+    HEAP_MIN_FREE_RATIO,
+    HEAP_MAX_FREE_RATIO,
+    HEAP_TUNINGS;
+
+    /**
+     * true if the field holds a double rather than a long
+     */
+    private final boolean isDouble;
+
+    private StatsField()
+    {
+        this(false);
+    }
+
+    private StatsField(boolean isDouble)
+    {
+        this.isDouble = isDouble;
+    }
+
+    public boolean isDouble()
+    {
+        return isDouble;
+    }
+
+    /**
+     * @return the name used to identify this field in the binary log and CSV output
+     */
+    public String fieldName()
+    {
+        return name().toLowerCase();
+    }
+
+    /**
+     * cached copy of values() which clones its result on every call
+     */
+    private final static StatsField[] FIELDS = values();
+
+    public final static int COUNT = FIELDS.length;
+
+    public static StatsField get(int idx)
+    {
+        return FIELDS[idx];
+    }
+
+    /**
+     * @return the field with the supplied field name or null if there is none
+     */
+    public static StatsField lookup(String fieldName)
+    {
+        for (StatsField field : FIELDS) {
+            if (field.fieldName().equals(fieldName)) {
+                return field;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+import java.io.PrintStream;
+
+import static com.redhat.openjdk.balloon.StatsField.*;
+
+/**
+ * renders a StatsRecord in the text layout used for the stats log.
+ * used by MemoryManager when dumping stats and by StatsDecoder when
+ * converting a binary stats log back to text.
+ */
+// package access only
+class StatsFormatter
+{
+    /**
+     * write the header which starts each run in the stats log
+     */
+    public static void dumpHeader(PrintStream out, String start, String gcType)
+    {
+        out.printf("Start: %s\n\n", start);
+        out.printf("GC Type: %s\n", gcType);
+    }
+
+    /**
+     * write the stats for one GC
+     */
+    public static void dump(PrintStream out, StatsRecord record)
+    {
+        dump(out, record, null);
+    }
+
+    /**
+     * write a rate in KBs per mutator second along with its averages
+     */
+    private static void dumpRate(PrintStream out, String label, double rate, String running, double avge, double runningAvge)
+    {
+        out.printf("%s%9d               ", label, (long)rate);
+        out.printf("avg: %9d    (last %3s): %9d\n", (long)avge, running, (long)runningAvge);
+    }
+
+    /**
+     * write the process and container memory in KBs next to the heap
+     * committed size. the gap between heap committed and RSS is native
+     * memory less any committed heap which has not been touched.
+     */
+    private static void dumpProcess(PrintStream out, StatsRecord record)
+    {
+        long heap = record.get(HEAP_COMMITTED);
+        long rss = record.get(PROCESS_RSS);
+        // n.b. older binary logs do not have these fields and decode as 0
+        if (rss > 0) {
+            out.printf("  rss:          %9d               ", rss / 1024);
+            out.printf("heap commit:  %9d\n", heap / 1024);
+            out.printf("  rss hi:       %9d               ", record.get(PROCESS_RSS_HI) / 1024);
+            out.printf("rss - heap:   %9d\n", (rss - heap) / 1024);
+            if (record.get(PROCESS_PSS) >= 0) {
+                out.printf("  pss:          %9d               ", record.get(PROCESS_PSS) / 1024);
+            } else {
+                out.printf("%40s", "");
+            }
+            out.printf("swap:         %9d\n", record.get(PROCESS_SWAP) / 1024);
+        }
+        long usage = record.get(CGROUP_USAGE);
+        if (usage > 0) {
+            long limit = record.get(CGROUP_LIMIT);
+            out.printf("  cgroup:       %9d               ", usage / 1024);
+            out.printf((limit < 0 ? "limit:             none\n" : "limit:        %9d\n"), limit / 1024);
+            out.printf("  cgroup hi:    %9d               ", record.get(CGROUP_USAGE_HI) / 1024);
+            out.printf("anon/file:    %9d/%d\n", record.get(CGROUP_ANON) / 1024, record.get(CGROUP_FILE) / 1024);
+        }
+    }
+
+    /**
+     * write the windowed live and committed aggregates for each window
+     * in use
+     */
+    private static void dumpWindows(PrintStream out, StatsRecord record)
+    {
+        for (int w = 0; w < WindowedStats.MAX_WINDOWS; w++) {
+            long msecs = record.get(StatsField.get(WINDOW_1_MSECS.ordinal() + w));
+            if (msecs == 0) {
+                break;
+            }
+            String label = windowLabel(msecs);
+            dumpWindow(out, "live", label, record, LIVE_W1_AVGE.ordinal() + w * WindowedStats.STATS);
+            dumpWindow(out, "commit", label, record, COMMITTED_W1_AVGE.ordinal() + w * WindowedStats.STATS);
+        }
+    }
+
+    private static void dumpWindow(PrintStream out, String name, String label, StatsRecord record, int idx)
+    {
+        out.printf("  %-6s %-4s   avg: %9d    min: %9d    max: %9d    ewma: %9d\n", name, label,
+                   (long)record.getDouble(StatsField.get(idx + WindowedStats.AVGE)),
+                   (long)record.getDouble(StatsField.get(idx + WindowedStats.MIN)),
+                   (long)record.getDouble(StatsField.get(idx + WindowedStats.MAX)),
+                   (long)record.getDouble(StatsField.get(idx + WindowedStats.EWMA)));
+    }
+
+    /**
+     * @return a window length in msecs in the form accepted by the windows option
+     */
+    public static String windowLabel(long msecs)
+    {
+        if (msecs % (60 * 60 * 1000L) == 0) {
+            return (msecs / (60 * 60 * 1000L)) + "h";
+        } else if (msecs % (60 * 1000L) == 0) {
+            return (msecs / (60 * 1000L)) + "m";
+        } else if (msecs % 1000L == 0) {
+            return (msecs / 1000L) + "s";
+        }
+        return Long.toString(msecs);
+    }
+
+    /**
+     * write the usage of every memory pool in KBs with its water mark
+     * and average
+     */
+    private static void dumpPools(PrintStream out, StatsRecord record)
+    {
+        for (int pool = 0; pool < record.poolCount(); pool++) {
+            out.printf("  %-34s used: %9dKB hi: %9dKB avg: %9dKB    committed: %9dKB hi: %9dKB\n",
+                       record.poolName(pool) + ":",
+                       record.get(pool, PoolField.USED) / 1024,
+                       record.get(pool, PoolField.USED_HI) / 1024,
+                       (long)record.getDouble(pool, PoolField.USED_AVGE) / 1024,
+                       record.get(pool, PoolField.COMMITTED) / 1024,
+                       record.get(pool, PoolField.COMMITTED_HI) / 1024);
+        }
+    }
+
+    /**
+     * write the pause count and percentiles in msecs for one kind of GC
+     * if there were any pauses since the last dump
+     */
+    private static void dumpPauses(PrintStream out, String label, StatsRecord record, StatsField count,
+                                   StatsField p50, StatsField p90, StatsField p99, StatsField p999, StatsField max)
+    {
+        if (record.get(count) == 0) {
+            return;
+        }
+        out.printf("%s%9d    ", label, record.get(count));
+        out.printf("p50/90/99/99.9/max ms: %.3f/%.3f/%.3f/%.3f/%.3f\n",
+                   record.get(p50) / 1000.0D, record.get(p90) / 1000.0D, record.get(p99) / 1000.0D,
+                   record.get(p999) / 1000.0D, record.get(max) / 1000.0D);
+    }
+
+    /**
+     * write the stats for one GC noting the cause reported for it. the
+     * cause is only known when stats are driven by GC notifications.
+     */
+    public static void dump(PrintStream out, StatsRecord record, String cause)
+    {
+        StringBuilder builder = new StringBuilder();
+        String running = windowLabel(record.get(RUNNING_WINDOW));
+        out.printf("%s timestamp: %9.4f", (record.getBoolean(OLD_GC) ? "Old: " : "Young: "), record.get(TOTAL_MSECS)/1000.0D);
+        if (cause != null) {
+            out.printf("    cause: %s", cause);
+        }
+        out.println();
+        dumpHeapState(builder, record);
+        out.print(builder.toString());
+        // for concurrent collectors gc time is pause time and young and old
+        // times are concurrent cycle times
+        boolean concurrent = record.getBoolean(CONCURRENT);
+        out.printf("  mutator secs: %9.4f               ", 1.0D * record.get(MUTATOR_MSECS)/1000.0D);
+        out.printf((concurrent ? "pause secs:   %9.4f\n" : "gc secs:      %9.4f\n"), 1.0D * record.get(GC_MSECS)/1000.0D);
+        out.printf((concurrent ? "   young cycle: %9.4f               " : "    young secs: %9.4f               "), 1.0D * record.get(YOUNG_MSECS)/1000.0D);
+        out.printf((concurrent ? "old cycle:    %9.4f\n" : "old secs:     %9.4f\n"), 1.0D * record.get(OLD_MSECS)/1000.0D);
+        out.printf("  live:         %9d               ", record.get(LIVE));
+        out.printf("committed:    %9d\n", record.get(COMMITTED));
+        out.printf(  "  live hi:      %9d (%7.4f%%)    ", (long)record.getDouble(LIVE_HI), record.getDouble(LIVE_HI_PCT));
+        out.printf("live lo:      %9d (%7.4f%%)\n", (long)record.getDouble(LIVE_LO), record.getDouble(LIVE_LO_PCT));
+        out.printf("  live avg:     %9d (%7.4f%%)    ", (long)record.getDouble(LIVE_AVGE), record.getDouble(LIVE_AVGE_PCT));
+        out.printf("(last %3s):    %9d (%7.4f%%)\n", running, (long)record.getDouble(LIVE_RUNNING_AVGE), record.getDouble(LIVE_RUNNING_AVGE_PCT));
+        out.printf("  commit hi:    %9d (%7.4f%%)    ", (long)record.getDouble(COMMITTED_HI), record.getDouble(COMMITTED_HI_PCT));
+        out.printf("commit lo:    %9d (%7.4f%%)\n", (long)record.getDouble(COMMITTED_LO), record.getDouble(COMMITTED_LO_PCT));
+        out.printf("  commit avg:   %9d (%7.4f%%)    ", (long)record.getDouble(COMMITTED_AVGE), record.getDouble(COMMITTED_AVGE_PCT));
+        out.printf("(last %3s):    %9d (%7.4f%%)\n", running, (long)record.getDouble(COMMITTED_RUNNING_AVGE), record.getDouble(COMMITTED_RUNNING_AVGE_PCT));
+        dumpProcess(out, record);
+        dumpWindows(out, record);
+        if (!concurrent) {
+            dumpRate(out, "  alloc KB/s:   ", record.getDouble(ALLOCATION_RATE), running,
+                     record.getDouble(ALLOCATION_RATE_AVGE), record.getDouble(ALLOCATION_RATE_RUNNING_AVGE));
+            dumpRate(out, "  promo KB/s:   ", record.getDouble(PROMOTION_RATE), running,
+                     record.getDouble(PROMOTION_RATE_AVGE), record.getDouble(PROMOTION_RATE_RUNNING_AVGE));
+            dumpRate(out, "  overflow KB/s:", record.getDouble(SURVIVOR_OVERFLOW_RATE), running,
+                     record.getDouble(SURVIVOR_OVERFLOW_RATE_AVGE), record.getDouble(SURVIVOR_OVERFLOW_RATE_RUNNING_AVGE));
+        }
+        dumpPauses(out, "  young pauses: ", record, YOUNG_PAUSES, YOUNG_PAUSE_P50, YOUNG_PAUSE_P90, YOUNG_PAUSE_P99, YOUNG_PAUSE_P999, YOUNG_PAUSE_MAX);
+        dumpPauses(out, "  old pauses:   ", record, OLD_PAUSES, OLD_PAUSE_P50, OLD_PAUSE_P90, OLD_PAUSE_P99, OLD_PAUSE_P999, OLD_PAUSE_MAX);
+        dumpPools(out, record);
+        if (record.get(GCS_SEEN) > 0) {
+            out.printf("  gcs seen:     %9d               ", record.get(GCS_SEEN));
+            out.printf("aggregated:   %9d\n", record.get(GCS_AGGREGATED));
+            out.printf("  delivered:    %9d               ", record.get(GCS_DELIVERED));
+            out.printf("coalesced:    %9d\n", record.get(GCS_COALESCED));
+        }
+        if (record.getBoolean(BALLOONING)) {
+            out.printf("  balloons:     %9d               ", record.get(BALLOON_COUNT));
+            out.printf("balloon KB:   %9d\n", record.get(BALLOON_BYTES) / 1024);
+            if (record.get(BALLOON_MAPPED_BYTES) > 0) {
+                out.printf("  reclaimed KB: %9d               ", record.get(BALLOON_RECLAIMED_BYTES) / 1024);
+                out.printf("resident KB:  %9d    refaulted: %d\n", record.get(BALLOON_RESIDENT_BYTES) / 1024, record.get(BALLOON_REFAULTED));
+            }
+            if (record.get(BALLOON_EMERGENCIES) > 0) {
+                out.printf("  emergencies:  %9d               ", record.get(BALLOON_EMERGENCIES));
+                out.printf("emergency KB: %9d\n", record.get(BALLOON_EMERGENCY_BYTES) / 1024);
+            }
+            if (record.get(BALLOON_PRESSURE_EVENTS) > 0) {
+                out.printf("  pressure:     %9d\n", record.get(BALLOON_PRESSURE_EVENTS));
+            }
+        }
+        if (record.get(HEAP_MIN_FREE_RATIO) >= 0) {
+            out.printf("  free ratios:  %4d%% - %3d%%               ", record.get(HEAP_MIN_FREE_RATIO), record.get(HEAP_MAX_FREE_RATIO));
+            out.printf("tunings:      %9d\n", record.get(HEAP_TUNINGS));
+        }
+        out.println();
+    }
+
+    private static void dumpHeapState(StringBuilder builder, StatsRecord r)
+    {
+        dumpCountTime(builder, "  young count: ", r.get(YOUNG_COUNT), "  young msecs: ", r.get(YOUNG_ELAPSED_TIME));
+        dumpUsage(builder, "eden", r.get(YOUNG_EDEN_BEFORE_SIZE), r.get(YOUNG_EDEN_BEFORE_COMMITTED), r.get(YOUNG_EDEN_BEFORE_MAX),
+                r.get(YOUNG_EDEN_AFTER_SIZE), r.get(YOUNG_EDEN_AFTER_COMMITTED), r.get(YOUNG_EDEN_AFTER_MAX));
+        dumpUsage(builder, "tenured", r.get(YOUNG_TENURED_BEFORE_SIZE), r.get(YOUNG_TENURED_BEFORE_COMMITTED), r.get(YOUNG_TENURED_BEFORE_MAX),
+                r.get(YOUNG_TENURED_AFTER_SIZE), r.get(YOUNG_TENURED_AFTER_COMMITTED), r.get(YOUNG_TENURED_AFTER_MAX));
+        dumpCountTime(builder, "  old count:   ", r.get(OLD_COUNT), "  old msecs:   ", r.get(OLD_ELAPSED_TIME));
+        dumpUsage(builder, "eden", r.get(OLD_EDEN_BEFORE_SIZE), r.get(OLD_EDEN_BEFORE_COMMITTED), r.get(OLD_EDEN_BEFORE_MAX),
+                r.get(OLD_EDEN_AFTER_SIZE), r.get(OLD_EDEN_AFTER_COMMITTED), r.get(OLD_EDEN_AFTER_MAX));
+        dumpUsage(builder, "tenured", r.get(OLD_TENURED_BEFORE_SIZE), r.get(OLD_TENURED_BEFORE_COMMITTED), r.get(OLD_TENURED_BEFORE_MAX),
+                r.get(OLD_TENURED_AFTER_SIZE), r.get(OLD_TENURED_AFTER_COMMITTED), r.get(OLD_TENURED_AFTER_MAX));
+    }
+
+    private static void dumpCountTime(StringBuilder builder, String tag1, long count, String tag2, long msecs)
+    {
+        builder.append(tag1);
+        builder.append(count);
+        builder.append('\n');
+        builder.append(tag2);
+        builder.append(msecs);
+        builder.append('\n');
+    }
+
+    private static void dumpUsage(StringBuilder builder, String tag, long beforeSize, long beforeCommitted, long beforeMax, long afterSize, long afterCommitted, long afterMax)
+    {
+        builder.append("    ");
+        builder.append(tag);
+        builder.append(": ");
+        builder.append(beforeSize/1024);
+        builder.append("KB/");
+        builder.append(beforeCommitted/1024);
+        builder.append("KB(");
+        builder.append(beforeMax/1024);
+        builder.append("KB) --> ");
+        builder.append(afterSize/1024);
+        builder.append("KB/");
+        builder.append(afterCommitted/1024);
+        builder.append("KB(");
+        builder.append(afterMax/1024);
+        builder.append("KB)\n");
+    }
+
+    /**
+     * write a CSV header line listing the supplied field names
+     */
+    public static void dumpCSVHeader(PrintStream out, String[] names)
+    {
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                out.print(',');
+            }
+            out.print(names[i]);
+        }
+        out.println();
+    }
+
+    /**
+     * write a CSV line holding the supplied raw field values
+     * @param isDouble flags identifying which values are doubles
+     */
+    public static void dumpCSV(PrintStream out, long[] raw, boolean[] isDouble)
+    {
+        for (int i = 0; i < raw.length; i++) {
+            if (i > 0) {
+                out.print(',');
+            }
+            if (isDouble[i]) {
+                out.print(Double.longBitsToDouble(raw[i]));
+            } else {
+                out.print(raw[i]);
+            }
+        }
+        out.println();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+/**
+ * a fixed size record of the statistics computed by MemoryManager at
+ * the end of a GC. doubles are stored as their raw long bits so the
+ * whole record can be written and read as an array of longs.
+ *
+ * MemoryManager refills a single preallocated record at each GC.
+ *
+ * the PoolField values for each memory pool follow the StatsField
+ * values. raw indices run over both so a record can still be handled
+ * as one array of longs.
+ */
+// package access only
+class StatsRecord
+{
+    private final long[] values;
+
+    /**
+     * the names of the pools whose fields follow the StatsField values
+     */
+    private final String[] poolNames;
+
+    private final static String[] NO_POOLS = new String[0];
+
+    public StatsRecord()
+    {
+        this(NO_POOLS);
+    }
+
+    public StatsRecord(String[] poolNames)
+    {
+        this.poolNames = poolNames;
+        values = new long[StatsField.COUNT + poolNames.length * PoolField.COUNT];
+    }
+
+    /**
+     * @return the number of raw values in the record
+     */
+    public int rawCount()
+    {
+        return values.length;
+    }
+
+    public int poolCount()
+    {
+        return poolNames.length;
+    }
+
+    public String poolName(int pool)
+    {
+        return poolNames[pool];
+    }
+
+    /**
+     * @return the raw index of a field of a pool
+     */
+    public static int poolIndex(int pool, PoolField field)
+    {
+        return StatsField.COUNT + pool * PoolField.COUNT + field.ordinal();
+    }
+
+    public void set(int pool, PoolField field, long value)
+    {
+        values[poolIndex(pool, field)] = value;
+    }
+
+    public void set(int pool, PoolField field, double value)
+    {
+        values[poolIndex(pool, field)] = Double.doubleToRawLongBits(value);
+    }
+
+    public long get(int pool, PoolField field)
+    {
+        return values[poolIndex(pool, field)];
+    }
+
+    public double getDouble(int pool, PoolField field)
+    {
+        return Double.longBitsToDouble(values[poolIndex(pool, field)]);
+    }
+
+    public void set(StatsField field, long value)
+    {
+        values[field.ordinal()] = value;
+    }
+
+    public void set(StatsField field, double value)
+    {
+        values[field.ordinal()] = Double.doubleToRawLongBits(value);
+    }
+
+    public void set(StatsField field, boolean value)
+    {
+        values[field.ordinal()] = (value ? 1L : 0L);
+    }
+
+    public long get(StatsField field)
+    {
+        return values[field.ordinal()];
+    }
+
+    public double getDouble(StatsField field)
+    {
+        return Double.longBitsToDouble(values[field.ordinal()]);
+    }
+
+    public boolean getBoolean(StatsField field)
+    {
+        return values[field.ordinal()] != 0L;
+    }
+
+    /**
+     * @return the raw value for the field at index idx
+     */
+    public long getRaw(int idx)
+    {
+        return values[idx];
+    }
+
+    /**
+     * set the raw value for the field at index idx
+     */
+    public void setRaw(int idx, long value)
+    {
+        values[idx] = value;
+    }
+
+    /**
+     * copy the values of another record with the same pools
+     */
+    public void copyFrom(StatsRecord other)
+    {
+        System.arraycopy(other.values, 0, values, 0, values.length);
+    }
+}
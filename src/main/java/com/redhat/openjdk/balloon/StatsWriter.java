@@ -0,0 +1,292 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * asynchronous writer for the text stats log. stats are formatted into a
+ * reusable in-memory buffer via the PrintStream returned by stream(). a
+ * call to submit() copies the formatted text into buffers taken from a
+ * fixed pool and queues them for a background thread which writes them
+ * to the log file or stdout in batches using a gathering channel write.
+ *
+ * the agent thread never waits on the output. if the pool is empty
+ * because the writer has fallen behind the submitted text is dropped
+ * and counted. a note of the number of dropped submissions is written
+ * as soon as there is space to record it.
+ *
+ * stdout is written via its file descriptor rather than System.out so
+ * the writer does not contend with the application for its lock.
+ */
+// package access only
+class StatsWriter implements Runnable
+{
+    /**
+     * number of buffers in the pool
+     */
+    private final static int BUFFER_COUNT = 32;
+
+    /**
+     * size of each buffer in the pool
+     */
+    private final static int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * how long to wait for queued output to be written at shutdown
+     */
+    private final static long SHUTDOWN_WAIT_MSECS = 1000;
+
+    /**
+     * byte array stream which exposes its contents so they can be
+     * copied without allocating a new array
+     */
+    private static class FormatBuffer extends ByteArrayOutputStream
+    {
+        FormatBuffer(int size)
+        {
+            super(size);
+        }
+
+        byte[] bytes()
+        {
+            return buf;
+        }
+    }
+
+    private final FileChannel channel;
+    private final FormatBuffer formatBuffer;
+    private final PrintStream stream;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final ArrayBlockingQueue<ByteBuffer> full;
+    private final ByteBuffer[] batch;
+    private final BatchList batchList;
+    private long droppedCount;
+    private long reportedDroppedCount;
+    private volatile boolean closed;
+    private Thread thread;
+
+    /**
+     * create a writer which appends to the named file
+     *
+     * @return the writer or null if the file could not be opened
+     */
+    public static StatsWriter open(String filename)
+    {
+        try {
+            return new StatsWriter(new FileOutputStream(filename, true).getChannel());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * create a writer which writes to the process's stdout
+     */
+    public static StatsWriter openStdout()
+    {
+        return new StatsWriter(new FileOutputStream(FileDescriptor.out).getChannel());
+    }
+
+    private StatsWriter(FileChannel channel)
+    {
+        this.channel = channel;
+        formatBuffer = new FormatBuffer(BUFFER_SIZE);
+        stream = new PrintStream(formatBuffer, false);
+        free = new ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT);
+        full = new ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT);
+        batch = new ByteBuffer[BUFFER_COUNT];
+        batchList = new BatchList();
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+        droppedCount = 0;
+        reportedDroppedCount = 0;
+        closed = false;
+        thread = new Thread(this, "Balloon Stats Writer");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread("Balloon Stats Writer Shutdown") {
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * @return the stream used to format text for the next submit
+     */
+    public PrintStream stream()
+    {
+        return stream;
+    }
+
+    /**
+     * @return the number of submissions dropped because the writer fell behind
+     */
+    public long droppedCount()
+    {
+        return droppedCount;
+    }
+
+    /**
+     * queue the text formatted since the last submit for writing. never
+     * blocks. n.b. must only be called from one thread.
+     */
+    public void submit()
+    {
+        stream.flush();
+        int length = formatBuffer.size();
+        if (length == 0) {
+            return;
+        }
+        if (droppedCount > reportedDroppedCount) {
+            // try to get a note of the drops out ahead of the new text
+            byte[] note = String.format("Stats writer: dropped %d stats outputs\n", droppedCount - reportedDroppedCount).getBytes();
+            if (queue(note, note.length)) {
+                reportedDroppedCount = droppedCount;
+            }
+        }
+        if (!queue(formatBuffer.bytes(), length)) {
+            droppedCount++;
+        }
+        formatBuffer.reset();
+    }
+
+    /**
+     * copy bytes into as many pool buffers as are needed and queue them
+     * @return false if there were not enough free buffers
+     */
+    private boolean queue(byte[] bytes, int length)
+    {
+        int needed = (length + BUFFER_SIZE - 1) / BUFFER_SIZE;
+        if (closed || free.size() < needed) {
+            return false;
+        }
+        // only this thread takes from the free queue so these polls will succeed
+        int offset = 0;
+        while (offset < length) {
+            ByteBuffer buffer = free.poll();
+            int count = Math.min(length - offset, BUFFER_SIZE);
+            buffer.put(bytes, offset, count);
+            buffer.flip();
+            full.offer(buffer);
+            offset += count;
+        }
+        return true;
+    }
+
+    /**
+     * background thread loop which writes queued buffers in batches
+     */
+    public void run()
+    {
+        while (true) {
+            ByteBuffer first;
+            try {
+                first = full.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            batch[0] = first;
+            batchList.reset();
+            int count = 1 + full.drainTo(batchList, BUFFER_COUNT - 1);
+            write(count);
+        }
+    }
+
+    private void write(int count)
+    {
+        try {
+            long remaining = 0;
+            for (int i = 0; i < count; i++) {
+                remaining += batch[i].remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(batch, 0, count);
+            }
+        } catch (IOException e) {
+            // nothing sensible to do except drop the output
+        }
+        for (int i = 0; i < count; i++) {
+            batch[i].clear();
+            free.offer(batch[i]);
+            batch[i] = null;
+        }
+    }
+
+    /**
+     * stop accepting output and give the writer a short while to write
+     * anything already queued
+     */
+    private void close()
+    {
+        closed = true;
+        long waitUntil = System.currentTimeMillis() + SHUTDOWN_WAIT_MSECS;
+        while (free.size() < BUFFER_COUNT && System.currentTimeMillis() < waitUntil) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * minimal collection used to drain the full queue straight into the batch array
+     */
+    private class BatchList extends AbstractList<ByteBuffer>
+    {
+        private int size = 1;
+
+        void reset()
+        {
+            size = 1;
+        }
+
+        public boolean add(ByteBuffer buffer)
+        {
+            batch[size++] = buffer;
+            return true;
+        }
+
+        public ByteBuffer get(int idx)
+        {
+            return batch[idx];
+        }
+
+        public int size()
+        {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package com.redhat.openjdk.balloon;
+
+/**
+ * time windowed min, max and average of one metric sampled at each GC
+ * plus an exponentially weighted moving average per window.
+ *
+ * a sample taken at some time is taken to describe the interval since
+ * the previous sample, matching the time weighted averages computed by
+ * MemoryManager. each window is split into BUCKETS buckets which
+ * accumulate the time weighted sum, the covered time and the min and
+ * max for the samples falling in them. old buckets are recycled as time
+ * moves on so a window covers between window - window / BUCKETS and
+ * window msecs of history.
+ *
+ * everything is allocated up front and an update touches at most
+ * BUCKETS + 1 buckets per window whatever the GC rate, so GCing once a
+ * minute and ten times a second both give comparable figures.
+ */
+// package access only
+class WindowedStats
+{
+    /**
+     * the most windows for which fields are provided in a StatsRecord
+     */
+    public final static int MAX_WINDOWS = 4;
+
+    /**
+     * the number of buckets each window is divided into
+     */
+    public final static int BUCKETS = 30;
+
+    /**
+     * offsets of the per window fields following the first field for
+     * a metric in a StatsRecord
+     */
+    public final static int AVGE = 0;
+    public final static int MIN = 1;
+    public final static int MAX = 2;
+    public final static int EWMA = 3;
+    public final static int STATS = 4;
+
+    /**
+     * window lengths in msecs
+     */
+    private final long[] windows;
+
+    /**
+     * bucket widths in msecs for each window
+     */
+    private final long[] widths;
+
+    /**
+     * for each window and bucket the index of the time slice, time
+     * divided by the bucket width, which the bucket currently holds or
+     * -1 if it is unused
+     */
+    private final long[][] ids;
+
+    /**
+     * for each window and bucket the sum of value * msecs
+     */
+    private final double[][] areas;
+
+    /**
+     * for each window and bucket the msecs covered
+     */
+    private final long[][] times;
+
+    private final double[][] mins;
+    private final double[][] maxs;
+
+    private final double[] ewmas;
+
+    /**
+     * the time of the last sample in msecs
+     */
+    private long lastTime;
+
+    /**
+     * true until the first sample arrives
+     */
+    private boolean empty = true;
+
+    /**
+     * results of the last call to scan
+     */
+    private double scanAvge;
+    private double scanMin;
+    private double scanMax;
+
+    /**
+     * @param windows the window lengths in msecs. at most MAX_WINDOWS
+     * are used.
+     */
+    public WindowedStats(long[] windows)
+    {
+        int count = Math.min(windows.length, MAX_WINDOWS);
+        this.windows = new long[count];
+        widths = new long[count];
+        ids = new long[count][BUCKETS];
+        areas = new double[count][BUCKETS];
+        times = new long[count][BUCKETS];
+        mins = new double[count][BUCKETS];
+        maxs = new double[count][BUCKETS];
+        ewmas = new double[count];
+        for (int w = 0; w < count; w++) {
+            this.windows[w] = windows[w];
+            widths[w] = Math.max(1L, windows[w] / BUCKETS);
+            for (int b = 0; b < BUCKETS; b++) {
+                ids[w][b] = -1;
+            }
+        }
+    }
+
+    /**
+     * @return the number of windows
+     */
+    public int windowCount()
+    {
+        return windows.length;
+    }
+
+    /**
+     * add a sample describing the interval from the last sample up to
+     * time. a sample earlier than the last one is treated as
+     * instantaneous, so it only counts towards min and max.
+     *
+     * @param time the sample time in msecs since JVM start
+     * @param value the sampled value
+     */
+    public void update(long time, double value)
+    {
+        long from = lastTime;
+        if (time < from) {
+            time = from;
+        }
+        for (int w = 0; w < windows.length; w++) {
+            spread(w, from, time, value);
+            if (empty) {
+                ewmas[w] = value;
+            } else {
+                // decay towards the value by the fraction of the
+                // window which has elapsed
+                double alpha = 1.0D - Math.exp(-(double)(time - from) / windows[w]);
+                ewmas[w] += alpha * (value - ewmas[w]);
+            }
+        }
+        lastTime = time;
+        empty = false;
+    }
+
+    /**
+     * add value held from from until to into the buckets of window w
+     */
+    private void spread(int w, long from, long to, double value)
+    {
+        long width = widths[w];
+        // anything older than the window will never be read
+        if (to - from > windows[w]) {
+            from = to - windows[w];
+        }
+        long id = from / width;
+        do {
+            long next = Math.min(to, (id + 1) * width);
+            int slot = (int)(id % BUCKETS);
+            if (ids[w][slot] != id) {
+                // recycle a bucket holding an expired time slice
+                ids[w][slot] = id;
+                areas[w][slot] = 0D;
+                times[w][slot] = 0;
+                mins[w][slot] = value;
+                maxs[w][slot] = value;
+            } else if (value < mins[w][slot]) {
+                mins[w][slot] = value;
+            } else if (value > maxs[w][slot]) {
+                maxs[w][slot] = value;
+            }
+            areas[w][slot] += value * (next - from);
+            times[w][slot] += next - from;
+            from = next;
+            id++;
+        } while (from < to);
+    }
+
+    /**
+     * compute the average, min and max for window w as of the last
+     * sample into scanAvge, scanMin and scanMax
+     */
+    private void scan(int w)
+    {
+        long oldest = lastTime / widths[w] - BUCKETS + 1;
+        double area = 0D;
+        long time = 0;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (int b = 0; b < BUCKETS; b++) {
+            if (ids[w][b] >= oldest) {
+                area += areas[w][b];
+                time += times[w][b];
+                if (mins[w][b] < min) {
+                    min = mins[w][b];
+                }
+                if (maxs[w][b] > max) {
+                    max = maxs[w][b];
+                }
+            }
+        }
+        if (min > max) {
+            // nothing sampled yet
+            scanAvge = scanMin = scanMax = 0D;
+        } else {
+            // samples which covered no time still give min and max
+            scanAvge = (time > 0 ? area / time : min);
+            scanMin = min;
+            scanMax = max;
+        }
+    }
+
+    /**
+     * @return the time weighted average for window w
+     */
+    public double average(int w)
+    {
+        scan(w);
+        return scanAvge;
+    }
+
+    /**
+     * copy the windowed values into a stats record. the fields for each
+     * window are laid out STATS at a time starting at first. fields for
+     * windows which are not in use are zeroed.
+     */
+    public void record(StatsRecord record, StatsField first)
+    {
+        int base = first.ordinal();
+        for (int w = 0; w < MAX_WINDOWS; w++) {
+            int idx = base + w * STATS;
+            if (w < windows.length) {
+                scan(w);
+                record.set(StatsField.get(idx + AVGE), scanAvge);
+                record.set(StatsField.get(idx + MIN), scanMin);
+                record.set(StatsField.get(idx + MAX), scanMax);
+                record.set(StatsField.get(idx + EWMA), ewmas[w]);
+            } else {
+                record.set(StatsField.get(idx + AVGE), 0D);
+                record.set(StatsField.get(idx + MIN), 0D);
+                record.set(StatsField.get(idx + MAX), 0D);
+                record.set(StatsField.get(idx + EWMA), 0D);
+            }
+        }
+    }
+}
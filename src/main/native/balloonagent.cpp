@@ -31,9 +31,17 @@
 #include <sys/stat.h>
 #include <errno.h>
 #include <fcntl.h>
-#include <queue>
+#include <time.h>
+#include <stdint.h>
+#include <sys/eventfd.h>
+#include <poll.h>
+#include <atomic>
 #include <deque>
+#include <vector>
+#include <algorithm>
 #include "balloonutil.h"
+#include "balloonmap.h"
+#include "balloonperf.h"
 #include "balloonagent.hpp"
 
 /*
@@ -54,7 +62,11 @@
  *  verbose -- write agent trace messages to stdout
  *  sysout -- write balloon stats to System.out
  *  approot -- write balloon stats to ${CWD}/app-root/data/.balloonstats.log
- *  map -- enable not yet fully implemented function
+ *  map[=strategy] -- release the physical pages backing balloons using
+ *     strategy dontneed (the default), free or remove
+ *  balloon -- inflate and deflate balloons automatically, tuned by
+ *     headroom, reserve, inflate, deflate, hysteresis and backoff (see
+ *     BalloonController)
  */
 
 // constants used to identify wher to log data
@@ -68,6 +80,20 @@
 // flag which enables or disables memory remapping
 static int do_balloon_mapping = 0;
 
+// how balloon ranges are handled when the heap is backed by transparent
+// huge pages. THP_ALIGN only releases and restores whole huge pages so
+// no huge page is ever split. THP_MADVISE also marks released ranges
+// MADV_NOHUGEPAGE and restored ones MADV_HUGEPAGE, which suits a heap
+// the JVM has madvised with -XX:+UseTransparentHugePages
+#define THP_NONE 0
+#define THP_ALIGN 1
+#define THP_MADVISE 2
+static int thp_mode = THP_NONE;
+
+// huge page size used when thp_mode is not THP_NONE
+#define DEFAULT_HUGE_PAGE_SIZE (2 * 1024 * 1024L)
+#define HUGE_PAGE_SIZE_FILE "/sys/kernel/mm/transparent_hugepage/hpage_pmd_size"
+
 // flag which redirects output to System.out if set otherwise leaves it
 // going to the default log file (${CWD}/.balloonstats.log)
 static jvalue log_location = { LOG_LOCATION_APPROOT };
@@ -80,28 +106,246 @@ static jvalue log_location = { LOG_LOCATION_APPROOT };
 
 static jvalue dump_all = { 0 };
 
-// lock used to sequence concurrent actions performed
-// by JVMTI callbacks and the agent manager jthread
+// copy of the agent options string which is passed on to
+// MemoryManager.init so it can pick out the options which
+// configure the Java side of the agent
+static char *agent_options = NULL;
+
+// names of options which are handled by the Java side of the agent
+// these may be supplied either as a bare name or as name=value
+static const char *java_option_names[] = {
+  "balloon",
+  "headroom",
+  "reserve",
+  "inflate",
+  "deflate",
+  "hysteresis",
+  "backoff",
+  "binary",
+  "http",
+  "lib",
+  "windows",
+  "dumpmin",
+  "dumpmax",
+  "pss",
+  "verify",
+  "balloonsize",
+  "emergency",
+  "critical",
+  "psi",
+  "psistall",
+  "psiwindow",
+  "psiquiet",
+  "tune",
+  "tuneperiod",
+  "tunefloor",
+  "tunespread",
+  "tunestep",
+  NULL
+};
+
+// lock used to sequence updates to the balloon list performed by
+// the agent thread and threads registering or removing balloons.
+// the endGC callback never takes it
 static jrawMonitorID agent_lock;
 
-// types of events notified to the agent manager jthread
-// from registered JVMTI callbacks
-typedef enum {
-  Init,
-  End,
-  Terminate
-} GCEvent;
+// lock held by remap_balloons while it refers to balloons outside the
+// agent lock and by emergency deflation while it removes balloons
+// from another thread. taken before agent_lock when both are needed
+static jrawMonitorID balloon_lock;
+
+// record of a GC end event passed from the endGC callback
+// to the agent manager jthread. the record is a sample of the
+// heap taken when the GC ended so that MemoryManager can account
+// for GCs which get coalesced. counts and sizes are read from the
+// perf data counters and are -1 if they are not available. the
+// before sizes and start time are sampled by the startGC callback
+// and are -1 if it did not run for this GC. there is no eden used
+// size before the GC as the eden counter is only refreshed at a GC
+// or by the periodic perf data sampler so is stale by then. together with the after
+// sizes they let MemoryManager fill its heap state without looking
+// up the GC info, which allocates.
+//
+// n.b. the field order must match the SAMPLE_XXX indices used by
+// MemoryManager when it drains the samples
+typedef struct {
+  jlong seq;            // count of GC end events up to and including this one
+  jlong nanos;          // monotonic clock time at which the GC ended
+  jlong young_count;
+  jlong old_count;
+  jlong eden_used;
+  jlong eden_capacity;
+  jlong old_used;
+  jlong old_capacity;
+  jlong start_nanos;    // monotonic clock time at which the GC started
+  jlong eden_capacity_before;
+  jlong survivor_used_before;
+  jlong survivor_capacity_before;
+  jlong old_used_before;
+  jlong old_capacity_before;
+  jlong survivor_used;
+  jlong survivor_capacity;
+  jlong survivor_spaces_before; // capacity of both survivor spaces
+  jlong survivor_spaces;
+  jlong young_max;
+} GCEventRecord;
+
+// the sizes sampled at the start and the end of a GC
+typedef struct {
+  jlong eden_used;
+  jlong eden_capacity;
+  jlong survivor_used;
+  jlong survivor_capacity;
+  jlong survivor_spaces;
+  jlong old_used;
+  jlong old_capacity;
+} HeapSample;
+
+#define GC_SAMPLE_FIELDS (sizeof(GCEventRecord) / sizeof(jlong))
+
+// capacity of the GC event ring. must be a power of two. the
+// agent jthread coalesces end events so the ring only needs to
+// absorb the GCs which happen while it is busy in Java. n.b.
+// MemoryManager.SAMPLE_BATCH must allow for the ring plus the
+// overflow record
+#define GC_RING_SIZE 256
+#define GC_RING_MASK (GC_RING_SIZE - 1)
+
+// single producer single consumer ring used to pass GC end
+// events to the agent jthread. endGC runs at a GC safepoint so it
+// must not lock or allocate. it fills the slot at tail and then
+// publishes it by advancing tail. the agent jthread reads the slots
+// up to tail and then advances head to hand them back.
+//
+// n.b. GC finish events are posted by the VM thread or by GC pause
+// operations which it serializes so there is only ever one producer
+static struct {
+  GCEventRecord slots[GC_RING_SIZE];
+  std::atomic<unsigned long> head;
+  std::atomic<unsigned long> tail;
+} gcRing;
+
+// the newest GC end event which found the ring full. each one
+// replaces the last so the newest GC is never lost. endGC must
+// not wait for the reader so the record is guarded by a sequence
+// lock. version is odd while endGC is writing the record and the
+// agent jthread retries a copy during which version changed.
+static struct {
+  GCEventRecord record;
+  std::atomic<unsigned long> version;
+} gcOverflow;
+
+// the overflow record version last copied by the agent jthread
+static unsigned long overflow_version = 0;
+
+// the agent jthread's copy of the overflow record when it has an
+// event not yet delivered and where it falls among the ring slots
+// delivered with it. the ring only overflows while the agent
+// jthread holds every slot so the record is newer than the slots
+// it held and older than any filled after it handed them back
+static GCEventRecord overflow_record;
+static bool overflow_pending = false;
+static bool overflow_first = false;
+
+// count of GC end events seen by endGC. only updated by the producer
+static jlong gc_seq = 0;
+
+// the tail of the ring as of the current gcEnd upcall. samples up
+// to here may be drained by MemoryManager. only used by the agent
+// jthread
+static unsigned long delivered_tail = 0;
+
+// true if the overflow record is delivered with the current gcEnd
+// upcall. only used by the agent jthread
+static bool delivered_overflow = false;
+
+// perf data counters sampled by endGC or NULL if not available.
+// the two survivor spaces swap roles at each young GC so both are
+// sampled
+static struct {
+  volatile jlong *young_count;
+  volatile jlong *old_count;
+  volatile jlong *eden_used;
+  volatile jlong *eden_capacity;
+  volatile jlong *old_used;
+  volatile jlong *old_capacity;
+  volatile jlong *s0_used;
+  volatile jlong *s0_capacity;
+  volatile jlong *s1_used;
+  volatile jlong *s1_capacity;
+  volatile jlong *young_max;
+} gcCounters;
+
+// sizes sampled by startGC for the GC in progress and the time it
+// started or 0 if startGC has not run for it. only used by the GC
+// callbacks
+static HeapSample gc_before;
+static jlong gc_before_nanos = 0;
+
+// log-linear histograms of GC pause lengths in usecs. values below
+// PAUSE_SUB_BUCKETS each get their own bucket. each power of two
+// above that is split into PAUSE_SUB_BUCKETS linear buckets so a
+// bucket's width is at most 1/16 of its lower bound. longer pauses
+// than 2^(PAUSE_MAX_EXPONENT+1) usecs go in the last bucket.
+//
+// n.b. the layout must match PauseHistogram
+#define PAUSE_SUB_BITS 4
+#define PAUSE_SUB_BUCKETS (1 << PAUSE_SUB_BITS)
+#define PAUSE_MAX_EXPONENT 35
+#define PAUSE_BUCKETS ((PAUSE_MAX_EXPONENT - PAUSE_SUB_BITS + 2) * PAUSE_SUB_BUCKETS)
+
+// pause histogram for one kind of GC. counts are cumulative and only
+// written by the GC callbacks. max is the longest pause since
+// MemoryManager last read it
+typedef struct {
+  std::atomic<jlong> max;
+  std::atomic<jlong> counts[PAUSE_BUCKETS];
+} PauseSeries;
+
+#define PAUSE_YOUNG 0
+#define PAUSE_OLD 1
+static PauseSeries pauseSeries[2];
+
+// monotonic clock time at which the current GC started or 0 if
+// no GC is in progress. only used by the GC callbacks
+static jlong gc_start_nanos = 0;
 
-// queue used to communicate events from JVMTI
-// callbacks to the agent jthread
-static std::queue<GCEvent> gcNotifyQueue;
+// the old collector count at the end of the last GC. used to
+// identify old GC pauses. only used by the GC callbacks
+static jlong last_old_count = 0;
+
+// true if the GC has no separate young collector in which case
+// all pauses are counted as old
+static bool single_generation = false;
+
+// name of the agent jthread which calls into MemoryManager
+#define AGENT_THREAD_NAME "Balloon Agent"
+
+// lifecycle events notified to the agent manager jthread. these
+// only happen once so they are posted as bits in pending_events
+#define EVENT_INIT 1
+#define EVENT_TERMINATE 2
+static std::atomic<int> pending_events(0);
+
+// eventfd on which the agent jthread blocks when it has no events
+static int wakeup_fd = -1;
+
+// set by the agent jthread just before it blocks so that event
+// producers only pay for a write when it is actually asleep
+static std::atomic<int> agent_sleeping(0);
+
+// flag indicating that the library was attached by the Java agent
+// via BalloonManager.attachAgent rather than loaded as a JVMTI agent.
+// in that case there is no agent thread and MemoryManager is driven
+// by GC notifications so GC events only need to update balloons.
+static bool java_driven = false;
 
 // flag indicating that init failed and we should stop monitoring
 static long failed = 0;
 
 // flag allowing agent jthread to detect that a GC occurred
 // while it is performing balloon management
-static jboolean interrupted = JNI_FALSE;
+static std::atomic<jboolean> interrupted(JNI_FALSE);
 
 // flag allowing agent jthread to detect that the VM has died
 static jboolean vmdead = JNI_FALSE;
@@ -110,27 +354,73 @@ static jboolean vmdead = JNI_FALSE;
 typedef struct {
 
   jbyteArray globalRef;
+  // the raw address of the balloon as of the last time the agent
+  // thread checked it. a GC may since have moved it
   void *rawRef;
   int offset;
   jlong size;
+  // number of times the agent thread has found the balloon moved
+  // by a GC once its pages were released
+  jint moves;
+  // the raw address the balloon was at when its pages were last
+  // released or NULL if they have not been released yet. this lags
+  // rawRef when a GC has moved the balloon and the pages at the new
+  // address are still waiting to be released by remap_balloons
+  void *releasedRef;
 } BalloonType;
 
 // deque listing all registered balloons
 // used as a stack
 static std::deque<BalloonType> balloons;
 
+// the number of registered balloons. updated under the agent
+// lock but read without it
+static std::atomic<long> balloon_count(0);
+
+// count of GCs which ended. endGC only bumps this so that the GC
+// pause does not grow with the number of balloons. remap_balloons
+// checks where the balloons are whenever it has moved on
+static std::atomic<long> balloon_epoch(0);
+
+// the balloon epoch as of the last time remap_balloons checked
+// where the balloons are. only used by remap_balloons
+static long checked_epoch = 0;
+
+// set when a balloon has been registered and its pages still need
+// to be released by remap_balloons
+static std::atomic<bool> remap_pending(false);
+
+// how many balloons an emergency deflation releases. zero, disabling
+// emergency deflation, until the balloon controller sets it
+static std::atomic<long> emergency_balloons(0);
+
+// the number of emergency deflations and the balloons they released
+static std::atomic<long> emergency_count(0);
+static std::atomic<long> emergency_released(0);
+
+// PSI trigger files polled by waitPressure, at most one for the
+// container and one for the host
+#define MAX_PRESSURE_TRIGGERS 2
+static struct pollfd pressure_triggers[MAX_PRESSURE_TRIGGERS];
+static int pressure_trigger_count = 0;
+
+static void remap_balloons(JNIEnv *env);
+
 // JVMTI state used by registered callbacks
 static JNIEnv *jniEnv = NULL;
 static JavaVM *jvm = NULL;
 static jvmtiEnv *agentJvmti = NULL;
 
-// file descriptor for a file holding a single
-// all-zeros mapped file page
-static int zero_fd = -1;
+// strategy used to release and restore balloon pages
+static const BalloonMapStrategy *map_strategy = NULL;
 
 // the page size for this host
 static long page_size = 0;
 
+// the granularity at which balloon ranges are released and restored.
+// either page_size or the huge page size
+static long balloon_align = 0;
+
 /*
  * Details of class com.redhat.openjdk.balloon.MemoryManager
  */
@@ -155,46 +445,318 @@ enterAgentMonitor(jvmtiEnv *jvmti)
 }
 
 /*
- * wait on agent monitor notify
- *
- * should not be called withotu first calling
- * enterAgentMonitor to obtain the agent lock
+ * Exit agent monitor protected section
  */
 static void
-waitAgentMonitor(jvmtiEnv *jvmti)
+exitAgentMonitor(jvmtiEnv *jvmti)
 {
   jvmtiError err;
-  err = jvmti->RawMonitorWait(agent_lock, 0);
-  check_jvmti_error(jvmti, err, "raw monitor wait");
+  err = jvmti->RawMonitorExit(agent_lock);
+  check_jvmti_error(jvmti, err, "raw monitor exit");
 }
 
 /*
- * notify agent monitor
- *
- * should not be called withotu first calling
- * enterAgentMonitor to obtain the agent lock
+ * Enter balloon monitor protected section
  */
 static void
-notifyAgentMonitor(jvmtiEnv *jvmti)
+enterBalloonMonitor(jvmtiEnv *jvmti)
 {
   jvmtiError err;
-  err = jvmti->RawMonitorNotify(agent_lock);
-  check_jvmti_error(jvmti, err, "raw monitor notify");
+  err = jvmti->RawMonitorEnter(balloon_lock);
+  check_jvmti_error(jvmti, err, "raw monitor enter");
 }
 
 /*
- * Exit agent monitor protected section
+ * Exit balloon monitor protected section
  */
 static void
-exitAgentMonitor(jvmtiEnv *jvmti)
+exitBalloonMonitor(jvmtiEnv *jvmti)
 {
   jvmtiError err;
-  err = jvmti->RawMonitorExit(agent_lock);
+  err = jvmti->RawMonitorExit(balloon_lock);
   check_jvmti_error(jvmti, err, "raw monitor exit");
 }
 
 /*
- * utility to create a new jthread
+ * wake the agent jthread if it is blocked waiting for events
+ *
+ * safe to call from endGC as it neither locks nor allocates
+ */
+static void
+wakeAgent()
+{
+  if (agent_sleeping.exchange(0) != 0) {
+    uint64_t one = 1;
+    // n.b. this can only fail if the eventfd counter overflows
+    // in which case the agent jthread is already runnable
+    ssize_t res = write(wakeup_fd, &one, sizeof(one));
+    (void)res;
+  }
+}
+
+/*
+ * block the agent jthread until an event has been posted
+ *
+ * the sleeping flag is set before checking for events and
+ * producers post events before clearing it so either this
+ * check sees the event or the producer sees the flag and
+ * writes the eventfd
+ */
+static void
+waitAgent()
+{
+  agent_sleeping.store(1);
+  if (pending_events.load() != 0 ||
+      gcRing.tail.load() != gcRing.head.load(std::memory_order_relaxed) ||
+      gcOverflow.version.load() != overflow_version) {
+    agent_sleeping.store(0);
+    return;
+  }
+  uint64_t count;
+  if (read(wakeup_fd, &count, sizeof(count)) < 0 && errno != EINTR) {
+    printf("balloon agent failed to wait for events (errno=%d)\n", errno);
+  }
+}
+
+/*
+ * read a perf data counter returning -1 if it is not available
+ */
+static inline jlong
+readCounter(volatile jlong *counter)
+{
+  return (counter != NULL ? *counter : -1);
+}
+
+/*
+ * look up the perf data counters sampled at each GC. the young
+ * and old collectors and generations are numbered 0 and 1 by every
+ * HotSpot GC which publishes them
+ */
+static void
+initCounters()
+{
+  if (perf_init() != 0) {
+    stdout_message("GC samples will not include heap sizes\n");
+    return;
+  }
+  gcCounters.young_count = perf_counter("sun.gc.collector.0.invocations");
+  gcCounters.old_count = perf_counter("sun.gc.collector.1.invocations");
+  gcCounters.eden_used = perf_counter("sun.gc.generation.0.space.0.used");
+  gcCounters.eden_capacity = perf_counter("sun.gc.generation.0.space.0.capacity");
+  gcCounters.old_used = perf_counter("sun.gc.generation.1.space.0.used");
+  gcCounters.old_capacity = perf_counter("sun.gc.generation.1.space.0.capacity");
+  gcCounters.s0_used = perf_counter("sun.gc.generation.0.space.1.used");
+  gcCounters.s0_capacity = perf_counter("sun.gc.generation.0.space.1.capacity");
+  gcCounters.s1_used = perf_counter("sun.gc.generation.0.space.2.used");
+  gcCounters.s1_capacity = perf_counter("sun.gc.generation.0.space.2.capacity");
+  gcCounters.young_max = perf_counter("sun.gc.generation.0.maxCapacity");
+  // ZGC has no young collector and Shenandoah no young generation
+  single_generation = (gcCounters.young_count == NULL || gcCounters.eden_used == NULL);
+  last_old_count = readCounter(gcCounters.old_count);
+}
+
+/*
+ * sample the eden, survivor and old sizes. the survivor used size is
+ * that of both spaces since the one which is not in use is empty
+ * outside a GC. its capacity is that of the space in use, or of s0
+ * when both are empty. the capacity of both spaces is kept as well
+ * since parallel scavenge sizes the eden max from it
+ *
+ * called from the GC callbacks so must not lock or allocate
+ */
+static void
+sampleHeap(HeapSample &sample)
+{
+  sample.eden_used = readCounter(gcCounters.eden_used);
+  sample.eden_capacity = readCounter(gcCounters.eden_capacity);
+  sample.old_used = readCounter(gcCounters.old_used);
+  sample.old_capacity = readCounter(gcCounters.old_capacity);
+  jlong s0_used = readCounter(gcCounters.s0_used);
+  jlong s1_used = readCounter(gcCounters.s1_used);
+  if (s0_used < 0 || s1_used < 0) {
+    sample.survivor_used = -1;
+    sample.survivor_capacity = -1;
+    sample.survivor_spaces = -1;
+  } else {
+    sample.survivor_used = s0_used + s1_used;
+    jlong s0_capacity = readCounter(gcCounters.s0_capacity);
+    jlong s1_capacity = readCounter(gcCounters.s1_capacity);
+    sample.survivor_capacity = (s1_used > 0 ? s1_capacity : s0_capacity);
+    sample.survivor_spaces = s0_capacity + s1_capacity;
+  }
+}
+
+/*
+ * read the monotonic clock in nanoseconds. this is the clock used
+ * by System.nanoTime
+ */
+static inline jlong
+monotonicNanos()
+{
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return (jlong)ts.tv_sec * 1000000000L + ts.tv_nsec;
+}
+
+/*
+ * compute the pause histogram bucket for a pause length in usecs
+ */
+static inline int
+pauseBucket(jlong usecs)
+{
+  if (usecs < PAUSE_SUB_BUCKETS) {
+    return (usecs < 0 ? 0 : (int)usecs);
+  }
+  int exponent = 63 - __builtin_clzll((unsigned long long)usecs);
+  if (exponent > PAUSE_MAX_EXPONENT) {
+    return PAUSE_BUCKETS - 1;
+  }
+  int sub = (int)((usecs >> (exponent - PAUSE_SUB_BITS)) & (PAUSE_SUB_BUCKETS - 1));
+  return (exponent - PAUSE_SUB_BITS + 1) * PAUSE_SUB_BUCKETS + sub;
+}
+
+/*
+ * record the pause for the GC which ended at end. the pause is old
+ * if the old collector count has changed since the last GC. without
+ * perf data the count is not known and all pauses count as young
+ *
+ * called from endGC so must not lock or allocate
+ */
+static void
+recordPause(jlong end)
+{
+  jlong start = gc_start_nanos;
+  if (start == 0) {
+    // GC started before the start callback was enabled
+    return;
+  }
+  gc_start_nanos = 0;
+  jlong old_count = readCounter(gcCounters.old_count);
+  bool old = single_generation || (old_count >= 0 && old_count != last_old_count);
+  last_old_count = old_count;
+  PauseSeries &series = pauseSeries[old ? PAUSE_OLD : PAUSE_YOUNG];
+  jlong usecs = (end - start) / 1000;
+  std::atomic<jlong> &count = series.counts[pauseBucket(usecs)];
+  // only the GC callbacks write counts so no need for an atomic add
+  count.store(count.load(std::memory_order_relaxed) + 1, std::memory_order_relaxed);
+  // the reader may reset max concurrently
+  jlong max = series.max.load(std::memory_order_relaxed);
+  while (usecs > max && !series.max.compare_exchange_weak(max, usecs)) {
+  }
+}
+
+/*
+ * fill in a GC end event record for the GC which ended at end
+ *
+ * called from endGC so must not lock or allocate
+ */
+static void
+fillGCEvent(GCEventRecord &record, jlong end)
+{
+  HeapSample after;
+  sampleHeap(after);
+  record.seq = gc_seq;
+  record.nanos = end;
+  record.young_count = readCounter(gcCounters.young_count);
+  record.old_count = readCounter(gcCounters.old_count);
+  record.eden_used = after.eden_used;
+  record.eden_capacity = after.eden_capacity;
+  record.old_used = after.old_used;
+  record.old_capacity = after.old_capacity;
+  if (gc_before_nanos != 0) {
+    record.start_nanos = gc_before_nanos;
+    record.eden_capacity_before = gc_before.eden_capacity;
+    record.survivor_used_before = gc_before.survivor_used;
+    record.survivor_capacity_before = gc_before.survivor_capacity;
+    record.survivor_spaces_before = gc_before.survivor_spaces;
+    record.old_used_before = gc_before.old_used;
+    record.old_capacity_before = gc_before.old_capacity;
+  } else {
+    record.start_nanos = -1;
+    record.eden_capacity_before = -1;
+    record.survivor_used_before = -1;
+    record.survivor_capacity_before = -1;
+    record.survivor_spaces_before = -1;
+    record.old_used_before = -1;
+    record.old_capacity_before = -1;
+  }
+  record.survivor_used = after.survivor_used;
+  record.survivor_capacity = after.survivor_capacity;
+  record.survivor_spaces = after.survivor_spaces;
+  record.young_max = readCounter(gcCounters.young_max);
+}
+
+/*
+ * post a GC end event to the agent jthread
+ *
+ * called from endGC so must not lock or allocate
+ */
+static void
+postGCEnd(jlong end)
+{
+  unsigned long tail = gcRing.tail.load(std::memory_order_relaxed);
+  unsigned long head = gcRing.head.load(std::memory_order_acquire);
+  gc_seq++;
+  if (tail - head == GC_RING_SIZE) {
+    // keep the newest event in the overflow record. the agent
+    // jthread counts the ones it replaces as coalesced
+    unsigned long version = gcOverflow.version.load(std::memory_order_relaxed);
+    gcOverflow.version.store(version + 1, std::memory_order_relaxed);
+    std::atomic_thread_fence(std::memory_order_release);
+    fillGCEvent(gcOverflow.record, end);
+    gcOverflow.version.store(version + 2, std::memory_order_release);
+  } else {
+    fillGCEvent(gcRing.slots[tail & GC_RING_MASK], end);
+    gcRing.tail.store(tail + 1, std::memory_order_release);
+  }
+  gc_before_nanos = 0;
+  wakeAgent();
+}
+
+/*
+ * copy the overflow record if endGC has replaced it since the agent
+ * jthread last copied it. only called by the agent jthread.
+ *
+ * returns true if a new event was copied into overflow_record
+ */
+static bool
+takeOverflow()
+{
+  unsigned long version = gcOverflow.version.load(std::memory_order_acquire);
+  if (version == overflow_version) {
+    return false;
+  }
+  for (;;) {
+    if ((version & 1) == 0) {
+      memcpy(&overflow_record, &gcOverflow.record, sizeof(overflow_record));
+      std::atomic_thread_fence(std::memory_order_acquire);
+      unsigned long check = gcOverflow.version.load(std::memory_order_relaxed);
+      if (check == version) {
+        break;
+      }
+      version = check;
+    } else {
+      version = gcOverflow.version.load(std::memory_order_acquire);
+    }
+  }
+  overflow_version = version;
+  return true;
+}
+
+/*
+ * post a lifecycle event to the agent jthread
+ */
+static void
+postEvent(int event)
+{
+  pending_events.fetch_or(event);
+  wakeAgent();
+}
+
+/*
+ * utility to create a new jthread. it is named so that tools can find
+ * it by id through ThreadMXBean since JVMTI agent threads are left out
+ * of the thread listings
  */
 static jthread
 alloc_thread(JNIEnv *env)
@@ -207,11 +769,11 @@ alloc_thread(JNIEnv *env)
   if ( thrClass == NULL ) {
     printf("Cannot find Thread class\n");
   }
-  cid = env->GetMethodID(thrClass, "<init>", "()V");
+  cid = env->GetMethodID(thrClass, "<init>", "(Ljava/lang/String;)V");
   if ( cid == NULL ) {
     printf("Cannot find Thread constructor method\n");
   }
-  res = env->NewObject(thrClass, cid);
+  res = env->NewObject(thrClass, cid, env->NewStringUTF(AGENT_THREAD_NAME));
   if ( res == NULL ) {
     printf("Cannot create new Thread object\n");
   }
@@ -227,33 +789,59 @@ agentThread(jvmtiEnv* jvmti, JNIEnv* jni, void *p)
 {
   stdout_message("GC worker started...\n");
   int inited = 0;
-  int skipped = 0;
+  long skipped = 0;
+  long delivered = 0;
+  jlong last_seq = 0;
 
   for (;;) {
     //printf("agentThread waiting for GCEvent...\n");
-    enterAgentMonitor(jvmti);
-    waitAgentMonitor(jvmti);
-    GCEvent event = gcNotifyQueue.front();
-    gcNotifyQueue.pop();
-    // skip repeated End events and ditch for an Init or Terminate
-    while (event == GCEvent::End && !gcNotifyQueue.empty()) {
-      skipped += inited; // only count misses after init has happened
-      GCEvent event = gcNotifyQueue.front();
-      stdout_message("GC worker pop...\n");
-      gcNotifyQueue.pop();
-    }
-    exitAgentMonitor(jvmti);
-    if(event == GCEvent::Init) {
+    waitAgent();
+    int events = pending_events.exchange(0);
+    if ((events & EVENT_INIT) != 0) {
       stdout_message("Calling MemoryManager.init\n");
-      inited = jni->CallStaticBooleanMethod(theMemoryManager.MemoryManagerClass, theMemoryManager.init, log_location, dump_all);
+      jstring options = jni->NewStringUTF(agent_options != NULL ? agent_options : "");
+      inited = jni->CallStaticBooleanMethod(theMemoryManager.MemoryManagerClass, theMemoryManager.init, log_location.i, dump_all.z, options);
       failed = !inited;
-    } else if (event == GCEvent::End  && inited) {
+    }
+    // coalesce all the end events in the ring and the overflow
+    // record. any which arrived before init completed are kept so
+    // the first GCs are not lost
+    unsigned long head = gcRing.head.load(std::memory_order_relaxed);
+    unsigned long tail = gcRing.tail.load(std::memory_order_acquire);
+    if (inited && takeOverflow()) {
+      overflow_pending = true;
+    }
+    if ((tail != head || overflow_pending) && inited) {
+      overflow_first = (overflow_pending && tail != head &&
+                        overflow_record.seq < gcRing.slots[head & GC_RING_MASK].seq);
+      GCEventRecord &latest = ((overflow_pending && !overflow_first) ?
+                               overflow_record : gcRing.slots[(tail - 1) & GC_RING_MASK]);
+      // events replaced in the overflow record never reach the
+      // ring so count the coalesced ones from the sequence numbers
+      long coalesced = (long)(latest.seq - last_seq) - 1;
+      last_seq = latest.seq;
+      skipped += coalesced;
+      delivered++;
+      if (is_verbose()) {
+        jlong now = monotonicNanos();
+        stdout_message("GC end %ld coalesced %ld delivered after %ld usecs\n",
+                       (long)latest.seq, coalesced, (long)((now - latest.nanos) / 1000));
+      }
       interrupted = JNI_FALSE;
+      delivered_tail = tail;
+      delivered_overflow = overflow_pending;
+      overflow_pending = false;
+      // release the pages of any balloons the GCs moved
+      remap_balloons(jni);
       stdout_message("Calling MemoryManager.gcEnd()\n");
       jni->CallStaticVoidMethod(theMemoryManager.MemoryManagerClass, theMemoryManager.gcEnd);
-    } else if (event == GCEvent::Terminate  && inited) {
+      // hand back any samples gcEnd did not drain
+      delivered_overflow = false;
+      gcRing.head.store(tail, std::memory_order_release);
+    }
+    if ((events & EVENT_TERMINATE) != 0 && inited) {
       interrupted = JNI_FALSE;
-      stdout_message("Skipped %d end events\n", skipped);
+      stdout_message("Delivered %ld end events, coalesced %ld\n", delivered, skipped);
       stdout_message("Calling MemoryManager.terminate()\n");
       jni->CallStaticVoidMethod(theMemoryManager.MemoryManagerClass, theMemoryManager.terminate);
     }
@@ -264,190 +852,632 @@ agentThread(jvmtiEnv* jvmti, JNIEnv* jni, void *p)
 }
 
 /*
- * remap a balloon's array data area to a zero file backing
+ * a range of whole pages lying within the data area of one or
+ * more balloons
  */
-static void unmap_balloon(BalloonType balloon)
+typedef struct {
+  char *start;
+  size_t len;
+} BalloonRange;
+
+/*
+ * compute the range of whole balloon_align blocks in a balloon's array
+ * data area located at the supplied raw address. returns false if the
+ * data area does not contain a whole block.
+ */
+static bool balloon_range(BalloonType &balloon, void *rawRef, BalloonRange &range)
 {
-  long paddr = (long)(balloon.rawRef) + balloon.offset;
-  long rem = paddr % page_size;
-  int len = balloon.size - balloon.offset;
-  if (rem) {
-    paddr += (page_size - rem);
-    len += (int)(rem - page_size);
+  long start = (long)rawRef + balloon.offset;
+  long end = (long)rawRef + balloon.size;
+  // round the start up and the end down to a block boundary
+  start = (start + balloon_align - 1) & ~(balloon_align - 1);
+  end = end & ~(balloon_align - 1);
+  if (end <= start) {
+    return false;
   }
-  len = len / page_size;
-  char *paddr2 =  (char *)paddr;
-  int prot = PROT_READ|PROT_WRITE;
-  int flags = MAP_SHARED|MAP_FIXED;
-  stdout_message("start zero file map at %p\n", paddr2);
-  for (int i = 0; i < len; i++) {
-    int ok = munmap(paddr2, page_size);
-    if (ok != 0) {
-      perror("munmap");
-      fatal_error("failed to zero unmap %p 0x%x (0x%x) errno=%d\n", paddr2, page_size, i, errno);
-    }
-    char *res = (char *)mmap(paddr2, page_size, prot, flags, zero_fd, 0);
-    if (res != paddr2) {
-      if (res == MAP_FAILED) {
-        perror("mmap");
-        fatal_error("failed to zero map %p 0x%x (0x%x) errno=%d\n", paddr2, page_size, i, errno);
-      } else {
-        fatal_error("bad zero map %p ==> %p\n", paddr2, res);
+  range.start = (char *)start;
+  range.len = (size_t)(end - start);
+  return true;
+}
+
+/*
+ * order ranges by start address
+ */
+static bool range_before(const BalloonRange &r1, const BalloonRange &r2)
+{
+  return r1.start < r2.start;
+}
+
+/*
+ * release or restore a list of ranges merging any which overlap or
+ * abut so that each contiguous region is handled with a single call.
+ * the list is sorted in place.
+ *
+ * n.b. the array header of each balloon lies on a page which is
+ * excluded from its range so ranges for two neighbouring balloons
+ * never abut. merging mostly helps when a balloon moves to a
+ * location which overlaps its own or another balloon's old range.
+ */
+static void remap_ranges(std::vector<BalloonRange> &ranges, void (*remap)(char *, size_t))
+{
+  if (ranges.empty()) {
+    return;
+  }
+  std::sort(ranges.begin(), ranges.end(), range_before);
+  char *start = ranges[0].start;
+  char *end = start + ranges[0].len;
+  for (size_t i = 1; i < ranges.size(); i++) {
+    BalloonRange &range = ranges[i];
+    if (range.start <= end) {
+      if (range.start + range.len > end) {
+        end = range.start + range.len;
       }
+    } else {
+      remap(start, end - start);
+      start = range.start;
+      end = range.start + range.len;
     }
-    // stdout_message("zero file mapped [%p, %p)\n", paddr2, paddr2 + page_size);
-    paddr2 += page_size;
   }
-  stdout_message("end zero file map at %p\n", paddr2);
-  stdout_message("zero mapped %x pages\n", len);
+  remap(start, end - start);
+}
+
+/*
+ * release a range using the map strategy and, if asked to, stop
+ * khugepaged from collapsing it back into huge pages
+ */
+static void release_range(char *start, size_t len)
+{
+  if (thp_mode == THP_MADVISE) {
+    madvise(start, len, MADV_NOHUGEPAGE);
+  }
+  map_strategy->release(start, len);
+}
+
+/*
+ * restore a range using the map strategy and, if asked to, make it
+ * eligible for huge pages again
+ */
+static void restore_range(char *start, size_t len)
+{
+  map_strategy->restore(start, len);
+  if (thp_mode == THP_MADVISE) {
+    madvise(start, len, MADV_HUGEPAGE);
+  }
+}
+
+/*
+ * make the range where a balloon's pages were last released usable
+ * as normal heap again
+ */
+static void map_balloon(BalloonType &balloon)
+{
+  BalloonRange range;
+  if (balloon.releasedRef != NULL && balloon_range(balloon, balloon.releasedRef, range)) {
+    restore_range(range.start, range.len);
+  }
+  balloon.releasedRef = NULL;
 }
 
+// the maximum number of balloons pinned at once by remap_balloons.
+// with some collectors pinning an array holds off any GC so batches
+// are kept small
+#define REMAP_BATCH 64
+
+// balloons found by remap_balloons to need their pages releasing, the
+// pinned data of the current batch and the ranges restored and
+// released. static so they stop allocating once large enough
+static std::vector<BalloonType *> remap_list;
+static std::vector<void *> remap_pins;
+static std::vector<BalloonRange> restore_ranges;
+static std::vector<BalloonRange> release_ranges;
+
+// set once a balloon has been found too small to release anything so
+// the warning is only given once
+static bool warned_no_block = false;
+
 /*
- * remap a balloons array data area to anonymous heap data
+ * find which balloons have moved since any GC ended after the last
+ * check and release the pages of those and of newly registered
+ * balloons, restoring any range a balloon has moved away from. endGC
+ * leaves all of this to the agent thread so that GC pauses do not
+ * grow with the number of balloons or the number a full GC moves.
+ *
+ * the addresses are read without pinning the balloons so one read
+ * while a GC is moving them may be stale. that GC's endGC advances
+ * the epoch so the balloons get checked again. each batch of balloons
+ * is pinned with GetPrimitiveArrayCritical while their pages are
+ * released so that a GC cannot move them and reuse the range under
+ * our feet.
+ *
+ * n.b. balloons are referenced outside the agent lock so the balloon
+ * lock is held throughout to stop them being unregistered
  */
-static void map_balloon(BalloonType balloon)
+static void remap_balloons(JNIEnv *env)
 {
-  long paddr = (long)(balloon.rawRef) + balloon.offset;
-  long page_size = sysconf(_SC_PAGESIZE);
-  long rem = paddr % page_size;
-  int len = balloon.size - balloon.offset;
-  if (rem) {
-    paddr += (page_size - rem);
-    len += (int)(rem - page_size);
+  // read the epoch before any address so a GC which ends during the
+  // check gets noticed next time
+  long epoch = balloon_epoch.load(std::memory_order_acquire);
+  bool registered = remap_pending.exchange(false);
+  if (epoch == checked_epoch && !registered) {
+    return;
   }
-  len = len / page_size;
-  char *paddr2 = (char *)paddr;
-  int prot = PROT_READ|PROT_WRITE;
-  int flags = MAP_PRIVATE|MAP_ANONYMOUS|MAP_FIXED;
-  stdout_message("start anon file map at %p\n", paddr2);
-  for (int i = 0; i < len; i++) {
-    int ok = munmap(paddr2, page_size);
-    if (ok != 0) {
-      perror("munmap");
-      fatal_error("failed to zero unmap %p 0x%x (0x%x) errno=%d\n", paddr2, page_size, i, errno);
+  checked_epoch = epoch;
+  // stop an emergency deflation removing balloons in remap_list
+  enterBalloonMonitor(agentJvmti);
+  // restore all the old ranges before releasing any new ones since a
+  // balloon may have moved into space vacated by another. restore is
+  // at most a hint since a released range is usable as it is so
+  // there is no need to pin anything to do this
+  remap_list.clear();
+  restore_ranges.clear();
+  enterAgentMonitor(agentJvmti);
+  for (std::deque<BalloonType>::iterator it = balloons.begin(); it != balloons.end(); it++) {
+    BalloonType &balloon = *it;
+    void *rawRef = *(void **)balloon.globalRef;
+    if (rawRef != balloon.rawRef) {
+      stdout_message("balloon moved from %p to %p\n", balloon.rawRef, rawRef);
+      if (balloon.releasedRef != NULL) {
+        balloon.moves++;
+      }
+      balloon.rawRef = rawRef;
     }
-    char *res = (char *)mmap(paddr2, page_size, prot, flags, -1, 0);
-    if (res != paddr2) {
-      if (res == MAP_FAILED) {
-        perror("mmap");
-        fatal_error("failed to anon map %p 0x%x (0x%x) errno=%d\n", paddr2, page_size, i, errno);
-      } else {
-        fatal_error("bad anon map %p ==> %p\n", paddr2, res);
+    if (do_balloon_mapping && balloon.releasedRef != balloon.rawRef) {
+      BalloonRange range;
+      if (balloon.releasedRef != NULL && balloon_range(balloon, balloon.releasedRef, range)) {
+        restore_ranges.push_back(range);
       }
+      balloon.releasedRef = NULL;
+      remap_list.push_back(&balloon);
     }
-    // stdout_message("anon mapped [%p, %p)\n", paddr2, paddr2 + page_size);
-    paddr2 += page_size;
   }
-  stdout_message("end anon file map at %p\n", paddr2);
-  stdout_message("anon mapped %x pages \n", len);
+  remap_ranges(restore_ranges, restore_range);
+  exitAgentMonitor(agentJvmti);
+
+  if (remap_pins.size() < REMAP_BATCH) {
+    remap_pins.resize(REMAP_BATCH);
+  }
+  for (size_t first = 0; first < remap_list.size(); first += REMAP_BATCH) {
+    size_t count = remap_list.size() - first;
+    if (count > REMAP_BATCH) {
+      count = REMAP_BATCH;
+    }
+    // pin before taking the agent lock. pinning may wait for a GC
+    // to finish
+    for (size_t i = 0; i < count; i++) {
+      remap_pins[i] = env->GetPrimitiveArrayCritical(remap_list[first + i]->globalRef, 0);
+    }
+    release_ranges.clear();
+    enterAgentMonitor(agentJvmti);
+    for (size_t i = 0; i < count; i++) {
+      BalloonType &balloon = *remap_list[first + i];
+      BalloonRange range;
+      // pinned so this cannot change until the batch is released
+      balloon.rawRef = *(void **)balloon.globalRef;
+      if (balloon_range(balloon, balloon.rawRef, range)) {
+        release_ranges.push_back(range);
+      } else if (!warned_no_block) {
+        printf("balloon of %ld bytes holds no whole block of %ld bytes so its pages cannot be released\n",
+               (long)balloon.size, balloon_align);
+        warned_no_block = true;
+      }
+      balloon.releasedRef = balloon.rawRef;
+    }
+    remap_ranges(release_ranges, release_range);
+    exitAgentMonitor(agentJvmti);
+    for (size_t i = count; i > 0; i--) {
+      env->ReleasePrimitiveArrayCritical(remap_list[first + i - 1]->globalRef, remap_pins[i - 1], JNI_ABORT);
+    }
+  }
+  exitBalloonMonitor(agentJvmti);
+  stdout_message("Released %ld balloons\n", (long)remap_list.size());
+}
+
+/*
+ * remove up to count of the most recently registered balloons,
+ * restoring their pages and appending their global refs to refs so
+ * the caller can delete them once it has released the agent lock.
+ *
+ * n.b. must be called with the agent lock held
+ */
+static void pop_balloons(long count, std::vector<jbyteArray> &refs)
+{
+  long popped = 0;
+  for (; popped < count && !balloons.empty(); popped++) {
+    BalloonType &balloon = balloons.front();
+    if (do_balloon_mapping) {
+      map_balloon(balloon);
+    }
+    refs.push_back(balloon.globalRef);
+    balloons.pop_front();
+  }
+  balloon_count -= popped;
+}
+
+/*
+ * release emergency_balloons balloons straight away without going
+ * through the agent thread. the arrays become garbage as soon as their
+ * global refs are deleted so the next GC can hand the space to the
+ * application. may be called from any thread with a JNIEnv.
+ *
+ * returns the number of balloons released
+ */
+static long emergency_deflate(JNIEnv *env, const char *reason)
+{
+  long count = emergency_balloons.load();
+  if (count <= 0 || balloon_count.load() == 0) {
+    return 0;
+  }
+  std::vector<jbyteArray> refs;
+  refs.reserve(count);
+  enterBalloonMonitor(agentJvmti);
+  enterAgentMonitor(agentJvmti);
+  pop_balloons(count, refs);
+  exitAgentMonitor(agentJvmti);
+  exitBalloonMonitor(agentJvmti);
+  for (size_t i = 0; i < refs.size(); i++) {
+    env->DeleteGlobalRef(refs[i]);
+  }
+  if (!refs.empty()) {
+    emergency_count++;
+    emergency_released += (long)refs.size();
+  }
+  stdout_message("Emergency deflation on %s released %ld balloons\n", reason, (long)refs.size());
+  return (long)refs.size();
 }
 
 /*
- * native method implementation for BalloonManager to
- * register a balloon
+ * native method implementation for BalloonManager to register
+ * the first count balloons in arrays in one go. the arrays must all
+ * have the same length. the balloons are added under a single
+ * acquisition of the agent lock so that remap_balloons sees either
+ * none or all of them.
  *
- * returns true if a GC occurred during registration in
- * which case the balloon is not registered
+ * returns true if a GC occurred since the interrupted flag was last
+ * cleared in which case none of the balloons are registered
  */
 
 JNIEXPORT jboolean JNICALL
-Java_com_redhat_openjdk_balloon_BalloonManager_registerBalloon(JNIEnv *env, jclass unused, jbyteArray array)
-{
-  BalloonType balloon;
-  balloon.globalRef = (jbyteArray)env->NewGlobalRef(array);
-  agentJvmti->GetObjectSize(balloon.globalRef, &balloon.size);
-  // fetch the raw ref and compute the offset while we have the critical lock
-  void *rawarray = env->GetPrimitiveArrayCritical(balloon.globalRef, 0);
-  balloon.rawRef = *(void**)balloon.globalRef;
-  balloon.offset = ((char *)rawarray) - ((char *)balloon.rawRef);
-  env->ReleasePrimitiveArrayCritical(balloon.globalRef, rawarray, 0);
+Java_com_redhat_openjdk_balloon_BalloonManager_registerBalloons(JNIEnv *env, jclass unused, jobjectArray arrays, jint count)
+{
+  if (count <= 0) {
+    return JNI_FALSE;
+  }
+  std::vector<BalloonType> batch(count);
+  for (jint i = 0; i < count; i++) {
+    jobject array = env->GetObjectArrayElement(arrays, i);
+    batch[i].globalRef = (jbyteArray)env->NewGlobalRef(array);
+    env->DeleteLocalRef(array);
+    batch[i].moves = 0;
+    batch[i].releasedRef = NULL;
+  }
+  // the arrays all have the same length so their size and the offset
+  // of their data only need to be computed once. fetch the raw ref and
+  // compute the offset while we have the critical lock
+  jlong size = 0;
+  agentJvmti->GetObjectSize(batch[0].globalRef, &size);
+  void *rawarray = env->GetPrimitiveArrayCritical(batch[0].globalRef, 0);
+  int offset = ((char *)rawarray) - *(char **)batch[0].globalRef;
+  env->ReleasePrimitiveArrayCritical(batch[0].globalRef, rawarray, 0);
   //
   enterAgentMonitor(agentJvmti);
   jboolean result = interrupted;
-  if (!interrupted) {
-    if (do_balloon_mapping) {
-      // refetch the raw ref now we have the agent lock
-      // it might have changed after we released the critical lock
+  if (!result) {
+    for (jint i = 0; i < count; i++) {
+      BalloonType &balloon = batch[i];
+      balloon.size = size;
+      balloon.offset = offset;
+      // a GC may move the arrays at any point but remap_balloons
+      // checks where they are after every GC
       balloon.rawRef = *(void**)balloon.globalRef;
+      balloons.push_front(balloon);
     }
-    balloons.push_front(balloon);
-    if (do_balloon_mapping) {
-      unmap_balloon(balloon);
-    }
+    balloon_count += count;
   }
   exitAgentMonitor(agentJvmti);
 
-  stdout_message("Allocated(%p,%p)=%ld%s\n", balloon.globalRef, balloon.rawRef, balloon.size, (result ? " interrupted!" : " no gc"));
+  if (result) {
+    for (jint i = 0; i < count; i++) {
+      env->DeleteGlobalRef(batch[i].globalRef);
+    }
+  } else {
+    // release the new balloons' pages with them pinned
+    remap_pending = true;
+    remap_balloons(env);
+  }
+  stdout_message("Allocated %d balloons of %ld bytes%s\n", count, size, (result ? " interrupted!" : " no gc"));
   return result;
 }
 
 /*
- * native method implementation for BalloonManager to
- * unregister a balloon
+ * native method implementation for BalloonManager to unregister
+ * the count most recently registered balloons in one go. balloons
+ * are held in a deque used as a stack so these are at the front.
  *
- * returns true if a GC occurred during registration in
- * which case the balloon is not unregistered
+ * returns true if a GC occurred since the interrupted flag was last
+ * cleared in which case none of the balloons are unregistered
  */
 
-JNIEXPORT jboolean JNICALL
-Java_com_redhat_openjdk_balloon_BalloonManager_unregisterBalloon(JNIEnv *env, jclass unused, jbyteArray array);
-jboolean unregister_balloon(JNIEnv *env, jbyteArray array)
+JNIEXPORT jint JNICALL
+Java_com_redhat_openjdk_balloon_BalloonManager_unregisterBalloons(JNIEnv *env, jclass unused, jint count)
 {
-  // should always be true
-  if(balloons.size() > 0) {
-    // pop the front balloon
-    enterAgentMonitor(agentJvmti);
-    jboolean result = interrupted;
-    BalloonType balloon = balloons.front();
-    if (!interrupted) {
-      balloons.pop_front();
-      if (do_balloon_mapping) {
-        map_balloon(balloon);
+  if (count <= 0) {
+    return 0;
+  }
+  std::vector<jbyteArray> refs;
+  refs.reserve(count);
+  // stop remap_balloons seeing the balloons disappear under it
+  enterBalloonMonitor(agentJvmti);
+  enterAgentMonitor(agentJvmti);
+  jboolean result = interrupted;
+  if (!result) {
+    pop_balloons(count, refs);
+  }
+  exitAgentMonitor(agentJvmti);
+  exitBalloonMonitor(agentJvmti);
+  if (result) {
+    // the balloons are still registered so their refs must stay live
+    stdout_message("Pop %d balloons interrupted!\n", count);
+    return -1;
+  }
+  // the arrays only become garbage once the refs are deleted so this
+  // is safe outside the agent lock
+  for (size_t i = 0; i < refs.size(); i++) {
+    env->DeleteGlobalRef(refs[i]);
+  }
+  stdout_message("Popped %ld balloons\n", (long)refs.size());
+  return (jint)refs.size();
+}
+
+/*
+ * native method implementation for BalloonManager to find how many
+ * balloons are registered. the native global refs are what keep the
+ * balloons alive so this is the authoritative count.
+ */
+
+JNIEXPORT jint JNICALL
+Java_com_redhat_openjdk_balloon_BalloonManager_countBalloons(JNIEnv *env, jclass unused)
+{
+  return (jint)balloon_count.load();
+}
+
+/*
+ * native method implementation for BalloonManager to set how many
+ * balloons an emergency deflation releases. zero disables it.
+ */
+
+JNIEXPORT void JNICALL
+Java_com_redhat_openjdk_balloon_BalloonManager_setEmergencyBalloons(JNIEnv *env, jclass unused, jint count)
+{
+  emergency_balloons = (count > 0 ? count : 0);
+}
+
+/*
+ * native method implementation for BalloonManager to perform an
+ * emergency deflation from the calling thread.
+ *
+ * returns the number of balloons released
+ */
+
+JNIEXPORT jint JNICALL
+Java_com_redhat_openjdk_balloon_BalloonManager_emergencyDeflate(JNIEnv *env, jclass unused)
+{
+  return (jint)emergency_deflate(env, "critical occupancy");
+}
+
+/*
+ * native method implementation for BalloonManager to read how many
+ * emergency deflations have happened and how many balloons they
+ * released, in that order
+ */
+
+JNIEXPORT void JNICALL
+Java_com_redhat_openjdk_balloon_BalloonManager_emergencyStats(JNIEnv *env, jclass unused, jlongArray stats)
+{
+  jlong values[2];
+  values[0] = emergency_count.load();
+  values[1] = emergency_released.load();
+  env->SetLongArrayRegion(stats, 0, 2, values);
+}
+
+// number of longs verifyBalloons reports for each balloon. the
+// layout must match BalloonController
+#define VERIFY_FIELDS 3
+
+// residency vector filled by mincore and the results gathered from
+// it. only used by verifyBalloons under the agent lock. results are
+// copied out after the lock is released since a JNI call may block
+// for a safepoint
+static std::vector<unsigned char> residency;
+static std::vector<jlong> verify_results;
+
+/*
+ * native method implementation for BalloonManager to check which
+ * pages of each balloon are actually resident. for each registered
+ * balloon in registration order, most recent first, the size in
+ * bytes of the whole pages in its data area, how many of those bytes
+ * are resident and how many times a GC has moved the balloon are
+ * copied into results. balloons which do not fit are skipped.
+ *
+ * returns the number of balloons reported or -1 if a GC occurred
+ * since the agent thread last cleared the interrupted flag, in which
+ * case the balloons may have moved under mincore and the results
+ * cannot be trusted
+ */
+
+JNIEXPORT jint JNICALL
+Java_com_redhat_openjdk_balloon_BalloonManager_verifyBalloons(JNIEnv *env, jclass unused, jlongArray results)
+{
+  jint capacity = env->GetArrayLength(results) / VERIFY_FIELDS;
+  jint count = 0;
+  enterAgentMonitor(agentJvmti);
+  verify_results.clear();
+  for (std::deque<BalloonType>::iterator it = balloons.begin(); it != balloons.end() && count < capacity; it++) {
+    BalloonType &balloon = *it;
+    BalloonRange range;
+    jlong resident = 0;
+    if (!balloon_range(balloon, balloon.rawRef, range)) {
+      range.len = 0;
+    } else {
+      size_t pages = range.len / page_size;
+      if (residency.size() < pages) {
+        residency.resize(pages);
+      }
+      if (mincore(range.start, range.len, residency.data()) != 0) {
+        stdout_message("mincore(%p, %ld) failed : %s\n", range.start, range.len, strerror(errno));
+        range.len = 0;
+      } else {
+        for (size_t i = 0; i < pages; i++) {
+          if (residency[i] & 1) {
+            resident += page_size;
+          }
+        }
       }
     }
-    exitAgentMonitor(agentJvmti);
-    jlong bsize = 0;
-    agentJvmti->GetObjectSize(balloon.globalRef, &bsize);
-    stdout_message("Popped balloon(%p,%p) = %ld\n", balloon.globalRef, balloon.rawRef, bsize);
-    env->DeleteGlobalRef(balloon.globalRef);
-    return result;
+    verify_results.push_back((jlong)range.len);
+    verify_results.push_back(resident);
+    verify_results.push_back(balloon.moves);
+    count++;
+  }
+  jboolean result = interrupted;
+  exitAgentMonitor(agentJvmti);
+  if (result) {
+    return -1;
   }
+  env->SetLongArrayRegion(results, 0, count * VERIFY_FIELDS, verify_results.data());
+  return count;
 }
 
 /*
- * JVMTI callback for VMInit event
+ * native method implementation for BalloonManager to register a PSI
+ * trigger on a pressure file such as a cgroup's memory.pressure. the
+ * trigger fires whenever some tasks stall on memory for more than
+ * stallUsecs in any windowUsecs window.
+ *
+ * returns true if the trigger was registered
  */
-static void JNICALL vmInit(jvmtiEnv *jvmti, JNIEnv* jni, jthread thread) {
-  stdout_message("vmInit\n");
 
-  // jvmti->SetVerboseFlag(jvmtiVerboseFlag::JVMTI_VERBOSE_JNI, 1);
-  // jvmti->SetVerboseFlag(jvmtiVerboseFlag::JVMTI_VERBOSE_GC, 1);
+JNIEXPORT jboolean JNICALL
+Java_com_redhat_openjdk_balloon_BalloonManager_addPressureTrigger(JNIEnv *env, jclass unused, jstring path, jlong stallUsecs, jlong windowUsecs)
+{
+  if (pressure_trigger_count == MAX_PRESSURE_TRIGGERS) {
+    return JNI_FALSE;
+  }
+  const char *name = env->GetStringUTFChars(path, NULL);
+  int fd = open(name, O_RDWR | O_NONBLOCK | O_CLOEXEC);
+  if (fd < 0) {
+    printf("balloon agent could not open %s (errno=%d)\n", name, errno);
+    env->ReleaseStringUTFChars(path, name);
+    return JNI_FALSE;
+  }
+  char trigger[64];
+  snprintf(trigger, sizeof(trigger), "some %ld %ld", (long)stallUsecs, (long)windowUsecs);
+  // the kernel expects the terminating NUL to be written too
+  if (write(fd, trigger, strlen(trigger) + 1) < 0) {
+    printf("balloon agent could not set PSI trigger <%s> on %s (errno=%d)\n", trigger, name, errno);
+    close(fd);
+    env->ReleaseStringUTFChars(path, name);
+    return JNI_FALSE;
+  }
+  stdout_message("PSI trigger <%s> set on %s\n", trigger, name);
+  env->ReleaseStringUTFChars(path, name);
+  pressure_triggers[pressure_trigger_count].fd = fd;
+  pressure_triggers[pressure_trigger_count].events = POLLPRI;
+  pressure_trigger_count++;
+  return JNI_TRUE;
+}
 
-  // set up page size and create zero page to map against
+/*
+ * native method implementation for BalloonManager to wait for one of
+ * the registered PSI triggers to fire. the calling thread is in native
+ * code while it waits so it does not hold up safepoints.
+ *
+ * returns the number of triggers which fired, 0 if none fired before
+ * timeoutMillis elapsed or -1 if the triggers can no longer be polled
+ */
 
+JNIEXPORT jint JNICALL
+Java_com_redhat_openjdk_balloon_BalloonManager_waitPressure(JNIEnv *env, jclass unused, jint timeoutMillis)
+{
+  if (pressure_trigger_count == 0) {
+    return -1;
+  }
+  int ready = poll(pressure_triggers, pressure_trigger_count, timeoutMillis);
+  if (ready < 0) {
+    return (errno == EINTR ? 0 : -1);
+  }
+  jint fired = 0;
+  for (int i = 0; i < pressure_trigger_count; i++) {
+    short revents = pressure_triggers[i].revents;
+    if ((revents & (POLLERR | POLLNVAL)) != 0) {
+      // the cgroup has gone away
+      return -1;
+    }
+    if ((revents & POLLPRI) != 0) {
+      fired++;
+    }
+  }
+  return fired;
+}
+
+/*
+ * native method implementation for BalloonManager to find the block
+ * size in which balloon data areas are released
+ */
+
+JNIEXPORT jlong JNICALL
+Java_com_redhat_openjdk_balloon_BalloonManager_balloonAlignment(JNIEnv *env, jclass unused)
+{
+  return (jlong)balloon_align;
+}
+
+/*
+ * read the transparent huge page size from sysfs
+ */
+static long huge_page_size()
+{
+  long size = 0;
+  FILE *file = fopen(HUGE_PAGE_SIZE_FILE, "r");
+  if (file != NULL) {
+    if (fscanf(file, "%ld", &size) != 1) {
+      size = 0;
+    }
+    fclose(file);
+  }
+  if (size <= page_size || (size & (size - 1)) != 0) {
+    stdout_message("cannot read huge page size from %s, assuming %ld\n", HUGE_PAGE_SIZE_FILE, DEFAULT_HUGE_PAGE_SIZE);
+    size = DEFAULT_HUGE_PAGE_SIZE;
+  }
+  return size;
+}
+
+/*
+ * set up page size and prepare the page release strategy
+ */
+static void init_balloon_mapping()
+{
   page_size = sysconf(_SC_PAGESIZE);
+  balloon_align = (thp_mode != THP_NONE ? huge_page_size() : page_size);
+  stdout_message("Releasing balloons in blocks of %ld bytes\n", balloon_align);
 
-  char name[200];
-  sprintf(name, "/tmp/balloon%x", getpid());
-  zero_fd = open(name, O_RDWR|O_CREAT|O_EXCL, S_IRUSR|S_IWUSR);
-  if (zero_fd < 0) {
-    perror("open");
-    fatal_error("failed to open zero map file %s\n", name);
-  } else {
-    unlink(name);
-    char b = '\0';
-    for (int i = 0; i < page_size; i++) {
-      int res = write(zero_fd, &b, 1);
-      if (res < 0) {
-        perror("write");
-        fatal_error("failed to write to zero map file %s\n", name);
-      } else if (res == 0) {
-        i--;
-      }
+  if (do_balloon_mapping) {
+    if (map_strategy->init() != 0) {
+      printf("failed to initialise balloon map strategy %s\n", map_strategy->name);
+      map_strategy = balloon_map_default_strategy();
     }
+    stdout_message("Using balloon map strategy %s\n", map_strategy->name);
   }
+}
 
-  stdout_message("Created, unlinked and filled backing page file: %s\n", name);
+/*
+ * JVMTI callback for VMInit event
+ */
+static void JNICALL vmInit(jvmtiEnv *jvmti, JNIEnv* jni, jthread thread) {
+  stdout_message("vmInit\n");
+
+  // jvmti->SetVerboseFlag(jvmtiVerboseFlag::JVMTI_VERBOSE_JNI, 1);
+  // jvmti->SetVerboseFlag(jvmtiVerboseFlag::JVMTI_VERBOSE_GC, 1);
+
+  init_balloon_mapping();
 
   // Load the MemoryManager class
   memset(&theMemoryManager, 0, sizeof(theMemoryManager));
@@ -458,25 +1488,27 @@ static void JNICALL vmInit(jvmtiEnv *jvmti, JNIEnv* jni, jthread thread) {
     jni->GetJavaVM(&jvm);
     jvm->DestroyJavaVM();
   }
+  // the agent thread needs a global ref as the local ref dies with this callback
+  theMemoryManager.MemoryManagerClass = (jclass)jni->NewGlobalRef(theMemoryManager.MemoryManagerClass);
   stdout_message("Loaded MemoryManagerClass: %p\n", theMemoryManager.MemoryManagerClass);
-  theMemoryManager.init = jni->GetStaticMethodID(theMemoryManager.MemoryManagerClass, "init", "(IZ)Z");
+  theMemoryManager.init = jni->GetStaticMethodID(theMemoryManager.MemoryManagerClass, "init", "(IZLjava/lang/String;)Z");
   stdout_message("Loaded init: %p\n", theMemoryManager.init);
   theMemoryManager.gcEnd = jni->GetStaticMethodID(theMemoryManager.MemoryManagerClass, "gcEnd", "()V");
   stdout_message("Loaded gcEnd: %p\n", theMemoryManager.gcEnd);
   theMemoryManager.terminate = jni->GetStaticMethodID(theMemoryManager.MemoryManagerClass, "terminate", "()V");
   stdout_message("Loaded terminate: %p\n", theMemoryManager.terminate);
+  initCounters();
   jvmtiError err = jvmti->RunAgentThread(alloc_thread(jni), &agentThread, NULL, JVMTI_THREAD_MAX_PRIORITY);
 
   // enable the gc callbacks
-  //jvmti->SetEventNotificationMode(JVMTI_ENABLE,
-  //                                JVMTI_EVENT_GARBAGE_COLLECTION_START, (jthread)NULL);
+  jvmti->SetEventNotificationMode(JVMTI_ENABLE,
+                                  JVMTI_EVENT_GARBAGE_COLLECTION_START, (jthread)NULL);
   jvmti->SetEventNotificationMode(JVMTI_ENABLE,
                                   JVMTI_EVENT_GARBAGE_COLLECTION_FINISH, (jthread)NULL);
+  jvmti->SetEventNotificationMode(JVMTI_ENABLE,
+                                  JVMTI_EVENT_RESOURCE_EXHAUSTED, (jthread)NULL);
 
-  enterAgentMonitor(jvmti);
-  gcNotifyQueue.push(GCEvent::Init);
-  notifyAgentMonitor(jvmti);
-  exitAgentMonitor(jvmti);
+  postEvent(EVENT_INIT);
   stdout_message("Notified GC monitor thread : init\n");
 
   stdout_message("vmInit done\n");
@@ -502,6 +1534,11 @@ ResourceExhausted(jvmtiEnv *jvmti_env,
                   const void* reserved,
                   const char* description) {
   stdout_message("ResourceExhausted(%d), %s\n", flags, description);
+  // the heap is full so hand back some balloons straight away rather
+  // than let the application die while we still hold them
+  if ((flags & JVMTI_RESOURCE_EXHAUSTED_JAVA_HEAP) != 0 && jni_env != NULL) {
+    emergency_deflate(jni_env, "heap exhausted");
+  }
 }
 
 /*
@@ -517,58 +1554,68 @@ vmDeath(jvmtiEnv *jvmti, JNIEnv *env)
   check_jvmti_error(jvmti, err, "force garbage collection");
 
   /* Disable events and dump the heap information */
-  enterAgentMonitor(jvmti); {
-  gcNotifyQueue.push(GCEvent::Terminate);
-  notifyAgentMonitor(jvmti);
-  } exitAgentMonitor(jvmti);
+  postEvent(EVENT_TERMINATE);
   stdout_message("vmDeath done\n");
 }
 
+/*
+ * JVMTI callback for startGC event
+ */
+static void JNICALL
+startGC(jvmtiEnv *jvmti) {
+  gc_start_nanos = monotonicNanos();
+  gc_before_nanos = gc_start_nanos;
+  sampleHeap(gc_before);
+}
+
 /*
  * JVMTI callback for endGC event
  */
 static void JNICALL
 endGC(jvmtiEnv *jvmti) {
+  jlong end = monotonicNanos();
   stdout_message("agent::endGC\n");
-  enterAgentMonitor(jvmti);
-  if (!failed) {
-    // interrupt any in flight allocation or deallocation
-    interrupted=JNI_TRUE;
-    // fix up any raw references
-    int i = 0;
-    for (std::deque<BalloonType>::iterator it = balloons.begin(); it != balloons.end(); it++) {
-      BalloonType &balloon = *it;
-      jbyteArray globalRef = balloon.globalRef;
-      void *oldRawRef = balloon.rawRef;
-      void *rawRef = *(void **)globalRef;
-      if (oldRawRef != rawRef) {
-        stdout_message("balloons[%d] moved from 0x%lx to 0x%lx\n", i, oldRawRef, rawRef);
-        if (do_balloon_mapping) {
-          map_balloon(balloon);
-        }
-        balloon.rawRef = rawRef;
-        if (do_balloon_mapping) {
-          unmap_balloon(balloon);
-        }
-      }
-      i++;
-    }
-    gcNotifyQueue.push(GCEvent::End);
-    notifyAgentMonitor(jvmti);
-    exitAgentMonitor(jvmti);
+  if (failed) {
+    return;
+  }
+  recordPause(end);
+  // interrupt any in flight allocation or deallocation
+  interrupted = JNI_TRUE;
+  // note that balloons may have moved. the agent thread finds
+  // which ones in remap_balloons
+  balloon_epoch.store(balloon_epoch.load(std::memory_order_relaxed) + 1, std::memory_order_release);
+  if (!java_driven) {
+    postGCEnd(end);
     stdout_message("Notified GC monitor thread : end\n");
-  } else {
-    exitAgentMonitor(jvmti);
   }
   stdout_message("agent::endGC done\n");  
 }
 
 
+/*
+ * check whether an option is one handled by the Java side of the agent
+ */
+static bool isJavaOption(char *curr, int len)
+{
+  char *eq = (char *)memchr(curr, '=', len);
+  int namelen = (eq != NULL ? eq - curr : len);
+  for (int i = 0; java_option_names[i] != NULL; i++) {
+    if ((int)strlen(java_option_names[i]) == namelen && strncmp(curr, java_option_names[i], namelen) == 0) {
+      return true;
+    }
+  }
+  return false;
+}
+
 /*
  * utility function to parse arguments provided with the the agentpath/lib java option
  */
 void processAgentOptions(char *options)
 {
+  if (options != NULL) {
+    // the options string is only valid for the duration of Agent_OnLoad
+    agent_options = strdup(options);
+  }
   char *curr = options;
   while (curr) {
     // successive options are separated by ","
@@ -582,6 +1629,18 @@ void processAgentOptions(char *options)
 
     if (strncmp(curr, "map", len) == 0) {
       do_balloon_mapping = 1;
+      map_strategy = balloon_map_default_strategy();
+    } else if (len > 4 && strncmp(curr, "map=", 4) == 0) {
+      map_strategy = balloon_map_strategy(curr + 4, len - 4);
+      if (map_strategy != NULL) {
+        do_balloon_mapping = 1;
+      } else {
+        printf("unknown balloon map strategy <%.*s>\n", len - 4, curr + 4);
+      }
+    } else if (strncmp(curr, "thp", len) == 0 || (len == 9 && strncmp(curr, "thp=align", 9) == 0)) {
+      thp_mode = THP_ALIGN;
+    } else if (len == 11 && strncmp(curr, "thp=madvise", 11) == 0) {
+      thp_mode = THP_MADVISE;
     } else if (strncmp(curr, "verbose", len) == 0) {
       set_verbose();
     } else if (strncmp(curr, "local", len) == 0) {
@@ -592,6 +1651,8 @@ void processAgentOptions(char *options)
       log_location.i = LOG_LOCATION_APPROOT;
     } else if (strncmp(curr, "all", len) == 0) {
       dump_all.z = 1;
+    } else if (isJavaOption(curr, len)) {
+      // leave it for MemoryManager.init
     } else {
       printf("unknown agent option <%*s>\n", len, curr);
     }
@@ -637,6 +1698,7 @@ Agent_OnLoad(JavaVM *vm, char *options, void *reserved) {
   (void)memset(&callbacks,0, sizeof(callbacks));
   callbacks.VMStart           = &vmStart;
   callbacks.VMInit            = &vmInit;
+  callbacks.GarbageCollectionStart = &startGC;
   callbacks.GarbageCollectionFinish = &endGC;
   callbacks.ResourceExhausted = &ResourceExhausted;
 
@@ -654,7 +1716,14 @@ Agent_OnLoad(JavaVM *vm, char *options, void *reserved) {
   //        JVMTI_EVENT_GARBAGE_COLLECTION_FINISH, (jthread)NULL);
 
   error = jvmti->CreateRawMonitor("agent data", &(agent_lock));
+  error = jvmti->CreateRawMonitor("balloon data", &(balloon_lock));
 
+  // the agent thread blocks on this until an event is posted
+  wakeup_fd = eventfd(0, EFD_CLOEXEC);
+  if (wakeup_fd < 0) {
+    printf("balloon agent could not create wakeup eventfd (errno=%d)\n", errno);
+    return JNI_ERR;
+  }
 
   if(options != NULL) {
 
@@ -674,9 +1743,155 @@ Agent_OnLoad(JavaVM *vm, char *options, void *reserved) {
 JNIEXPORT void JNICALL
 Agent_OnUnload(JavaVM *vm) {
   stdout_message("Agent_OnUnload(jvm=%p, agentJvmti=%p)\n", jvm, agentJvmti);
-  enterAgentMonitor(agentJvmti);
-  gcNotifyQueue.push(GCEvent::Terminate);
-  notifyAgentMonitor(agentJvmti);
-  exitAgentMonitor(agentJvmti);
+  postEvent(EVENT_TERMINATE);
   stdout_message("Agent_OnUnload done\n");
 }
+
+/*
+ * native method implementation for BalloonManager to attach the
+ * library when it has been loaded by the Java agent rather than as
+ * a JVMTI agent. sets up just enough JVMTI state to track balloons
+ * across GCs.
+ *
+ * returns true if balloons can be registered
+ */
+
+JNIEXPORT jboolean JNICALL
+Java_com_redhat_openjdk_balloon_BalloonManager_attachAgent(JNIEnv *env, jclass unused, jstring options)
+{
+  jvmtiEnv              *jvmti;
+  jvmtiError             error;
+  jvmtiCapabilities      capabilities;
+  jvmtiEventCallbacks    callbacks;
+
+  if (agentJvmti != NULL) {
+    // already loaded as a JVMTI agent
+    return JNI_TRUE;
+  }
+
+  if (options != NULL) {
+    const char *chars = env->GetStringUTFChars(options, NULL);
+    char *copy = strdup(chars);
+    env->ReleaseStringUTFChars(options, chars);
+    processAgentOptions(copy);
+    free(copy);
+  }
+
+  env->GetJavaVM(&jvm);
+  stdout_message("attachAgent(jvm=%p)\n", jvm);
+  if (jvm->GetEnv((void **)&jvmti, JVMTI_VERSION) != JNI_OK) {
+    printf("balloon agent could not obtain a JVMTI environment\n");
+    return JNI_FALSE;
+  }
+  memset(&capabilities,0, sizeof(capabilities));
+  capabilities.can_generate_garbage_collection_events = 1;
+  capabilities.can_generate_resource_exhaustion_heap_events = 1;
+  error = jvmti->AddCapabilities(&capabilities);
+  if (error != JVMTI_ERROR_NONE) {
+    printf("balloon agent could not enable GC events (%d)\n", error);
+    return JNI_FALSE;
+  }
+
+  (void)memset(&callbacks,0, sizeof(callbacks));
+  callbacks.GarbageCollectionFinish = &endGC;
+  callbacks.ResourceExhausted = &ResourceExhausted;
+  error = jvmti->SetEventCallbacks(&callbacks, (jint)sizeof(callbacks));
+  error = jvmti->CreateRawMonitor("agent data", &(agent_lock));
+  error = jvmti->CreateRawMonitor("balloon data", &(balloon_lock));
+
+  init_balloon_mapping();
+
+  java_driven = true;
+  jniEnv = env;
+  agentJvmti = jvmti;
+
+  jvmti->SetEventNotificationMode(JVMTI_ENABLE,
+                                  JVMTI_EVENT_GARBAGE_COLLECTION_FINISH, (jthread)NULL);
+  jvmti->SetEventNotificationMode(JVMTI_ENABLE,
+                                  JVMTI_EVENT_RESOURCE_EXHAUSTED, (jthread)NULL);
+  stdout_message("attachAgent done\n");
+  return JNI_TRUE;
+}
+
+/*
+ * native method implementation for BalloonManager to clear the flag
+ * which records that a GC has happened. the Java agent calls this when
+ * it starts processing a GC notification. when loaded as a JVMTI agent
+ * the agent thread clears it before calling MemoryManager.gcEnd.
+ */
+
+JNIEXPORT void JNICALL
+Java_com_redhat_openjdk_balloon_BalloonManager_clearInterrupted(JNIEnv *env, jclass unused)
+{
+  interrupted = JNI_FALSE;
+}
+
+/*
+ * native method implementation for BalloonManager to release the
+ * pages of balloons moved by a GC. the Java agent calls this when it
+ * starts processing a GC notification. when loaded as a JVMTI agent
+ * the agent thread does it before calling MemoryManager.gcEnd.
+ */
+
+JNIEXPORT void JNICALL
+Java_com_redhat_openjdk_balloon_BalloonManager_remapBalloons(JNIEnv *env, jclass unused)
+{
+  remap_balloons(env);
+}
+
+/*
+ * native method implementation for MemoryManager to drain the
+ * GC samples delivered with the current gcEnd upcall. each sample
+ * is copied into samples as GC_SAMPLE_FIELDS consecutive longs in
+ * the order the GCs ended. if they do not all fit the oldest are
+ * skipped so the newest GC is always drained.
+ *
+ * returns the number of samples copied
+ */
+
+JNIEXPORT jint JNICALL
+Java_com_redhat_openjdk_balloon_MemoryManager_drainSamples(JNIEnv *env, jclass unused, jlongArray samples)
+{
+  unsigned long head = gcRing.head.load(std::memory_order_relaxed);
+  unsigned long ring_count = delivered_tail - head;
+  unsigned long available = ring_count + (delivered_overflow ? 1 : 0);
+  unsigned long capacity = env->GetArrayLength(samples) / GC_SAMPLE_FIELDS;
+  unsigned long count = (available < capacity ? available : capacity);
+  unsigned long skip = available - count;
+  for (unsigned long i = 0; i < count; i++) {
+    // position of this sample among the ring slots and the
+    // overflow record in the order the GCs ended
+    unsigned long pos = skip + i;
+    GCEventRecord *record;
+    if (delivered_overflow && (overflow_first ? pos == 0 : pos == ring_count)) {
+      record = &overflow_record;
+    } else {
+      record = &gcRing.slots[(head + pos - (delivered_overflow && overflow_first ? 1 : 0)) & GC_RING_MASK];
+    }
+    env->SetLongArrayRegion(samples, i * GC_SAMPLE_FIELDS, GC_SAMPLE_FIELDS, (jlong *)record);
+  }
+  delivered_overflow = false;
+  gcRing.head.store(delivered_tail, std::memory_order_release);
+  return (jint)count;
+}
+
+/*
+ * native method implementation for MemoryManager to read the GC
+ * pause histograms. for the young and then the old histogram the
+ * longest pause since the last read is copied into pauses followed
+ * by the PAUSE_BUCKETS cumulative counts. the longest pause is reset.
+ */
+
+JNIEXPORT void JNICALL
+Java_com_redhat_openjdk_balloon_MemoryManager_readPauses(JNIEnv *env, jclass unused, jlongArray pauses)
+{
+  static jlong buffer[PAUSE_BUCKETS + 1];
+  for (int i = 0; i < 2; i++) {
+    PauseSeries &series = pauseSeries[i];
+    buffer[0] = series.max.exchange(0);
+    for (int j = 0; j < PAUSE_BUCKETS; j++) {
+      buffer[j + 1] = series.counts[j].load(std::memory_order_relaxed);
+    }
+    env->SetLongArrayRegion(pauses, i * (PAUSE_BUCKETS + 1), PAUSE_BUCKETS + 1, buffer);
+  }
+}
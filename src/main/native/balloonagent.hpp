@@ -31,11 +31,50 @@ extern "C" {
 
 // probably ought to use an auto-generated file to declare these
 
-JNIEXPORT jboolean JNICALL Java_com_redhat_openjdk_balloon_BalloonManager_registerBalloon
-  (JNIEnv *, jclass, jbyteArray);
+JNIEXPORT jboolean JNICALL Java_com_redhat_openjdk_balloon_BalloonManager_registerBalloons
+  (JNIEnv *, jclass, jobjectArray, jint);
 
-JNIEXPORT jboolean JNICALL Java_com_redhat_openjdk_balloon_BalloonManager_unregisterBalloon
-  (JNIEnv *, jclass, jbyteArray);
+JNIEXPORT jint JNICALL Java_com_redhat_openjdk_balloon_BalloonManager_unregisterBalloons
+  (JNIEnv *, jclass, jint);
+
+JNIEXPORT jint JNICALL Java_com_redhat_openjdk_balloon_BalloonManager_countBalloons
+  (JNIEnv *, jclass);
+
+JNIEXPORT void JNICALL Java_com_redhat_openjdk_balloon_BalloonManager_setEmergencyBalloons
+  (JNIEnv *, jclass, jint);
+
+JNIEXPORT jint JNICALL Java_com_redhat_openjdk_balloon_BalloonManager_emergencyDeflate
+  (JNIEnv *, jclass);
+
+JNIEXPORT void JNICALL Java_com_redhat_openjdk_balloon_BalloonManager_emergencyStats
+  (JNIEnv *, jclass, jlongArray);
+
+JNIEXPORT jint JNICALL Java_com_redhat_openjdk_balloon_BalloonManager_verifyBalloons
+  (JNIEnv *, jclass, jlongArray);
+
+JNIEXPORT jboolean JNICALL Java_com_redhat_openjdk_balloon_BalloonManager_addPressureTrigger
+  (JNIEnv *, jclass, jstring, jlong, jlong);
+
+JNIEXPORT jint JNICALL Java_com_redhat_openjdk_balloon_BalloonManager_waitPressure
+  (JNIEnv *, jclass, jint);
+
+JNIEXPORT jlong JNICALL Java_com_redhat_openjdk_balloon_BalloonManager_balloonAlignment
+  (JNIEnv *, jclass);
+
+JNIEXPORT jboolean JNICALL Java_com_redhat_openjdk_balloon_BalloonManager_attachAgent
+  (JNIEnv *, jclass, jstring);
+
+JNIEXPORT void JNICALL Java_com_redhat_openjdk_balloon_BalloonManager_clearInterrupted
+  (JNIEnv *, jclass);
+
+JNIEXPORT void JNICALL Java_com_redhat_openjdk_balloon_BalloonManager_remapBalloons
+  (JNIEnv *, jclass);
+
+JNIEXPORT jint JNICALL Java_com_redhat_openjdk_balloon_MemoryManager_drainSamples
+  (JNIEnv *, jclass, jlongArray);
+
+JNIEXPORT void JNICALL Java_com_redhat_openjdk_balloon_MemoryManager_readPauses
+  (JNIEnv *, jclass, jlongArray);
 
 #ifdef	__cplusplus
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+/* ------------------------------------------------------------------- */
+/* benchmark comparing the balloon page release strategies */
+
+/*
+ * allocates and touches an anonymous region standing in for a set of
+ * balloons then, for each strategy, times how long it takes to release
+ * the region and how much the process RSS drops as a result. it also
+ * times restoring the region and faulting it back in.
+ *
+ * run using
+ *
+ *    balloonbench [size_mb [rounds]]
+ *
+ * n.b. free is expected to show little or no RSS drop unless the host
+ * is under memory pressure since MADV_FREE pages are only reclaimed
+ * when the kernel needs them.
+ */
+
+#define _GNU_SOURCE
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include "balloonutil.h"
+#include "balloonmap.h"
+
+static long page_size;
+
+/*
+ * return the resident set size in bytes as reported by /proc/self/statm
+ */
+static long resident_bytes()
+{
+  long size = 0;
+  long resident = 0;
+  FILE *statm = fopen("/proc/self/statm", "r");
+  if (statm == NULL) {
+    return 0;
+  }
+  if (fscanf(statm, "%ld %ld", &size, &resident) != 2) {
+    resident = 0;
+  }
+  fclose(statm);
+  return resident * page_size;
+}
+
+static long elapsed_usecs(struct timespec *start, struct timespec *end)
+{
+  return (end->tv_sec - start->tv_sec) * 1000000L + (end->tv_nsec - start->tv_nsec) / 1000L;
+}
+
+/*
+ * write to every page of the region so it is fully resident
+ */
+static void touch(char *region, size_t len)
+{
+  size_t i;
+  for (i = 0; i < len; i += page_size) {
+    region[i] = 1;
+  }
+}
+
+int main(int argc, char **argv)
+{
+  long size_mb = 256;
+  int rounds = 5;
+  size_t len;
+  const BalloonMapStrategy * const *strategies;
+  int i, round;
+
+  if (argc > 1) {
+    size_mb = atol(argv[1]);
+  }
+  if (argc > 2) {
+    rounds = atoi(argv[2]);
+  }
+  if (argc > 3 || size_mb <= 0 || rounds <= 0) {
+    printf("usage : balloonbench [size_mb [rounds]]\n");
+    printf("        where size_mb >= 1, default 256\n");
+    printf("              rounds  >= 1, default 5\n");
+    exit(1);
+  }
+
+  page_size = sysconf(_SC_PAGESIZE);
+  len = size_mb * 1024L * 1024L;
+
+  printf("%-10s %14s %14s %14s\n", "strategy", "release usecs", "rss drop MB", "restore usecs");
+
+  strategies = balloon_map_strategies();
+  for (i = 0; strategies[i] != NULL; i++) {
+    const BalloonMapStrategy *strategy = strategies[i];
+    long release_usecs = 0;
+    long restore_usecs = 0;
+    long dropped = 0;
+    char *region;
+
+    if (strategy->init() != 0) {
+      printf("%-10s unavailable\n", strategy->name);
+      continue;
+    }
+
+    region = (char *)mmap(NULL, len, PROT_READ|PROT_WRITE, MAP_PRIVATE|MAP_ANONYMOUS, -1, 0);
+    if (region == MAP_FAILED) {
+      perror("mmap");
+      fatal_error("failed to map %ld MB\n", size_mb);
+    }
+
+    for (round = 0; round < rounds; round++) {
+      struct timespec t0, t1, t2;
+      long before;
+      touch(region, len);
+      before = resident_bytes();
+      clock_gettime(CLOCK_MONOTONIC, &t0);
+      strategy->release(region, len);
+      clock_gettime(CLOCK_MONOTONIC, &t1);
+      dropped += before - resident_bytes();
+      strategy->restore(region, len);
+      touch(region, len);
+      clock_gettime(CLOCK_MONOTONIC, &t2);
+      release_usecs += elapsed_usecs(&t0, &t1);
+      restore_usecs += elapsed_usecs(&t1, &t2);
+    }
+
+    munmap(region, len);
+
+    printf("%-10s %14ld %14ld %14ld\n", strategy->name,
+           release_usecs / rounds, dropped / rounds / (1024L * 1024L), restore_usecs / rounds);
+  }
+  return 0;
+}
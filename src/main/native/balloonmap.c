@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+/* ------------------------------------------------------------------- */
+/* page release strategies for balloon data areas */
+
+#define _GNU_SOURCE
+#include <stdio.h>
+#include <string.h>
+#include <errno.h>
+#include <sys/mman.h>
+#include "balloonutil.h"
+#include "balloonmap.h"
+
+/*
+ * strategies
+ *
+ * dontneed -- madvise(MADV_DONTNEED). pages are dropped immediately
+ *             and refault as zero pages. restore is a no-op
+ * free     -- madvise(MADV_FREE). pages are dropped lazily when the
+ *             kernel needs memory. restore is a no-op
+ * remove   -- madvise(MADV_REMOVE). punches a hole in the backing
+ *             store of a shared mapping e.g. a heap placed in shmem
+ *             via -XX:AllocateHeapAt. restore is a no-op
+ *
+ * n.b. the original mechanism remapped released ranges onto a sparse
+ * file. once that mapping had to be private, so that a GC copying
+ * objects into a vacated range could not corrupt other balloons, it
+ * released no more than dontneed while splitting the heap into a
+ * file-backed mapping per range and refaulting more slowly, so it
+ * was dropped.
+ *
+ * where a madvise advice value is not supported by the kernel or by
+ * the mapping the strategy falls back to MADV_DONTNEED.
+ */
+
+/*
+ * apply madvise advice to a range, falling back to MADV_DONTNEED
+ * if the advice is rejected. fallback is a pointer to a flag which
+ * records that the fallback has been taken so it only gets reported
+ * and retried once.
+ */
+static void advise_range(char *start, size_t len, int advice, const char *name, int *fallback)
+{
+  if (!*fallback) {
+    if (madvise(start, len, advice) == 0) {
+      stdout_message("%s released [%p, %p)\n", name, start, start + len);
+      return;
+    }
+    if (errno != EINVAL && errno != EOPNOTSUPP) {
+      perror("madvise");
+      fatal_error("failed to %s release %p 0x%lx errno=%d\n", name, start, len, errno);
+    }
+    printf("balloon map strategy %s not supported (errno=%d) using dontneed\n", name, errno);
+    *fallback = 1;
+  }
+  if (madvise(start, len, MADV_DONTNEED) != 0) {
+    perror("madvise");
+    fatal_error("failed to dontneed release %p 0x%lx errno=%d\n", start, len, errno);
+  }
+  stdout_message("dontneed released [%p, %p)\n", start, start + len);
+}
+
+/*
+ * madvise strategies
+ */
+static int no_init(void)
+{
+  return 0;
+}
+
+static void no_restore(char *start, size_t len)
+{
+}
+
+static int dontneed_fallback = 0;
+
+static void dontneed_release(char *start, size_t len)
+{
+  advise_range(start, len, MADV_DONTNEED, "dontneed", &dontneed_fallback);
+}
+
+static const BalloonMapStrategy dontneed_strategy = {
+  "dontneed", no_init, dontneed_release, no_restore
+};
+
+#ifndef MADV_FREE
+#define MADV_FREE 8
+#endif
+
+static int free_fallback = 0;
+
+static void free_release(char *start, size_t len)
+{
+  advise_range(start, len, MADV_FREE, "free", &free_fallback);
+}
+
+static const BalloonMapStrategy free_strategy = {
+  "free", no_init, free_release, no_restore
+};
+
+static int remove_fallback = 0;
+
+static void remove_release(char *start, size_t len)
+{
+  advise_range(start, len, MADV_REMOVE, "remove", &remove_fallback);
+}
+
+static const BalloonMapStrategy remove_strategy = {
+  "remove", no_init, remove_release, no_restore
+};
+
+static const BalloonMapStrategy * const strategies[] = {
+  &dontneed_strategy,
+  &free_strategy,
+  &remove_strategy,
+  NULL
+};
+
+const BalloonMapStrategy *
+balloon_map_strategy(const char *name, int len)
+{
+  int i;
+  for (i = 0; strategies[i] != NULL; i++) {
+    if ((int)strlen(strategies[i]->name) == len && strncmp(strategies[i]->name, name, len) == 0) {
+      return strategies[i];
+    }
+  }
+  return NULL;
+}
+
+const BalloonMapStrategy *
+balloon_map_default_strategy()
+{
+  return &dontneed_strategy;
+}
+
+const BalloonMapStrategy * const *
+balloon_map_strategies()
+{
+  return strategies;
+}
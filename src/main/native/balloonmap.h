@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+#ifndef BALLOONMAP_H
+#define BALLOONMAP_H
+
+#include <stddef.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/*
+ * a strategy for releasing the physical pages which back a balloon's
+ * data area and for making them usable again when the balloon is
+ * deleted or moved by the GC.
+ *
+ * release and restore are always passed a page aligned range. a
+ * released range must stay private memory which refaults on access
+ * since the GC may reuse it before the agent thread gets round to
+ * restoring it.
+ */
+typedef struct {
+  // the name used to select the strategy via the map agent option
+  const char *name;
+  // one off setup. returns 0 on success
+  int (*init)(void);
+  // hand the physical pages for a range back to the OS
+  void (*release)(char *start, size_t len);
+  // make a previously released range usable as normal heap
+  void (*restore)(char *start, size_t len);
+} BalloonMapStrategy;
+
+/*
+ * lookup a strategy by name, allowing the name to be supplied as
+ * a len byte prefix of a longer string. returns NULL if unknown.
+ */
+const BalloonMapStrategy *balloon_map_strategy(const char *name, int len);
+
+/*
+ * the strategy used when the map option is supplied without a name
+ */
+const BalloonMapStrategy *balloon_map_default_strategy();
+
+/*
+ * return a NULL terminated list of all available strategies
+ */
+const BalloonMapStrategy * const *balloon_map_strategies();
+
+#ifdef __cplusplus
+} /* extern "C" */
+#endif /* __cplusplus */
+
+#endif  // BALLOONMAP_H
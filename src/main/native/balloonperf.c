@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+/* ------------------------------------------------------------------- */
+/* lookup of HotSpot perf data counters */
+
+#define _GNU_SOURCE
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include "balloonutil.h"
+#include "balloonperf.h"
+
+/*
+ * layout of the perf data memory as defined by perfMemory.hpp
+ *
+ * the memory starts with a prologue followed by a sequence of
+ * variable length entries. each entry has a header giving the
+ * offsets of its name and data relative to the start of the entry.
+ */
+typedef struct {
+  jint   magic;           // 0xcafec0c0 stored big endian
+  jbyte  byte_order;      // 0 big endian, 1 little endian
+  jbyte  major_version;
+  jbyte  minor_version;
+  jbyte  accessible;      // set once the JVM has initialized the memory
+  jint   used;
+  jint   overflow;
+  jlong  mod_time_stamp;
+  jint   entry_offset;    // offset of the first entry
+  jint   num_entries;
+} PerfDataPrologue;
+
+typedef struct {
+  jint   entry_length;    // offset of the next entry
+  jint   name_offset;
+  jint   vector_length;   // 0 for a scalar
+  jbyte  data_type;       // 'J' for a long
+  jbyte  flags;
+  jbyte  data_units;
+  jbyte  data_variability;
+  jint   data_offset;
+} PerfDataEntry;
+
+#define PERFDATA_BIG_ENDIAN 0
+#define PERFDATA_LITTLE_ENDIAN 1
+
+// the start of the perf data memory or NULL if not found
+static char *perf_memory = NULL;
+
+/*
+ * find the hsperfdata file mapping for this process in /proc/self/maps
+ */
+static char *find_perf_memory()
+{
+  char line[1024];
+  char suffix[32];
+  char *result = NULL;
+  FILE *maps = fopen("/proc/self/maps", "r");
+
+  if (maps == NULL) {
+    return NULL;
+  }
+  snprintf(suffix, sizeof(suffix), "/%d", (int)getpid());
+  while (fgets(line, sizeof(line), maps) != NULL) {
+    size_t len = strlen(line);
+    if (len > 0 && line[len - 1] == '\n') {
+      line[--len] = '\0';
+    }
+    size_t slen = strlen(suffix);
+    if (strstr(line, "/hsperfdata_") != NULL && len > slen && strcmp(line + len - slen, suffix) == 0) {
+      result = (char *)strtoul(line, NULL, 16);
+      break;
+    }
+  }
+  fclose(maps);
+  return result;
+}
+
+int perf_init()
+{
+  char *memory = find_perf_memory();
+  if (memory == NULL) {
+    stdout_message("perf data memory not found\n");
+    return -1;
+  }
+  PerfDataPrologue *prologue = (PerfDataPrologue *)memory;
+  unsigned char *magic = (unsigned char *)&prologue->magic;
+  if (magic[0] != 0xca || magic[1] != 0xfe || magic[2] != 0xc0 || magic[3] != 0xc0) {
+    printf("perf data memory has bad magic\n");
+    return -1;
+  }
+#if __BYTE_ORDER__ == __ORDER_LITTLE_ENDIAN__
+  if (prologue->byte_order != PERFDATA_LITTLE_ENDIAN) {
+#else
+  if (prologue->byte_order != PERFDATA_BIG_ENDIAN) {
+#endif
+    printf("perf data memory byte order does not match host\n");
+    return -1;
+  }
+  stdout_message("perf data memory at %p version %d.%d with %d entries\n",
+                 memory, prologue->major_version, prologue->minor_version, prologue->num_entries);
+  perf_memory = memory;
+  return 0;
+}
+
+volatile jlong *perf_counter(const char *name)
+{
+  if (perf_memory == NULL) {
+    return NULL;
+  }
+  PerfDataPrologue *prologue = (PerfDataPrologue *)perf_memory;
+  char *next = perf_memory + prologue->entry_offset;
+  for (int i = 0; i < prologue->num_entries; i++) {
+    PerfDataEntry *entry = (PerfDataEntry *)next;
+    if (entry->entry_length <= 0) {
+      break;
+    }
+    if (entry->vector_length == 0 && entry->data_type == 'J' &&
+        strcmp(next + entry->name_offset, name) == 0) {
+      return (volatile jlong *)(next + entry->data_offset);
+    }
+    next += entry->entry_length;
+  }
+  stdout_message("perf counter %s not found\n", name);
+  return NULL;
+}
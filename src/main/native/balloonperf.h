@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+#ifndef BALLOONPERF_H
+#define BALLOONPERF_H
+
+#include "jni.h"
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/*
+ * access to the counters HotSpot publishes in its perf data memory
+ * (the hsperfdata file read by jstat). counter addresses are looked
+ * up once and can then be read with a plain load, which makes them
+ * cheap enough to sample from a JVMTI GC callback.
+ *
+ * the perf data memory is only visible when it is a shared file
+ * mapping i.e. -XX:+UsePerfData without -XX:+PerfDisableSharedMem
+ */
+
+/*
+ * locate the perf data memory mapped by this JVM. returns 0 on
+ * success or -1 if it cannot be found or is not in a supported format
+ */
+int perf_init();
+
+/*
+ * return the address of the named long counter or NULL if perf_init
+ * failed or there is no such counter
+ */
+volatile jlong *perf_counter(const char *name);
+
+#ifdef __cplusplus
+} /* extern "C" */
+#endif /* __cplusplus */
+
+#endif  // BALLOONPERF_H
@@ -91,6 +91,11 @@ void set_verbose()
   verbose = 1;
 }
 
+int is_verbose()
+{
+  return verbose;
+}
+
 /* Send message to stderr or whatever the error output location is and exit  */
 void
 fatal_error(const char * format, ...)
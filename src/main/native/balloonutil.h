@@ -78,6 +78,7 @@ extern "C" {
 
 void  stdout_message(const char * format, ...);
 void  set_verbose();
+int   is_verbose();
 void  fatal_error(const char * format, ...);
 void  check_jvmti_error(jvmtiEnv *jvmti, jvmtiError errnum, const char *str);
 